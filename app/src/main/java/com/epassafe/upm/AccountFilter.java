@@ -0,0 +1,120 @@
+/*
+ * Epassafe Password Manager
+ * Copyright (c) 2010-2026
+ *
+ * This file is part of Epassafe Password Manager.
+ *
+ * Epassafe Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Epassafe Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ */
+package com.epassafe.upm;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.epassafe.upm.database.PasswordDatabase;
+import com.epassafe.upm.database.SearchIndex;
+
+/**
+ * Filters the account list as the user types, on a background thread. Each
+ * query waits for a short pause in typing and any query that hasn't finished
+ * when the next one arrives is abandoned, so only the latest query's results
+ * reach the listener. When a query extends the previous one only the
+ * accounts that matched before are searched again.
+ *
+ * Must be called from the UI thread, results are delivered on it too.
+ */
+public class AccountFilter {
+
+    /** How long to wait for further typing before searching. */
+    static final long DEBOUNCE_MS = 150;
+
+    public interface Listener {
+        void onAccountsFiltered(String query, ArrayList<String> accountNames);
+    }
+
+    private final Listener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "AccountFilter");
+        }
+    });
+
+    // Only used on the UI thread
+    private ScheduledFuture<?> pendingTask;
+    private int generation;
+
+    // Only used on the filter thread
+    private SearchIndex.Matches lastMatches;
+
+
+    public AccountFilter(Listener listener) {
+        this.listener = listener;
+    }
+
+
+    /**
+     * Filter the accounts on the given query once the user stops typing.
+     */
+    public void filter(final PasswordDatabase database, final String query) {
+        cancel();
+        final int queryGeneration = generation;
+        pendingTask = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                final ArrayList<String> accountNames;
+                try {
+                    // The first search builds the index, which is why it's done here
+                    lastMatches = database.getSearchIndex().search(query, lastMatches);
+                    accountNames = lastMatches.getNames();
+                } catch (InterruptedException e) {
+                    // A newer query has replaced this one
+                    return;
+                }
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (queryGeneration == generation) {
+                            listener.onAccountsFiltered(query, accountNames);
+                        }
+                    }
+                });
+            }
+        }, DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Abandon the current query, its results won't be delivered.
+     */
+    public void cancel() {
+        generation++;
+        if (pendingTask != null) {
+            pendingTask.cancel(true);
+            pendingTask = null;
+        }
+    }
+
+
+    public void shutdown() {
+        cancel();
+        executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,241 @@
+/*
+ * Epassafe Password Manager
+ * Copyright (c) 2010-2026
+ *
+ * This file is part of Epassafe Password Manager.
+ *
+ * Epassafe Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Epassafe Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ */
+package com.epassafe.upm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.SectionIndexer;
+import android.widget.TextView;
+
+import com.epassafe.upm.database.NameListDiff;
+
+/**
+ * Shows a list of account names in a ListView without rebuilding it on every
+ * change. New names are compared with the ones shown on a background thread
+ * and only then swapped in, the rows on screen stay where they are and any
+ * inserted rows that are visible fade in. Rows are recycled, and for a
+ * sorted list there's an alphabet section index for fast scrolling.
+ *
+ * Must be used from the UI thread.
+ */
+public class AccountListAdapter extends BaseAdapter implements SectionIndexer {
+
+    // More inserted rows than this are simply shown, not faded in
+    private static final int MAX_ANIMATED_ROWS = 3;
+    private static final long FADE_IN_MS = 250;
+    private static final String OTHER_SECTION = "#";
+
+    private final ListView listView;
+    private final LayoutInflater inflater;
+    private final boolean sorted;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "AccountListDiff");
+        }
+    });
+
+    private String[] names = new String[0];
+    private String[] sections = new String[0];
+    private int[] sectionStarts = new int[0];
+    // Bumped for every list submitted, only the latest is shown
+    private int generation;
+
+
+    /**
+     * @param sorted Whether the names will be sorted, which gives the list an
+     *               alphabet section index
+     */
+    public AccountListAdapter(ListView listView, boolean sorted) {
+        this.listView = listView;
+        this.inflater = LayoutInflater.from(listView.getContext());
+        this.sorted = sorted;
+    }
+
+
+    /**
+     * Show the given names once they've been compared with those shown now.
+     * The array mustn't be changed afterwards.
+     */
+    public void submit(final String[] newNames) {
+        final int submitted = ++generation;
+        final String[] oldNames = names;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final NameListDiff diff = NameListDiff.compute(oldNames, newNames);
+                final ArrayList<String> newSections = new ArrayList<String>();
+                final int[] newSectionStarts = sorted ? findSections(newNames, newSections) : new int[0];
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (submitted == generation) {
+                            show(newNames, diff, newSections.toArray(new String[newSections.size()]), newSectionStarts);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+
+    public void shutdown() {
+        generation++;
+        executor.shutdownNow();
+    }
+
+
+    private void show(String[] newNames, NameListDiff diff, String[] newSections, int[] newSectionStarts) {
+        // Keep the row at the top of the screen where it is
+        int first = listView.getFirstVisiblePosition();
+        View firstView = listView.getChildAt(0);
+        int top = firstView == null ? 0 : firstView.getTop();
+        boolean anchored = names.length > 0 && first < names.length;
+
+        names = newNames;
+        sections = newSections;
+        sectionStarts = newSectionStarts;
+        // With the same names the rows can only have been reordered, as in a ranked list
+        notifyDataSetChanged();
+        if (diff.isEmpty()) {
+            return;
+        }
+        if (anchored) {
+            listView.setSelectionFromTop(diff.newPosition(first), top);
+        }
+
+        final int[] inserted = diff.getInserted();
+        if (inserted.length > 0 && inserted.length <= MAX_ANIMATED_ROWS) {
+            listView.post(new Runnable() {
+                @Override
+                public void run() {
+                    fadeIn(inserted);
+                }
+            });
+        }
+    }
+
+
+    private void fadeIn(int[] positions) {
+        int first = listView.getFirstVisiblePosition();
+        for (int position : positions) {
+            View row = listView.getChildAt(position - first);
+            if (row != null) {
+                row.setAlpha(0f);
+                row.animate().alpha(1f).setDuration(FADE_IN_MS);
+            }
+        }
+    }
+
+
+    /**
+     * @return Where each section starts, with the sections' titles added to
+     *         <code>titles</code>
+     */
+    private static int[] findSections(String[] names, ArrayList<String> titles) {
+        int[] starts = new int[names.length];
+        int count = 0;
+        String current = null;
+        for (int i = 0; i < names.length; i++) {
+            String section = sectionOf(names[i]);
+            if (!section.equals(current)) {
+                titles.add(section);
+                starts[count++] = i;
+                current = section;
+            }
+        }
+        return Arrays.copyOf(starts, count);
+    }
+
+
+    private static String sectionOf(String name) {
+        if (name.isEmpty() || !Character.isLetter(name.charAt(0))) {
+            return OTHER_SECTION;
+        }
+        return String.valueOf(Character.toUpperCase(name.charAt(0)));
+    }
+
+
+    @Override
+    public int getCount() {
+        return names.length;
+    }
+
+
+    @Override
+    public String getItem(int position) {
+        return names[position];
+    }
+
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        // The row is just a TextView, AccountsList reads the account name back from it
+        TextView row = (TextView) convertView;
+        if (row == null) {
+            row = (TextView) inflater.inflate(android.R.layout.simple_list_item_1, parent, false);
+        }
+        row.setText(names[position]);
+        if (row.getAlpha() != 1f) {
+            // A recycled row may be part way through fading in
+            row.animate().cancel();
+            row.setAlpha(1f);
+        }
+        return row;
+    }
+
+
+    @Override
+    public Object[] getSections() {
+        return sections;
+    }
+
+
+    @Override
+    public int getPositionForSection(int sectionIndex) {
+        if (sectionStarts.length == 0) {
+            return 0;
+        }
+        return sectionStarts[Math.max(0, Math.min(sectionIndex, sectionStarts.length - 1))];
+    }
+
+
+    @Override
+    public int getSectionForPosition(int position) {
+        int section = Arrays.binarySearch(sectionStarts, position);
+        return section >= 0 ? section : Math.max(0, -section - 2);
+    }
+
+}
@@ -207,28 +207,26 @@ public class AddEditAccount extends Activity implements OnClickListener {
                 accountName, useridBytes,
                 passwordBytes, urlBytes, notesBytes);
 
-        // If editing an account then delete the exiting one before adding it again
+        // If editing an account then replace the existing one
         if (mode == EDIT_MODE) {
-            getPasswordDatabase().deleteAccount(this.accountToEdit);
+            getPasswordDatabase().replaceAccount(this.accountToEdit, ai);
             // Put the edited account back on the ViewAccountDetails
             // activity so that the view can be re-populated with the
             // edited details
             ViewAccountDetails.account = ai;
+        } else {
+            getPasswordDatabase().addAccount(ai);
         }
-
-        getPasswordDatabase().addAccount(ai);
-        new SaveDatabaseAsyncTask(this, new Callback() {
-            @Override
-            public void execute() {
-                // If the account name has changed or we're added a new account
-                // then pass back a value instructing the FullAccountList to
-                // refresh the list of accounts
-                if (!accountName.equals(originalAccountName) || mode == ADD_MODE) {
-                    setResult(EDIT_ACCOUNT_RESULT_CODE_TRUE);
-                }
-                AddEditAccount.this.finish();
-            }
-        }).execute(getPasswordDatabase());
+        // The database is written in the background shortly after the last edit
+        ((UPMApplication) getApplication()).getSaveScheduler().requestSave(getPasswordDatabase());
+
+        // If the account name has changed or we're added a new account
+        // then pass back a value instructing the FullAccountList to
+        // refresh the list of accounts
+        if (!accountName.equals(originalAccountName) || mode == ADD_MODE) {
+            setResult(EDIT_ACCOUNT_RESULT_CODE_TRUE);
+        }
+        finish();
     }
 
     /* FOR PASSWORD GENERATOR */
@@ -53,8 +53,12 @@ import android.widget.RadioGroup;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.epassafe.upm.crypto.AeadBenchmark;
 import com.epassafe.upm.crypto.DatabaseExporter;
 import com.epassafe.upm.crypto.InvalidPasswordException;
+import com.epassafe.upm.crypto.KdfCalibrator;
+import com.epassafe.upm.crypto.KeyDerivation;
+import com.epassafe.upm.crypto.KeySlots;
 import com.epassafe.upm.crypto.YubiKeyManager;
 import com.epassafe.upm.database.PasswordDatabase;
 import com.epassafe.upm.database.ProblemReadingDatabaseFile;
@@ -68,6 +72,7 @@ public class ChangeMasterPassword extends Activity {
     private CheckBox useChaCha20Checkbox;
     private CheckBox exportCsvCheckbox;
     private LinearLayout encryptionOptionsLayout;
+    private TextView aeadBenchmarkInfo;
 
     // YubiKey enrollment
     private CheckBox yubiKeyEnableCheckbox;
@@ -100,6 +105,7 @@ public class ChangeMasterPassword extends Activity {
         useChaCha20Checkbox = findViewById(R.id.use_chacha20_checkbox);
         exportCsvCheckbox = findViewById(R.id.export_csv_checkbox);
         encryptionOptionsLayout = findViewById(R.id.encryption_options_layout);
+        aeadBenchmarkInfo = findViewById(R.id.aead_benchmark_info);
 
         // Set initial state based on current encryption
         final PasswordDatabase db = ((UPMApplication) getApplication()).getPasswordDatabase();
@@ -123,6 +129,9 @@ public class ChangeMasterPassword extends Activity {
                 encryptionInfo.setText(getString(R.string.current_encryption) + " " + db.getEncryptionAlgorithm());
             }
 
+            // Measure both algorithms, an upgrade defaults to the quicker one
+            new AeadBenchmarkTask(!isUsingModern).execute();
+
             // Set listeners for encryption selection
             modernEncryptionCheckbox.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
                 @Override
@@ -413,6 +422,46 @@ public class ChangeMasterPassword extends Activity {
         }
     }
 
+    /**
+     * Enroll the YubiKey in the key slots of a modern database for the modes
+     * where it unwraps the data key (PASSWORDLESS and PASSWORD_OR_YUBIKEY).
+     * The YubiKey and the recovery code each get a slot holding the data key,
+     * so unlocking with them needs no key derivation. Modern databases without
+     * key slots are moved over to them here.
+     */
+    private static void enrollInKeySlots(PasswordDatabase database, File dbFile, char[] password,
+            byte[] response, String recoveryCode, YubiKeyManager.UnlockMode mode, KeyDerivation kdf) throws Exception {
+        database.changePassword(password.clone(), kdf);
+        if (mode == YubiKeyManager.UnlockMode.PASSWORDLESS) {
+            database.removeKeySlot(KeySlots.TYPE_PASSWORD);
+        }
+        database.setYubiKeySlot(response);
+        database.setRecoveryCodeSlot(recoveryCode, kdf);
+        database.save();
+        // A recovery file from an earlier enrollment no longer opens the database
+        YubiKeyManager.removeRecoveryFile(dbFile);
+    }
+
+    /**
+     * Fit the key derivation for the passwords about to be set to this device,
+     * once per change. Legacy databases don't use it so they aren't kept
+     * waiting for the calibration.
+     */
+    static KeyDerivation calibrateKeyDerivation(PasswordDatabase database) {
+        return database.isUsingModernEncryption() ? KdfCalibrator.calibrate() : KeySlots.DEFAULT_KEY_DERIVATION;
+    }
+
+    /**
+     * Drop the YubiKey and recovery code slots, if any, once the database is
+     * back to being unlocked with its password.
+     */
+    private static void removeYubiKeySlots(PasswordDatabase database) {
+        if (database.isUsingKeySlots()) {
+            database.removeKeySlot(KeySlots.TYPE_YUBIKEY);
+            database.removeKeySlot(KeySlots.TYPE_RECOVERY_CODE);
+        }
+    }
+
     /**
      * Async task to enroll a YubiKey: provisions the OATH credential,
      * computes expected response, saves sidecar file, and re-encrypts DB.
@@ -438,7 +487,10 @@ public class ChangeMasterPassword extends Activity {
                 File dbFile = database.getDatabaseFile();
 
                 // Verify existing password first
-                new PasswordDatabase(dbFile, existingPassword.clone());
+                if (!database.verifyPassword(existingPassword)) {
+                    throw new InvalidPasswordException("Incorrect existing password");
+                }
+                KeyDerivation kdf = calibrateKeyDerivation(database);
 
                 // Create a pre-enrollment backup of the database
                 // This is the last-resort safety net if both unlock and recovery fail
@@ -491,11 +543,15 @@ public class ChangeMasterPassword extends Activity {
 
                     switch (mode) {
                         case PASSWORDLESS: {
+                            if (database.isUsingModernEncryption()) {
+                                enrollInKeySlots(database, dbFile, existingPassword, response, recoveryCode, mode, kdf);
+                                break;
+                            }
                             // Generate random DB key, re-encrypt DB with it
                             byte[] dbKey = YubiKeyManager.generateDbKey();
                             char[] dbPassword = YubiKeyManager.dbKeyToPassword(dbKey);
 
-                            database.changePassword(dbPassword);
+                            database.changePassword(dbPassword, kdf);
                             database.save();
 
                             // Wrap DB key with YubiKey
@@ -510,11 +566,15 @@ public class ChangeMasterPassword extends Activity {
                         }
 
                         case PASSWORD_OR_YUBIKEY: {
+                            if (database.isUsingModernEncryption()) {
+                                enrollInKeySlots(database, dbFile, existingPassword, response, recoveryCode, mode, kdf);
+                                break;
+                            }
                             // Generate random DB key, re-encrypt DB with it
                             byte[] dbKey = YubiKeyManager.generateDbKey();
                             char[] dbPassword = YubiKeyManager.dbKeyToPassword(dbKey);
 
-                            database.changePassword(dbPassword);
+                            database.changePassword(dbPassword, kdf);
                             database.save();
 
                             // Wrap DB key with BOTH YubiKey AND password
@@ -535,7 +595,8 @@ public class ChangeMasterPassword extends Activity {
                             char[] combinedPassword = YubiKeyManager.combinePasswordWithYubiKeyResponse(
                                     existingPassword, response);
 
-                            database.changePassword(combinedPassword);
+                            database.changePassword(combinedPassword, kdf);
+                            removeYubiKeySlots(database);
                             database.save();
 
                             // Recovery: encrypt HMAC response with password + recovery code
@@ -641,6 +702,7 @@ public class ChangeMasterPassword extends Activity {
                 }
 
                 int slot = YubiKeyManager.loadSlot(dbFile);
+                KeyDerivation kdf = calibrateKeyDerivation(database);
 
                 // Connect to YubiKey to verify it's the enrolled key
                 IsoDep isoDep = IsoDep.get(tag);
@@ -663,7 +725,8 @@ public class ChangeMasterPassword extends Activity {
                     }
 
                     // Re-encrypt database with password only
-                    database.changePassword(existingPassword.clone());
+                    database.changePassword(existingPassword.clone(), kdf);
+                    removeYubiKeySlots(database);
                     database.save();
 
                     // Remove enrollment and recovery files
@@ -730,7 +793,10 @@ public class ChangeMasterPassword extends Activity {
                 char[] existingPassword = existingPasswordStr.toCharArray();
                 File dbFile = database.getDatabaseFile();
 
-                new PasswordDatabase(dbFile, existingPassword.clone());
+                if (!database.verifyPassword(existingPassword)) {
+                    throw new InvalidPasswordException("Incorrect existing password");
+                }
+                KeyDerivation kdf = calibrateKeyDerivation(database);
 
                 // Create pre-enrollment backup
                 File backupFile = new File(dbFile.getParentFile(),
@@ -770,9 +836,13 @@ public class ChangeMasterPassword extends Activity {
 
                     switch (mode) {
                         case PASSWORDLESS: {
+                            if (database.isUsingModernEncryption()) {
+                                enrollInKeySlots(database, dbFile, existingPassword, response, recoveryCode, mode, kdf);
+                                break;
+                            }
                             byte[] dbKey = YubiKeyManager.generateDbKey();
                             char[] dbPassword = YubiKeyManager.dbKeyToPassword(dbKey);
-                            database.changePassword(dbPassword);
+                            database.changePassword(dbPassword, kdf);
                             database.save();
                             ykWrappedKey = YubiKeyManager.wrapDbKeyWithYubiKey(dbKey, response);
                             YubiKeyManager.saveRecoveryBlobForDbKey(dbFile, recoveryCode, dbKey);
@@ -781,9 +851,13 @@ public class ChangeMasterPassword extends Activity {
                             break;
                         }
                         case PASSWORD_OR_YUBIKEY: {
+                            if (database.isUsingModernEncryption()) {
+                                enrollInKeySlots(database, dbFile, existingPassword, response, recoveryCode, mode, kdf);
+                                break;
+                            }
                             byte[] dbKey = YubiKeyManager.generateDbKey();
                             char[] dbPassword = YubiKeyManager.dbKeyToPassword(dbKey);
-                            database.changePassword(dbPassword);
+                            database.changePassword(dbPassword, kdf);
                             database.save();
                             ykWrappedKey = YubiKeyManager.wrapDbKeyWithYubiKey(dbKey, response);
                             pwWrappedKey = YubiKeyManager.wrapDbKeyWithPassword(dbKey, existingPassword);
@@ -795,7 +869,8 @@ public class ChangeMasterPassword extends Activity {
                         default: {
                             char[] combinedPassword = YubiKeyManager.combinePasswordWithYubiKeyResponse(
                                     existingPassword, response);
-                            database.changePassword(combinedPassword);
+                            database.changePassword(combinedPassword, kdf);
+                            removeYubiKeySlots(database);
                             database.save();
                             YubiKeyManager.saveRecoveryBlob(dbFile, existingPassword, recoveryCode, response);
                             Arrays.fill(combinedPassword, '\0');
@@ -862,6 +937,7 @@ public class ChangeMasterPassword extends Activity {
                 byte[] challenge = YubiKeyManager.loadChallenge(dbFile);
                 if (challenge == null) { errorMessage = "No enrollment found"; return false; }
                 int slot = YubiKeyManager.loadSlot(dbFile);
+                KeyDerivation kdf = calibrateKeyDerivation(database);
 
                 UsbDeviceConnection connection = usbManager.openDevice(device);
                 if (connection == null) { errorMessage = "Cannot open USB device"; return false; }
@@ -874,7 +950,8 @@ public class ChangeMasterPassword extends Activity {
                         errorMessage = "Wrong YubiKey";
                         return false;
                     }
-                    database.changePassword(existingPassword.clone());
+                    database.changePassword(existingPassword.clone(), kdf);
+                    removeYubiKeySlots(database);
                     database.save();
                     YubiKeyManager.removeAllEnrollment(dbFile);
                     Arrays.fill(existingPassword, '\0');
@@ -929,10 +1006,20 @@ public class ChangeMasterPassword extends Activity {
 
             // First, decrypt the current DB key depending on old mode
             // We need to open the DB to re-encrypt it
-            char[] currentDbPassword;
+            char[] currentDbPassword = null;
+            byte[] currentDataKey = null;
             switch (oldMode) {
                 case PASSWORDLESS:
                 case PASSWORD_OR_YUBIKEY: {
+                    KeySlots keySlots = PasswordDatabase.readKeySlots(dbFile);
+                    if (keySlots != null && keySlots.has(KeySlots.TYPE_YUBIKEY)) {
+                        currentDataKey = keySlots.unwrapWithYubiKey(yubiKeyResponse);
+                        if (currentDataKey == null) return "Failed to unwrap current DB key";
+                        boolean keyMatches = keySlots.checkKey(currentDataKey);
+                        Arrays.fill(currentDataKey, (byte) 0);
+                        if (!keyMatches) return "Failed to unwrap current DB key";
+                        break;
+                    }
                     byte[] ykBlob = YubiKeyManager.loadYkWrappedKey(dbFile);
                     if (ykBlob == null) return "Cannot read current enrollment data";
                     byte[] dbKey = YubiKeyManager.unwrapDbKeyWithYubiKey(ykBlob, yubiKeyResponse);
@@ -948,8 +1035,12 @@ public class ChangeMasterPassword extends Activity {
                 }
             }
 
-            // Verify we can open the database
-            new PasswordDatabase(dbFile, currentDbPassword.clone());
+            // Verify we can open the database, the key check has already vouched for a data key
+            if (currentDataKey == null) {
+                new PasswordDatabase(dbFile, currentDbPassword.clone());
+            }
+
+            KeyDerivation kdf = calibrateKeyDerivation(database);
 
             // Backup before re-encryption
             File backupFile = new File(dbFile.getParentFile(),
@@ -968,9 +1059,13 @@ public class ChangeMasterPassword extends Activity {
 
             switch (newMode) {
                 case PASSWORDLESS: {
+                    if (database.isUsingModernEncryption()) {
+                        enrollInKeySlots(database, dbFile, existingPassword, yubiKeyResponse, recoveryCode, newMode, kdf);
+                        break;
+                    }
                     byte[] dbKey = YubiKeyManager.generateDbKey();
                     char[] dbPassword = YubiKeyManager.dbKeyToPassword(dbKey);
-                    database.changePassword(dbPassword);
+                    database.changePassword(dbPassword, kdf);
                     database.save();
                     ykWrappedKey = YubiKeyManager.wrapDbKeyWithYubiKey(dbKey, yubiKeyResponse);
                     YubiKeyManager.saveRecoveryBlobForDbKey(dbFile, recoveryCode, dbKey);
@@ -979,9 +1074,13 @@ public class ChangeMasterPassword extends Activity {
                     break;
                 }
                 case PASSWORD_OR_YUBIKEY: {
+                    if (database.isUsingModernEncryption()) {
+                        enrollInKeySlots(database, dbFile, existingPassword, yubiKeyResponse, recoveryCode, newMode, kdf);
+                        break;
+                    }
                     byte[] dbKey = YubiKeyManager.generateDbKey();
                     char[] dbPassword = YubiKeyManager.dbKeyToPassword(dbKey);
-                    database.changePassword(dbPassword);
+                    database.changePassword(dbPassword, kdf);
                     database.save();
                     ykWrappedKey = YubiKeyManager.wrapDbKeyWithYubiKey(dbKey, yubiKeyResponse);
                     pwWrappedKey = YubiKeyManager.wrapDbKeyWithPassword(dbKey, existingPassword);
@@ -994,7 +1093,8 @@ public class ChangeMasterPassword extends Activity {
                 default: {
                     char[] combined = YubiKeyManager.combinePasswordWithYubiKeyResponse(
                             existingPassword, yubiKeyResponse);
-                    database.changePassword(combined);
+                    database.changePassword(combined, kdf);
+                    removeYubiKeySlots(database);
                     database.save();
                     YubiKeyManager.saveRecoveryBlob(dbFile, existingPassword, recoveryCode, yubiKeyResponse);
                     Arrays.fill(combined, '\0');
@@ -1005,7 +1105,7 @@ public class ChangeMasterPassword extends Activity {
             YubiKeyManager.saveEnrollmentV2(dbFile, slot, challenge, yubiKeyResponse,
                     newMode, ykWrappedKey, pwWrappedKey);
 
-            Arrays.fill(currentDbPassword, '\0');
+            if (currentDbPassword != null) Arrays.fill(currentDbPassword, '\0');
             Arrays.fill(existingPassword, '\0');
 
             // Store recovery code for UI to show
@@ -1153,6 +1253,41 @@ public class ChangeMasterPassword extends Activity {
         return valid;
     }
 
+    /**
+     * Show how quickly this device encrypts with each algorithm.
+     */
+    private class AeadBenchmarkTask extends AsyncTask<Void, Void, AeadBenchmark.Result> {
+
+        private final boolean selectQuicker;
+
+        AeadBenchmarkTask(boolean selectQuicker) {
+            this.selectQuicker = selectQuicker;
+        }
+
+        @Override
+        protected AeadBenchmark.Result doInBackground(Void... params) {
+            return AeadBenchmark.get();
+        }
+
+        @Override
+        protected void onPostExecute(AeadBenchmark.Result result) {
+            aeadBenchmarkInfo.setText(getString(R.string.aead_benchmark,
+                    formatThroughput(result.getAesGcmThroughput()),
+                    formatThroughput(result.getChaCha20Throughput())));
+            aeadBenchmarkInfo.setVisibility(View.VISIBLE);
+            if (selectQuicker) {
+                useChaCha20Checkbox.setChecked(result.preferChaCha20());
+            }
+        }
+
+        private String formatThroughput(double bytesPerSecond) {
+            if (bytesPerSecond <= 0) {
+                return getString(R.string.aead_not_supported);
+            }
+            return getString(R.string.aead_throughput, Math.round(bytesPerSecond / 1e6));
+        }
+    }
+
     private class ChangeMasterPasswordTask extends AsyncTask<Void, Void, Integer> {
 
         private static final int RESULT_OK = 0;
@@ -1202,7 +1337,10 @@ public class ChangeMasterPassword extends Activity {
                 File dbFile = database.getDatabaseFile();
 
                 // Verify the existing password on background thread
-                PasswordDatabase testDB = new PasswordDatabase(dbFile, existingPassword);
+                if (!database.verifyPassword(existingPassword)) {
+                    throw new InvalidPasswordException("Incorrect existing password");
+                }
+                Arrays.fill(existingPassword, '\0');
 
                 // If we got here then the password was correct
 
@@ -1234,11 +1372,13 @@ public class ChangeMasterPassword extends Activity {
                 // If we need to change the password
                 char[] newPassword = newPassword1Str.toCharArray();
 
-                // If YubiKey is enrolled, the effective password must be combined
-                // with the YubiKey response. The enrollment sidecar stays the same
-                // (same challenge salt, same YubiKey), but the password portion changes.
+                // If YubiKey is enrolled in PASSWORD_REQUIRED mode, the effective password
+                // must be combined with the YubiKey response. The enrollment sidecar stays the
+                // same (same challenge salt, same YubiKey), but the password portion changes.
+                // In the other modes the password has a key slot of its own.
                 char[] effectiveNewPassword;
-                if (yubiKeyCurrentlyEnrolled && doYubiKeyEnabled) {
+                if (yubiKeyCurrentlyEnrolled && doYubiKeyEnabled
+                        && YubiKeyManager.loadMode(dbFile) == YubiKeyManager.UnlockMode.PASSWORD_REQUIRED) {
                     // Need to re-derive with new password + existing YubiKey response
                     byte[] expectedResponse = YubiKeyManager.loadExpectedResponse(dbFile);
                     if (expectedResponse != null) {
@@ -1258,14 +1398,19 @@ public class ChangeMasterPassword extends Activity {
                 boolean isCurrentlyChaCha = database.getEncryptionAlgorithm().contains("ChaCha20");
 
                 try {
+                    // Fit the new password's key derivation to this device, unless
+                    // the database is legacy and staying that way so doesn't use it
+                    KeyDerivation kdf = isCurrentlyModern || useModernEncryption
+                            ? KdfCalibrator.calibrate() : KeySlots.DEFAULT_KEY_DERIVATION;
+
                     // First change the password
-                    database.changePassword(effectiveNewPassword);
+                    database.changePassword(effectiveNewPassword, kdf);
 
                     // Handle encryption changes based on selection
                     if (useModernEncryption) {
                         if (!isCurrentlyModern) {
                             // Upgrade to modern from legacy
-                            database.upgradeToModernEncryption(effectiveNewPassword, useChaCha20);
+                            database.upgradeToModernEncryption(effectiveNewPassword, useChaCha20, kdf);
                             Log.i("ChangeMasterPassword", "Upgraded to modern encryption with " +
                                   (useChaCha20 ? "ChaCha20-Poly1305" : "AES-GCM"));
                         } else if (isCurrentlyChaCha != useChaCha20) {
@@ -18,11 +18,15 @@ package com.epassafe.upm;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
 
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
+import android.app.ProgressDialog;
 import android.content.DialogInterface;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.Gravity;
@@ -33,6 +37,7 @@ import android.widget.EditText;
 import android.widget.Toast;
 
 import com.epassafe.upm.crypto.InvalidPasswordException;
+import com.epassafe.upm.crypto.KdfCalibrator;
 import com.epassafe.upm.database.PasswordDatabase;
 import com.epassafe.upm.database.ProblemReadingDatabaseFile;
 
@@ -76,36 +81,77 @@ public class CreateNewDatabase extends Activity implements OnClickListener {
             String resultsText = String.format(passwordTooShortResStr, MIN_PASSWORD_LENGTH);
             Toast.makeText(this, resultsText, Toast.LENGTH_SHORT).show();
         } else {
-            try {
-                // Create a new database and then launch the AccountsList activity
-                String password = password1.getText().toString();
-                final PasswordDatabase passwordDatabase = new PasswordDatabase(Utilities.getDatabaseFile(this), password.toCharArray());
-
-                new SaveDatabaseAsyncTask(this, new Callback() {
-                    @Override
-                    public void execute() {
-                        // Make the database available to the rest of the application by 
-                        // putting a reference to it on the application
-                        ((UPMApplication) getApplication()).setPasswordDatabase(passwordDatabase);
-
-                        setResult(RESULT_OK);
-                        finish();
-                    }
-                }).execute(passwordDatabase);
+            // Create a new database and then launch the AccountsList activity
+            new CreateDatabaseTask(password1.getText().toString().toCharArray()).execute();
+        }
+    }
 
+    /**
+     * Calibrates the key derivation for this device and then creates the
+     * database with it, both of which take too long for the UI thread.
+     */
+    private class CreateDatabaseTask extends AsyncTask<Void, Void, PasswordDatabase> {
+
+        private final char[] password;
+        private ProgressDialog progressDialog;
+
+        CreateDatabaseTask(char[] password) {
+            this.password = password;
+        }
+
+        @Override
+        protected void onPreExecute() {
+            progressDialog = ProgressDialog.show(CreateNewDatabase.this, "",
+                    getString(R.string.creating_database));
+        }
+
+        @Override
+        protected PasswordDatabase doInBackground(Void... params) {
+            try {
+                return new PasswordDatabase(Utilities.getDatabaseFile(CreateNewDatabase.this),
+                        password, false, KdfCalibrator.calibrate());
             } catch (IOException e) {
                 Log.e("CreateNewDatabase", "Error encountered while creating a new database", e);
-                showDialog(GENERIC_ERROR_DIALOG);
             } catch (GeneralSecurityException e) {
                 Log.e("CreateNewDatabase", "Error encountered while creating a new database", e);
-                showDialog(GENERIC_ERROR_DIALOG);
             } catch (ProblemReadingDatabaseFile e) {
                 Log.e("CreateNewDatabase", "Error encountered while creating a new database", e);
-                showDialog(GENERIC_ERROR_DIALOG);
             } catch (InvalidPasswordException e) {
                 Log.e("CreateNewDatabase", "Error encountered while creating a new database", e);
+            } finally {
+                Arrays.fill(password, '\0');
+            }
+            return null;
+        }
+
+        @SuppressWarnings("deprecation")
+        @Override
+        protected void onPostExecute(final PasswordDatabase passwordDatabase) {
+            progressDialog.dismiss();
+            if (passwordDatabase == null) {
                 showDialog(GENERIC_ERROR_DIALOG);
+                return;
             }
+
+            // Write the new database out straight away rather than waiting for more edits
+            DatabaseSaveScheduler saveScheduler = ((UPMApplication) getApplication()).getSaveScheduler();
+            saveScheduler.requestSave(passwordDatabase);
+            saveScheduler.flush().whenComplete(new BiConsumer<Void, Throwable>() {
+                @Override
+                public void accept(Void result, Throwable error) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            // Make the database available to the rest of the application by
+                            // putting a reference to it on the application
+                            ((UPMApplication) getApplication()).setPasswordDatabase(passwordDatabase);
+
+                            setResult(RESULT_OK);
+                            finish();
+                        }
+                    });
+                }
+            });
         }
     }
 
@@ -0,0 +1,208 @@
+/*
+ * Epassafe Password Manager
+ * Copyright (c) 2010-2026
+ *
+ * This file is part of Epassafe Password Manager.
+ *
+ * Epassafe Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Epassafe Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ */
+package com.epassafe.upm;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.Toast;
+
+import com.epassafe.upm.database.PasswordDatabase;
+
+/**
+ * Saves the database on a single background thread. Save requests made in
+ * quick succession are coalesced: each request restarts a short debounce
+ * delay and only the latest database is saved once it runs out, so a burst
+ * of edits results in a single write. The delay is capped so a steady stream
+ * of edits still gets saved regularly.
+ *
+ * Callers that need to know when their changes are on disk can observe the
+ * returned future, failures are also reported to the user with a toast.
+ */
+public class DatabaseSaveScheduler {
+
+    private static final String TAG = "DatabaseSaveScheduler";
+
+    /** How long to wait for further edits before saving. */
+    static final long DEBOUNCE_MS = 500;
+    /** The longest a save is put off by further edits. */
+    static final long MAX_DELAY_MS = 3000;
+
+    private final Context context;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "DatabaseSaver");
+        }
+    });
+    private final Runnable saveTask = new Runnable() {
+        @Override
+        public void run() {
+            runPendingSave();
+        }
+    };
+
+    private final Object lock = new Object();
+    // The latest save request that hasn't started yet
+    private PasswordDatabase pendingDatabase;
+    private CompletableFuture<Void> pendingFuture;
+    private ScheduledFuture<?> pendingTask;
+    private long firstRequestTime;
+
+
+    public DatabaseSaveScheduler(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+
+    /**
+     * Ask for the database to be saved. Nothing is written until no further
+     * requests have been made for DEBOUNCE_MS.
+     * @return A future completed once the changes made so far are saved
+     */
+    public CompletableFuture<Void> requestSave(PasswordDatabase database) {
+        synchronized (lock) {
+            long now = SystemClock.elapsedRealtime();
+            if (pendingFuture == null) {
+                pendingFuture = new CompletableFuture<Void>();
+                firstRequestTime = now;
+            }
+            pendingDatabase = database;
+
+            if (pendingTask != null) {
+                pendingTask.cancel(false);
+            }
+            long delay = Math.max(0, Math.min(DEBOUNCE_MS, firstRequestTime + MAX_DELAY_MS - now));
+            pendingTask = executor.schedule(saveTask, delay, TimeUnit.MILLISECONDS);
+            return pendingFuture;
+        }
+    }
+
+
+    /**
+     * Start any pending save straight away, for example because the app is
+     * going into the background or the database is being locked.
+     * @return A future completed once everything requested so far is saved
+     */
+    public CompletableFuture<Void> flush() {
+        CompletableFuture<Void> future;
+        synchronized (lock) {
+            if (pendingTask != null) {
+                pendingTask.cancel(false);
+                pendingTask = null;
+            }
+            future = pendingFuture;
+        }
+        // Runs after any save that's already in progress
+        CompletableFuture<Void> flushed = CompletableFuture.runAsync(saveTask, executor);
+        return future != null ? future : flushed;
+    }
+
+
+    /**
+     * Drop any pending save, for when the database file is about to be
+     * deleted or replaced and the edits waiting to be saved belong to the
+     * database being thrown away.
+     * @return A future completed once a save that had already started has
+     *         finished, after which nothing more is written
+     */
+    public CompletableFuture<Void> discard() {
+        CompletableFuture<Void> future;
+        synchronized (lock) {
+            if (pendingTask != null) {
+                pendingTask.cancel(false);
+                pendingTask = null;
+            }
+            pendingDatabase = null;
+            future = pendingFuture;
+            pendingFuture = null;
+        }
+        if (future != null) {
+            future.cancel(false);
+        }
+        // Runs after any save that's already in progress
+        return CompletableFuture.runAsync(saveTask, executor);
+    }
+
+
+    /**
+     * Fold the database journal into the database file on the save thread,
+     * after any pending save.
+     */
+    public CompletableFuture<Void> compactJournal(final PasswordDatabase database) {
+        flush();
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    database.compactJournal();
+                    future.complete(null);
+                } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                    Log.e(TAG, "Error compacting the database journal", e);
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
+
+    private void runPendingSave() {
+        PasswordDatabase database;
+        CompletableFuture<Void> future;
+        synchronized (lock) {
+            database = pendingDatabase;
+            future = pendingFuture;
+            pendingDatabase = null;
+            pendingFuture = null;
+            pendingTask = null;
+        }
+        if (database == null) {
+            // Already picked up by an earlier run
+            return;
+        }
+
+        try {
+            database.save();
+            future.complete(null);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            Log.e(TAG, e.getMessage(), e);
+            final String message = String.format(context.getString(R.string.problem_saving_db), e.getMessage());
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Toast.makeText(context, message, Toast.LENGTH_LONG).show();
+                }
+            });
+            future.completeExceptionally(e);
+        }
+    }
+
+}
@@ -45,6 +45,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.epassafe.upm.crypto.InvalidPasswordException;
+import com.epassafe.upm.crypto.KeySlots;
 import com.epassafe.upm.crypto.YubiKeyManager;
 import com.epassafe.upm.database.PasswordDatabase;
 import com.epassafe.upm.database.ProblemReadingDatabaseFile;
@@ -86,11 +87,8 @@ public class EnterMasterPassword extends Activity implements OnClickListener {
     public void onBackPressed()
     {
     	File fileOnSDCard = new File(getExternalFilesDir("database"), Utilities.AUTOMATIC_DATABASE_FILE);
-        File databaseFile = Utilities.getDatabaseFile(this);
-        if (((UPMApplication) getApplication()).copyFile(databaseFile, fileOnSDCard, this)) {
-            String message = String.format(getString(R.string.backup_complete), fileOnSDCard.getAbsolutePath());
-            UIUtilities.showToast(this, message, false);
-        }
+        // Made after any pending save, off the main thread, and reports how it went itself
+        ((UPMApplication) getApplication()).backupDatabase(this, fileOnSDCard);
         /* System.exit(0);  // Annoying Exit Bug */
         this.finishAffinity();              // Doesn't seem to fully exit but leaving to close tasks
         EnterMasterPassword.this.finish();  // TESTING for cleaner exit
@@ -122,6 +120,9 @@ public class EnterMasterPassword extends Activity implements OnClickListener {
             }
         });
 
+        // Read the database and load the crypto while the password is typed
+        UnlockPrewarmer.start(databaseFileToDecrypt);
+
         // YubiKey NFC setup
         yubiKeySection = findViewById(R.id.yubikey_section);
         yubiKeyStatus = findViewById(R.id.yubikey_status);
@@ -151,9 +152,10 @@ public class EnterMasterPassword extends Activity implements OnClickListener {
                     break;
             }
 
-            // Show "Lost YubiKey?" link if recovery file exists
+            // Show "Lost YubiKey?" link if there's a recovery file or recovery code key slot
             TextView lostKeyLink = findViewById(R.id.yubikey_lost_key);
-            if (lostKeyLink != null && YubiKeyManager.hasRecoveryFile(databaseFileToDecrypt)) {
+            if (lostKeyLink != null && (YubiKeyManager.hasRecoveryFile(databaseFileToDecrypt)
+                    || hasKeySlot(databaseFileToDecrypt, KeySlots.TYPE_RECOVERY_CODE))) {
                 lostKeyLink.setVisibility(View.VISIBLE);
                 lostKeyLink.setOnClickListener(new OnClickListener() {
                     @Override
@@ -580,9 +582,22 @@ public class EnterMasterPassword extends Activity implements OnClickListener {
             .show();
     }
 
+    /**
+     * @return true if the database has a key slot of the given type
+     */
+    private static boolean hasKeySlot(File dbFile, byte type) {
+        try {
+            KeySlots keySlots = PasswordDatabase.readKeySlots(dbFile);
+            return keySlots != null && keySlots.has(type);
+        } catch (Exception e) {
+            Log.w("EnterMasterPassword", "Couldn't read the key slots", e);
+            return false;
+        }
+    }
+
     /**
      * Background task to recover from a lost YubiKey using the recovery code.
-     * Decrypts recovery blob → reconstructs combined key → opens DB →
+     * Decrypts recovery blob (or the recovery code key slot) → opens DB →
      * re-encrypts with password only → deletes enrollment files.
      */
     private class RecoverWithCodeTask extends AsyncTask<Void, Void, Boolean> {
@@ -599,9 +614,19 @@ public class EnterMasterPassword extends Activity implements OnClickListener {
         protected Boolean doInBackground(Void... params) {
             try {
                 YubiKeyManager.UnlockMode mode = YubiKeyManager.loadMode(databaseFileToDecrypt);
-                char[] dbPassword;
-
-                if (mode == YubiKeyManager.UnlockMode.PASSWORD_REQUIRED) {
+                KeySlots keySlots = mode == YubiKeyManager.UnlockMode.PASSWORD_REQUIRED
+                        ? null : PasswordDatabase.readKeySlots(databaseFileToDecrypt);
+                char[] dbPassword = null;
+                byte[] dataKey = null;
+
+                if (keySlots != null && keySlots.has(KeySlots.TYPE_RECOVERY_CODE)) {
+                    // Modes 2/3 with key slots: the recovery code unwraps the data key
+                    dataKey = keySlots.unwrapWithRecoveryCode(recoveryCode);
+                    if (dataKey == null) {
+                        errorMessage = "Invalid recovery code";
+                        return false;
+                    }
+                } else if (mode == YubiKeyManager.UnlockMode.PASSWORD_REQUIRED) {
                     // Mode 1: recovery blob contains HMAC response
                     byte[] hmacResponse = YubiKeyManager.decryptRecoveryBlob(
                             databaseFileToDecrypt, password, recoveryCode);
@@ -630,19 +655,30 @@ public class EnterMasterPassword extends Activity implements OnClickListener {
                 }
 
                 // Open the database
-                decryptedPasswordDatabase = new PasswordDatabase(
-                        databaseFileToDecrypt, dbPassword);
+                if (dataKey != null) {
+                    decryptedPasswordDatabase = new PasswordDatabase(
+                            databaseFileToDecrypt, dataKey);
+                    Arrays.fill(dataKey, (byte) 0);
+                } else {
+                    decryptedPasswordDatabase = new PasswordDatabase(
+                            databaseFileToDecrypt, dbPassword);
+                    Arrays.fill(dbPassword, '\0');
+                }
 
                 // Re-encrypt with password only (remove YubiKey requirement)
                 if (password.length > 0) {
-                    decryptedPasswordDatabase.changePassword(password.clone());
+                    decryptedPasswordDatabase.changePassword(password.clone(),
+                            ChangeMasterPassword.calibrateKeyDerivation(decryptedPasswordDatabase));
+                    if (decryptedPasswordDatabase.isUsingKeySlots()) {
+                        decryptedPasswordDatabase.removeKeySlot(KeySlots.TYPE_YUBIKEY);
+                        decryptedPasswordDatabase.removeKeySlot(KeySlots.TYPE_RECOVERY_CODE);
+                    }
                 }
                 decryptedPasswordDatabase.save();
 
                 // Delete enrollment and recovery files
                 YubiKeyManager.removeAllEnrollment(databaseFileToDecrypt);
 
-                Arrays.fill(dbPassword, '\0');
                 return true;
             } catch (Exception e) {
                 Log.e("EnterMasterPassword", "Recovery failed", e);
@@ -747,8 +783,21 @@ public class EnterMasterPassword extends Activity implements OnClickListener {
             int errorCode = 0;
             try {
                 char[] effectivePassword = null;
+                byte[] dataKey = null;
                 try {
-                    YubiKeyManager.UnlockMode mode = YubiKeyManager.loadMode(databaseFileToDecrypt);
+                    UnlockPrewarmer prewarmed = UnlockPrewarmer.get(databaseFileToDecrypt);
+                    YubiKeyManager.UnlockMode mode = prewarmed != null
+                            ? prewarmed.getMode() : YubiKeyManager.loadMode(databaseFileToDecrypt);
+                    // Key slotted databases keep the YubiKey wrapped data key in their header,
+                    // which opens them directly rather than as a password through the KDF
+                    KeySlots keySlots = null;
+                    if (mode != YubiKeyManager.UnlockMode.PASSWORD_REQUIRED) {
+                        keySlots = prewarmed != null
+                                ? prewarmed.getKeySlots() : PasswordDatabase.readKeySlots(databaseFileToDecrypt);
+                        if (keySlots != null && !keySlots.has(KeySlots.TYPE_YUBIKEY)) {
+                            keySlots = null;
+                        }
+                    }
 
                     switch (mode) {
                         case PASSWORDLESS: {
@@ -756,6 +805,13 @@ public class EnterMasterPassword extends Activity implements OnClickListener {
                             if (yubiKeyResponse == null || yubiKeyResponse.length == 0) {
                                 return ERROR_INVALID_PASSWORD; // shouldn't happen, UI prevents it
                             }
+                            if (keySlots != null) {
+                                dataKey = keySlots.unwrapWithYubiKey(yubiKeyResponse);
+                                if (dataKey == null) {
+                                    return ERROR_INVALID_PASSWORD;
+                                }
+                                break;
+                            }
                             byte[] ykBlob = YubiKeyManager.loadYkWrappedKey(databaseFileToDecrypt);
                             if (ykBlob == null) {
                                 return ERROR_GENERIC_ERROR;
@@ -772,6 +828,12 @@ public class EnterMasterPassword extends Activity implements OnClickListener {
                         case PASSWORD_OR_YUBIKEY: {
                             if (yubiKeyResponse != null && yubiKeyResponse.length > 0) {
                                 // Path A: YubiKey tap — unwrap DB key
+                                if (keySlots != null) {
+                                    dataKey = keySlots.unwrapWithYubiKey(yubiKeyResponse);
+                                    if (dataKey != null) {
+                                        break;
+                                    }
+                                }
                                 byte[] ykBlob = YubiKeyManager.loadYkWrappedKey(databaseFileToDecrypt);
                                 if (ykBlob != null) {
                                     byte[] dbKey = YubiKeyManager.unwrapDbKeyWithYubiKey(ykBlob, yubiKeyResponse);
@@ -784,6 +846,11 @@ public class EnterMasterPassword extends Activity implements OnClickListener {
                             }
                             // Path B: Password only — unwrap DB key
                             if (password != null && password.length > 0) {
+                                if (keySlots != null) {
+                                    // The password slot wraps the data key itself
+                                    effectivePassword = password.clone();
+                                    break;
+                                }
                                 byte[] pwBlob = YubiKeyManager.loadPwWrappedKey(databaseFileToDecrypt);
                                 if (pwBlob != null) {
                                     byte[] dbKey = YubiKeyManager.unwrapDbKeyWithPassword(pwBlob, password);
@@ -815,12 +882,14 @@ public class EnterMasterPassword extends Activity implements OnClickListener {
                     }
 
                     // Attempt to decrypt the database
-                    decryptedPasswordDatabase =
-                            new PasswordDatabase(databaseFileToDecrypt, effectivePassword);
+                    decryptedPasswordDatabase = dataKey != null
+                            ? new PasswordDatabase(databaseFileToDecrypt, dataKey)
+                            : new PasswordDatabase(databaseFileToDecrypt, effectivePassword);
                     passwordProcessed = true;
 
                 } finally {
                     if (effectivePassword != null) Arrays.fill(effectivePassword, '\0');
+                    if (dataKey != null) Arrays.fill(dataKey, (byte) 0);
                     if (yubiKeyResponse != null) Arrays.fill(yubiKeyResponse, (byte) 0);
                 }
             } catch (InvalidPasswordException e) {
@@ -26,6 +26,8 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Environment;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
@@ -33,11 +35,14 @@ import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.ArrayAdapter;
+import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import java.io.File;
+import java.util.ArrayList;
+
+
 /* END */ 
 
 public class FullAccountList extends AccountsList {
@@ -55,23 +60,63 @@ public class FullAccountList extends AccountsList {
     private static final int REQ_CODE_PICK_RESTORE_FILE = 100;
     private Uri pendingRestoreUri;
 
+    private EditText filterField;
+    private AccountFilter accountFilter;
+    private AccountListAdapter accountsAdapter;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.main);
         registerForContextMenu(getListView());
+
+        accountsAdapter = new AccountListAdapter(getListView(), true);
+        setListAdapter(accountsAdapter);
+        getListView().setFastScrollEnabled(true);
+
+        accountFilter = new AccountFilter(new AccountFilter.Listener() {
+            @Override
+            public void onAccountsFiltered(String query, ArrayList<String> accountNames) {
+                showAccounts(accountNames.toArray(new String[accountNames.size()]), true);
+            }
+        });
+        filterField = findViewById(R.id.account_filter);
+        filterField.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                populateAccountList();
+            }
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // The one place the list is filled in: this runs after onCreate(), after
+        // returning from an edit and after accounts have been edited from
+        // another list, such as the search results
         populateAccountList();
     }
+
+    @Override
+    protected void onDestroy() {
+        accountFilter.shutdown();
+        accountsAdapter.shutdown();
+        super.onDestroy();
+    }
     
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent intent) {
+        // Edited accounts are picked up by onResume(), which follows this
         switch(requestCode) {
-            case AddEditAccount.EDIT_ACCOUNT_REQUEST_CODE:
-            case ViewAccountDetails.VIEW_ACCOUNT_REQUEST_CODE:
-                if (resultCode == AddEditAccount.EDIT_ACCOUNT_RESULT_CODE_TRUE) {
-                    populateAccountList();
-                }
-                break;
             case REQ_CODE_PICK_RESTORE_FILE:
                 if (resultCode == RESULT_OK && intent != null && intent.getData() != null) {
                     pendingRestoreUri = intent.getData();
@@ -88,11 +133,23 @@ public class FullAccountList extends AccountsList {
             EnterMasterPassword.databaseFileToDecrypt = Utilities.getDatabaseFile(this);
             setResult(RESULT_ENTER_PW);
             finish();
+        } else if (filterField.length() > 0) {
+            // The list is replaced once the filter has caught up
+            accountFilter.filter(getPasswordDatabase(), filterField.getText().toString());
         } else {
-            setListAdapter(new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1, getPasswordDatabase().getAccountNames()));
+            accountFilter.cancel();
+            showAccounts(getPasswordDatabase().getSortedNames().toArray(), false);
         }
     }
 
+    private void showAccounts(String[] accountNames, boolean filtered) {
+        TextView emptyView = findViewById(android.R.id.empty);
+        emptyView.setText(filtered ? R.string.no_accounts_found : R.string.no_accounts);
+        // Filtered names are sorted too, so both share the one adapter and
+        // only the rows that differ change
+        accountsAdapter.submit(accountNames);
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         super.onCreateOptionsMenu(menu);   
@@ -314,23 +371,19 @@ public class FullAccountList extends AccountsList {
     }
 
     private void deleteDatabase() {
-        Utilities.getDatabaseFile(this).delete();
-        Utilities.setDatabaseFileName(null, this);
+        // Drops any edits waiting to be saved so they can't recreate the file
+        ((UPMApplication) getApplication()).deleteDatabase(this);
     }
 
     private void backupDatabase() {
         File fileOnSDCard = new File(getExternalFilesDir("database"), Utilities.DEFAULT_DATABASE_FILE);
-        File databaseFile = Utilities.getDatabaseFile(this);
-        if (((UPMApplication) getApplication()).copyFile(databaseFile, fileOnSDCard, this)) {
-            String message = String.format(getString(R.string.backup_complete), fileOnSDCard.getAbsolutePath());
-            UIUtilities.showToast(this, message, false);
-        }
+        // Saves any pending edits first and reports how it went itself
+        ((UPMApplication) getApplication()).backupDatabase(this, fileOnSDCard);
     }
 
     private void backupToDownloads() {
-        if (((UPMApplication) getApplication()).backupToDownloads(this)) {
-            UIUtilities.showToast(this, getString(R.string.backup_downloads_complete), false);
-        }
+        // Reports how it went itself once the backup has been written
+        ((UPMApplication) getApplication()).backupToDownloads(this);
     }
 
 }
@@ -17,19 +17,48 @@
 package com.epassafe.upm;
 
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import android.app.SearchManager;
 import android.content.Intent;
 import android.os.Bundle;
-import android.widget.ArrayAdapter;
+import android.view.View;
+
+import com.epassafe.upm.database.FuzzyMatcher;
+import com.epassafe.upm.database.PasswordDatabase;
 
 public class SearchResults extends AccountsList {
 
+    private AccountListAdapter resultsAdapter;
+    private View incompleteNotice;
+    private final ExecutorService searchExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "SearchResults");
+        }
+    });
+    // Bumped for every search, only the latest one's results are shown
+    private int searchGeneration;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.search_results);
         registerForContextMenu(getListView());
+        // Results are ranked rather than sorted so there are no sections
+        resultsAdapter = new AccountListAdapter(getListView(), false);
+        setListAdapter(resultsAdapter);
+        incompleteNotice = findViewById(R.id.search_incomplete);
+    }
+
+    @Override
+    protected void onDestroy() {
+        searchGeneration++;
+        searchExecutor.shutdownNow();
+        resultsAdapter.shutdown();
+        super.onDestroy();
     }
 
     @Override
@@ -58,19 +87,30 @@ public class SearchResults extends AccountsList {
         }
     }
 
-    private void filterAccountsList(String textToFilterOn) {
-        ArrayList<String> allAccountNames = getPasswordDatabase().getAccountNames(); 
-        ArrayList<String> filteredAccountNames = new ArrayList<String>();
-        String textToFilterOnLC = textToFilterOn.toLowerCase();
-        
-        // Loop through all the accounts and pick out those that match the search string
-        for (String accountName : allAccountNames) {
-            if (accountName.toLowerCase().indexOf(textToFilterOnLC) > -1) {
-                filteredAccountNames.add(accountName);
+    private void filterAccountsList(final String textToFilterOn) {
+        final int generation = ++searchGeneration;
+        final PasswordDatabase database = getPasswordDatabase();
+        searchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // The first search builds the index, which is why it's done here.
+                // Matches on any of the name, user ID, URL and notes, best match first
+                final FuzzyMatcher.Result result = new FuzzyMatcher(database.getSearchIndex()).match(textToFilterOn);
+                ArrayList<String> filteredAccountNames = result.getNames();
+                final String[] accountNames = filteredAccountNames.toArray(new String[filteredAccountNames.size()]);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == searchGeneration) {
+                            resultsAdapter.submit(accountNames);
+                            // Every account containing the query is shown, but
+                            // not every account was looked at for close matches
+                            incompleteNotice.setVisibility(result.isComplete() ? View.GONE : View.VISIBLE);
+                        }
+                    }
+                });
             }
-        }
-
-        setListAdapter(new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1, filteredAccountNames));
+        });
     }
 
 }
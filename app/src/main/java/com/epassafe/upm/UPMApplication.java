@@ -23,6 +23,7 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Environment;
 import android.provider.MediaStore;
 import android.util.Log;
@@ -31,6 +32,7 @@ import android.widget.Toast;
 import androidx.core.view.WindowCompat;
 import androidx.core.view.WindowInsetsControllerCompat;
 
+import com.epassafe.upm.database.DatabaseJournal;
 import com.epassafe.upm.database.PasswordDatabase;
 
 import java.io.File;
@@ -40,6 +42,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
 /**
  * This class replaces the regular Application class in the application and
@@ -48,10 +52,12 @@ import java.nio.channels.FileChannel;
 public class UPMApplication extends Application {
 
     private PasswordDatabase passwordDatabase;
+    private DatabaseSaveScheduler saveScheduler;
 
     @Override
     public void onCreate() {
         super.onCreate();
+        saveScheduler = new DatabaseSaveScheduler(this);
         // Enable edge-to-edge display for backward compatibility with Android versions before 15
         // This is needed per Google Play Store recommendation for apps targeting SDK 35
     }
@@ -73,60 +79,72 @@ public class UPMApplication extends Application {
     }
 
     public void setPasswordDatabase(PasswordDatabase passwordDatabase) {
+        if (this.passwordDatabase != null && this.passwordDatabase != passwordDatabase) {
+            // Write out any edits still waiting to be saved before the database is swapped
+            saveScheduler.flush();
+        }
         this.passwordDatabase = passwordDatabase;
     }
 
+    public DatabaseSaveScheduler getSaveScheduler() {
+        return saveScheduler;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            // The app has gone into the background, save any pending edits
+            // now as the process may be killed
+            saveScheduler.flush();
+        }
+    }
+
     public PasswordDatabase getPasswordDatabase() {
         return passwordDatabase;
     }
 
     protected boolean copyFile(File source, File dest, Activity activity) {
-        boolean successful = false;
-
-        FileChannel sourceChannel = null;
-        FileChannel destinationChannel = null;
-        FileInputStream is = null;
-        FileOutputStream os = null;
         try {
-            is = new FileInputStream(source);
-            sourceChannel = is.getChannel();
-
-            File destFile = null;
-            if (dest.isDirectory()) {
-                destFile = new File(dest, source.getName());
-            } else {
-                destFile = dest;
-            }
-
-            os = new FileOutputStream(destFile);
-            destinationChannel = os.getChannel();
-            destinationChannel.transferFrom(sourceChannel, 0, sourceChannel.size());
-
-            successful=true;
+            copyDatabaseFile(source, dest);
+            return true;
         } catch (IOException e) {
             Log.e(activity.getClass().getName(), getString(R.string.file_problem), e);
             Toast.makeText(activity, R.string.file_problem, Toast.LENGTH_LONG).show();
-        } finally {
-            try {
-                if (sourceChannel != null) {
-                    sourceChannel.close();
-                }
-                if (is != null) {
-                    is.close();
-                }
-                if (destinationChannel != null) {
-                    destinationChannel.close();
-                }
-                if (os != null) {
-                    os.close();
-                }
-            } catch (IOException e) {
-                Log.e(activity.getClass().getName(), getString(R.string.file_problem), e);
-                Toast.makeText(activity, R.string.file_problem, Toast.LENGTH_LONG).show();
-            }
+            return false;
         }
+    }
 
-        return successful;
+    /**
+     * Copy a database file and its journal, into <code>dest</code> if it's a
+     * directory.
+     */
+    private void copyDatabaseFile(File source, File dest) throws IOException {
+        File destFile = dest.isDirectory() ? new File(dest, source.getName()) : dest;
+        try (FileInputStream is = new FileInputStream(source);
+             FileOutputStream os = new FileOutputStream(destFile)) {
+            FileChannel sourceChannel = is.getChannel();
+            os.getChannel().transferFrom(sourceChannel, 0, sourceChannel.size());
+        }
+        copyJournal(source, destFile);
+    }
+
+    /**
+     * Copy the journal that goes with a database file, or remove the journal
+     * at the destination if the source doesn't have one so a stale journal
+     * isn't applied to the copied database.
+     */
+    private void copyJournal(File source, File dest) throws IOException {
+        File sourceJournal = DatabaseJournal.getJournalFile(source);
+        File destJournal = DatabaseJournal.getJournalFile(dest);
+        if (!sourceJournal.exists()) {
+            destJournal.delete();
+            return;
+        }
+        try (FileInputStream is = new FileInputStream(sourceJournal);
+             FileOutputStream os = new FileOutputStream(destJournal)) {
+            os.getChannel().transferFrom(is.getChannel(), 0, is.getChannel().size());
+        }
     }
 
     protected void restoreDatabase(Activity activity) {
@@ -137,23 +155,105 @@ public class UPMApplication extends Application {
         ((UPMApplication) activity.getApplication()).copyFile(fileOnSDCard, databaseFile, activity);
     }
 
+    /**
+     * Delete the database file. The open database is closed first, edits to
+     * it still waiting to be saved are dropped and a save that's already
+     * writing is waited for so it can't recreate the file or land on top of
+     * one restored in its place.
+     */
     protected void deleteDatabase(Activity activity) {
+        passwordDatabase = null;
+        saveScheduler.discard().join();
         Utilities.getDatabaseFile(activity).delete();
+        DatabaseJournal.delete(Utilities.getDatabaseFile(activity));
         Utilities.setDatabaseFileName(null, activity);
     }
 
+    /**
+     * Backup the database to a file, reported with a toast once it's done.
+     * Like backupToDownloads() any pending edits are saved and journaled
+     * changes folded in on the save thread first, then the copy is made on a
+     * background thread.
+     */
+    protected void backupDatabase(final Activity activity, final File backupFile) {
+        final File databaseFile = Utilities.getDatabaseFile(activity);
+        savedDatabase().whenCompleteAsync(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void result, Throwable error) {
+                boolean copied = false;
+                if (error != null) {
+                    Log.e("UPMApplication", "Error saving database before backup", error);
+                } else {
+                    try {
+                        copyDatabaseFile(databaseFile, backupFile);
+                        copied = true;
+                    } catch (IOException e) {
+                        Log.e("UPMApplication", getString(R.string.file_problem), e);
+                    }
+                }
+                final boolean successful = copied;
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (successful) {
+                            UIUtilities.showToast(activity, String.format(getString(R.string.backup_complete),
+                                    backupFile.getAbsolutePath()), false);
+                        } else {
+                            UIUtilities.showToast(activity, R.string.file_problem, true);
+                        }
+                    }
+                });
+            }
+        }, AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * @return A future completed once the pending edits are saved and, when
+     *         a database is open, its journal is folded into the database file
+     */
+    private CompletableFuture<Void> savedDatabase() {
+        return passwordDatabase != null ? saveScheduler.compactJournal(passwordDatabase) : saveScheduler.flush();
+    }
+
     /**
      * Backup the database to the public Downloads folder using MediaStore.
      * No special permissions needed on Android 10+.
      * Uses IS_PENDING to prevent partially-written files from being visible.
+     *
+     * Any journaled changes are folded into the database on the save thread
+     * first and the copy is made on a background thread, the outcome is
+     * reported with a toast once it's done.
      */
-    protected boolean backupToDownloads(Activity activity) {
-        File databaseFile = Utilities.getDatabaseFile(activity);
+    protected void backupToDownloads(final Activity activity) {
+        final File databaseFile = Utilities.getDatabaseFile(activity);
         if (!databaseFile.exists()) {
             Toast.makeText(activity, R.string.file_problem, Toast.LENGTH_LONG).show();
-            return false;
+            return;
         }
 
+        // The backup is a single file so fold any journaled changes into the database first
+        savedDatabase().whenCompleteAsync(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void result, Throwable error) {
+                final boolean successful;
+                if (error != null) {
+                    Log.e("UPMApplication", "Error saving database before backup", error);
+                    successful = false;
+                } else {
+                    successful = copyToDownloads(activity, databaseFile);
+                }
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        UIUtilities.showToast(activity, successful ? R.string.backup_downloads_complete
+                                : R.string.backup_downloads_failed, !successful);
+                    }
+                });
+            }
+        }, AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private boolean copyToDownloads(Activity activity, File databaseFile) {
         ContentResolver resolver = activity.getContentResolver();
         String fileName = databaseFile.getName();
 
@@ -171,7 +271,6 @@ public class UPMApplication extends Application {
 
         Uri uri = resolver.insert(MediaStore.Downloads.EXTERNAL_CONTENT_URI, values);
         if (uri == null) {
-            Toast.makeText(activity, R.string.backup_downloads_failed, Toast.LENGTH_LONG).show();
             return false;
         }
 
@@ -179,7 +278,6 @@ public class UPMApplication extends Application {
              OutputStream os = resolver.openOutputStream(uri)) {
             if (os == null) {
                 resolver.delete(uri, null, null);
-                Toast.makeText(activity, R.string.backup_downloads_failed, Toast.LENGTH_LONG).show();
                 return false;
             }
             byte[] buffer = new byte[8192];
@@ -196,7 +294,6 @@ public class UPMApplication extends Application {
             Log.e("UPMApplication", "Error backing up to Downloads", e);
             // Clean up the pending entry on failure
             resolver.delete(uri, null, null);
-            Toast.makeText(activity, R.string.backup_downloads_failed, Toast.LENGTH_LONG).show();
             return false;
         }
     }
@@ -0,0 +1,193 @@
+/*
+ * Epassafe Password Manager
+ * Copyright (c) 2010-2026
+ *
+ * This file is part of Epassafe Password Manager.
+ *
+ * Epassafe Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Epassafe Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ */
+package com.epassafe.upm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import android.os.AsyncTask;
+import android.util.Log;
+
+import com.epassafe.upm.crypto.Argon2KeyDerivation;
+import com.epassafe.upm.crypto.CryptoPrimitives;
+import com.epassafe.upm.crypto.EncryptionService;
+import com.epassafe.upm.crypto.KeySlots;
+import com.epassafe.upm.crypto.ModernEncryptionService;
+import com.epassafe.upm.crypto.Pbkdf2KeyDerivation;
+import com.epassafe.upm.crypto.YubiKeyManager;
+import com.epassafe.upm.database.PasswordDatabase;
+import com.epassafe.upm.database.ProblemReadingDatabaseFile;
+
+/**
+ * Does the work of unlocking that doesn't need the password while the user
+ * is still typing it. The YubiKey sidecar and the key slot header are read
+ * and parsed, the rest of the database file is read into the page cache, and
+ * the crypto providers and KDF classes are loaded, so opening the database
+ * only pays for the key derivation and decryption.
+ *
+ * Cipher and Mac instances are cached per thread, the decrypting thread still
+ * gets its own but the provider lookup behind it is already done.
+ */
+public final class UnlockPrewarmer {
+
+    private static final String TAG = "UnlockPrewarmer";
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static FutureTask<UnlockPrewarmer> pending;
+    private static File pendingFile;
+
+    private final File databaseFile;
+    private final long length;
+    private final long lastModified;
+    private final long sidecarLastModified;
+    private YubiKeyManager.UnlockMode mode;
+    private KeySlots keySlots;
+
+
+    private UnlockPrewarmer(File databaseFile) {
+        this.databaseFile = databaseFile;
+        this.length = databaseFile.length();
+        this.lastModified = databaseFile.lastModified();
+        this.sidecarLastModified = YubiKeyManager.getSidecarFile(databaseFile).lastModified();
+    }
+
+
+    /**
+     * Starts warming up the unlock of the given database in the background,
+     * unless that's already under way.
+     */
+    public static synchronized void start(final File databaseFile) {
+        if (databaseFile == null) {
+            return;
+        }
+        if (pending != null && !pending.isDone() && databaseFile.equals(pendingFile)) {
+            return;
+        }
+        pendingFile = databaseFile;
+        pending = new FutureTask<UnlockPrewarmer>(new Callable<UnlockPrewarmer>() {
+            @Override
+            public UnlockPrewarmer call() throws Exception {
+                UnlockPrewarmer prewarmer = new UnlockPrewarmer(databaseFile);
+                prewarmer.warm();
+                return prewarmer;
+            }
+        });
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(pending);
+    }
+
+
+    /**
+     * Waits for the warm up of the given database to finish. The result is
+     * kept so a retry after a wrong password can use it again.
+     * @return The parsed state, or null if the database wasn't warmed up,
+     *         the warm up failed or the database or its YubiKey enrollment
+     *         has changed since
+     */
+    public static UnlockPrewarmer get(File databaseFile) {
+        FutureTask<UnlockPrewarmer> task;
+        synchronized (UnlockPrewarmer.class) {
+            if (pending == null || databaseFile == null || !databaseFile.equals(pendingFile)) {
+                return null;
+            }
+            task = pending;
+        }
+        try {
+            UnlockPrewarmer prewarmer = task.get();
+            return prewarmer.isCurrent() ? prewarmer : null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Couldn't warm up the unlock of " + databaseFile, e.getCause());
+            return null;
+        }
+    }
+
+
+    public YubiKeyManager.UnlockMode getMode() {
+        return mode;
+    }
+
+
+    /**
+     * @return The key slots from the database header, or null if the
+     *         database doesn't use key slots
+     */
+    public KeySlots getKeySlots() {
+        return keySlots;
+    }
+
+
+    private boolean isCurrent() {
+        return databaseFile.length() == length && databaseFile.lastModified() == lastModified
+                && YubiKeyManager.getSidecarFile(databaseFile).lastModified() == sidecarLastModified;
+    }
+
+
+    private void warm() throws IOException, ProblemReadingDatabaseFile {
+        mode = YubiKeyManager.loadMode(databaseFile);
+        keySlots = PasswordDatabase.readKeySlots(databaseFile);
+        readThrough();
+        warmCrypto();
+    }
+
+
+    private void readThrough() throws IOException {
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        FileInputStream in = new FileInputStream(databaseFile);
+        try {
+            while (in.read(buffer) != -1) {
+                // Only here to bring the file into the page cache
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+
+    private static void warmCrypto() {
+        try {
+            CryptoPrimitives.aesGcm();
+            CryptoPrimitives.hmacSha256();
+        } catch (GeneralSecurityException e) {
+            Log.w(TAG, "Couldn't load AES-GCM", e);
+        }
+        try {
+            CryptoPrimitives.cipher(ModernEncryptionService.CHACHA20_POLY1305);
+        } catch (GeneralSecurityException e) {
+            Log.i(TAG, "ChaCha20-Poly1305 isn't available", e);
+        }
+
+        // Tiny derivations load the KDF classes without costing anything noticeable
+        char[] password = { 'x' };
+        byte[] salt = new byte[16];
+        try {
+            new Argon2KeyDerivation(8, 1, 1).deriveKey(password, salt, ModernEncryptionService.HASH_LENGTH);
+            new Pbkdf2KeyDerivation(1).deriveKey(password, salt, ModernEncryptionService.HASH_LENGTH);
+            EncryptionService.createSecretKey(password);
+        } catch (GeneralSecurityException e) {
+            Log.w(TAG, "Couldn't load the key derivations", e);
+        }
+    }
+
+}
@@ -114,19 +114,15 @@ public class ViewAccountDetails extends Activity {
                 .setPositiveButton(R.string.yes, new DialogInterface.OnClickListener() {
                     public void onClick(DialogInterface dialog, int id) {
                         getPasswordDatabase().deleteAccount(account.getAccountName());
-                        final String accountName = account.getAccountName();
-
-                        new SaveDatabaseAsyncTask(ViewAccountDetails.this, new Callback() {
-                            @Override
-                            public void execute() {
-                                String message = String.format(getString(R.string.account_deleted), accountName);
-                                Toast.makeText(ViewAccountDetails.this, message, Toast.LENGTH_SHORT).show();
-                                // Set this flag so that when we're returned to the FullAccountList
-                                // activity the list is refreshed
-                                ViewAccountDetails.this.setResult(AddEditAccount.EDIT_ACCOUNT_RESULT_CODE_TRUE);
-                                finish();
-                            }
-                        }).execute(getPasswordDatabase());
+                        String accountName = account.getAccountName();
+                        ((UPMApplication) getApplication()).getSaveScheduler().requestSave(getPasswordDatabase());
+
+                        String message = String.format(getString(R.string.account_deleted), accountName);
+                        Toast.makeText(ViewAccountDetails.this, message, Toast.LENGTH_SHORT).show();
+                        // Set this flag so that when we're returned to the FullAccountList
+                        // activity the list is refreshed
+                        ViewAccountDetails.this.setResult(AddEditAccount.EDIT_ACCOUNT_RESULT_CODE_TRUE);
+                        finish();
                     }
                 })
                 .setNegativeButton(R.string.no, new DialogInterface.OnClickListener() {
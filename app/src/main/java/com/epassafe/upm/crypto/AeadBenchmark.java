@@ -0,0 +1,156 @@
+/*
+ * Epassafe Password Manager
+ * Copyright (c) 2010-2026
+ *
+ * This file is part of Epassafe Password Manager.
+ *
+ * Epassafe Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Epassafe Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ */
+package com.epassafe.upm.crypto;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.util.Log;
+
+/**
+ * Measures how quickly this device encrypts with AES-GCM and with
+ * ChaCha20-Poly1305 so new databases can use the quicker one. Devices with
+ * AES instructions favour AES-GCM, those without are often several times
+ * quicker with ChaCha20.
+ *
+ * The measurement is made once per process and takes around 100ms, so the
+ * first call to get() mustn't be on the UI thread.
+ */
+public final class AeadBenchmark {
+
+    private static final String TAG = "AeadBenchmark";
+
+    // A chunk is what a database is encrypted in
+    static final int PAYLOAD_SIZE = ChunkedAead.CHUNK_SIZE;
+    private static final long MEASURE_NANOS = 40L * 1000 * 1000;
+    private static final int MIN_RUNS = 3;
+
+    // AES-GCM is kept unless ChaCha20 is clearly quicker, being supported everywhere
+    private static final double CHACHA20_MARGIN = 1.2;
+
+    private static volatile Result result;
+
+
+    /**
+     * Encryption throughput in bytes per second, 0 where the algorithm isn't
+     * supported on this device.
+     */
+    public static final class Result {
+
+        private final double aesGcm;
+        private final double chaCha20;
+
+        Result(double aesGcm, double chaCha20) {
+            this.aesGcm = aesGcm;
+            this.chaCha20 = chaCha20;
+        }
+
+        public double getAesGcmThroughput() {
+            return aesGcm;
+        }
+
+        public double getChaCha20Throughput() {
+            return chaCha20;
+        }
+
+        public boolean preferChaCha20() {
+            return chaCha20 > aesGcm * CHACHA20_MARGIN;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("AES-GCM %.0f MB/s, ChaCha20-Poly1305 %.0f MB/s",
+                    aesGcm / 1e6, chaCha20 / 1e6);
+        }
+    }
+
+
+    private AeadBenchmark() {
+    }
+
+
+    /**
+     * The measurements for this device, made on the first call.
+     */
+    public static Result get() {
+        Result measured = result;
+        if (measured == null) {
+            synchronized (AeadBenchmark.class) {
+                measured = result;
+                if (measured == null) {
+                    measured = new Result(measure(ModernEncryptionService.AES_GCM),
+                            measure(ModernEncryptionService.CHACHA20_POLY1305));
+                    Log.i(TAG, measured.toString());
+                    result = measured;
+                }
+            }
+        }
+        return measured;
+    }
+
+
+    /**
+     * @return The bytes per second the transformation encrypts at, or 0 if
+     *         it doesn't work on this device
+     */
+    static double measure(String transformation) {
+        SecretKey key = new SecretKeySpec(CryptoPrimitives.randomBytes(ModernEncryptionService.HASH_LENGTH), "AES");
+        byte[] payload = new byte[PAYLOAD_SIZE];
+        byte[] output = new byte[PAYLOAD_SIZE + ModernEncryptionService.GCM_TAG_LENGTH];
+        byte[] iv = new byte[ModernEncryptionService.GCM_IV_LENGTH];
+        try {
+            Cipher cipher = CryptoPrimitives.cipher(transformation);
+
+            // Check a round trip works with the parameters ModernEncryptionService
+            // uses, which also warms the cipher up
+            encrypt(cipher, key, iv, 0, payload, output);
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(ModernEncryptionService.GCM_TAG_LENGTH * 8, iv));
+            if (!Arrays.equals(payload, cipher.doFinal(output))) {
+                return 0;
+            }
+
+            int runs = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                encrypt(cipher, key, iv, ++runs, payload, output);
+                elapsed = System.nanoTime() - start;
+            } while (runs < MIN_RUNS || elapsed < MEASURE_NANOS);
+            return (double) runs * PAYLOAD_SIZE * 1e9 / Math.max(1, elapsed);
+        } catch (GeneralSecurityException e) {
+            Log.i(TAG, transformation + " isn't available", e);
+            return 0;
+        }
+    }
+
+
+    private static void encrypt(Cipher cipher, SecretKey key, byte[] iv, int run, byte[] payload, byte[] output)
+            throws GeneralSecurityException {
+        // GCM refuses to reuse a key and IV for encryption
+        iv[0] = (byte) run;
+        iv[1] = (byte) (run >>> 8);
+        iv[2] = (byte) (run >>> 16);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(ModernEncryptionService.GCM_TAG_LENGTH * 8, iv));
+        cipher.doFinal(payload, 0, payload.length, output, 0);
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Epassafe Password Manager
+ * Copyright (c) 2010-2026
+ *
+ * This file is part of Epassafe Password Manager.
+ *
+ * Epassafe Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Epassafe Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ */
+package com.epassafe.upm.crypto;
+
+import java.nio.ByteBuffer;
+
+import org.bouncycastle.crypto.generators.Argon2BytesGenerator;
+import org.bouncycastle.crypto.params.Argon2Parameters;
+
+/**
+ * Argon2id (version 1.3), using the Bouncy Castle implementation. Being
+ * memory hard it costs an attacker far more per guess than PBKDF2 does for
+ * the same unlock time.
+ */
+public final class Argon2KeyDerivation extends KeyDerivation {
+
+    // The OWASP minimum, m=19 MiB, t=2, p=1
+    public static final int DEFAULT_MEMORY_KIB = 19 * 1024;
+    public static final int DEFAULT_ITERATIONS = 2;
+    public static final int DEFAULT_PARALLELISM = 1;
+
+    // Guards against a header that would exhaust memory or keep unlock busy.
+    // The parameters are read before anything is authenticated, so the memory
+    // has to be something an app heap can actually allocate. It leaves room
+    // above what KdfCalibrator picks for vaults set up on a roomier device.
+    static final int MAX_MEMORY_KIB = 2 * KdfCalibrator.MAX_MEMORY_KIB;
+    static final int MAX_ITERATIONS = 1000;
+    static final int MAX_PARALLELISM = 64;
+
+    public static final Argon2KeyDerivation DEFAULT =
+            new Argon2KeyDerivation(DEFAULT_MEMORY_KIB, DEFAULT_ITERATIONS, DEFAULT_PARALLELISM);
+
+    private final int memoryKib;
+    private final int iterations;
+    private final int parallelism;
+
+
+    public Argon2KeyDerivation(int memoryKib, int iterations, int parallelism) {
+        if (parallelism < 1 || parallelism > MAX_PARALLELISM) {
+            throw new IllegalArgumentException("Invalid Argon2 parallelism " + parallelism);
+        }
+        if (iterations < 1 || iterations > MAX_ITERATIONS) {
+            throw new IllegalArgumentException("Invalid Argon2 iteration count " + iterations);
+        }
+        // Argon2 needs at least 8 KiB per lane
+        if (memoryKib < 8 * parallelism || memoryKib > MAX_MEMORY_KIB) {
+            throw new IllegalArgumentException("Invalid Argon2 memory size " + memoryKib);
+        }
+        this.memoryKib = memoryKib;
+        this.iterations = iterations;
+        this.parallelism = parallelism;
+    }
+
+
+    @Override
+    public byte[] deriveKey(char[] password, byte[] salt, int length) {
+        Argon2Parameters parameters = new Argon2Parameters.Builder(Argon2Parameters.ARGON2_id)
+                .withVersion(Argon2Parameters.ARGON2_VERSION_13)
+                .withSalt(salt)
+                .withMemoryAsKB(memoryKib)
+                .withIterations(iterations)
+                .withParallelism(parallelism)
+                .build();
+        Argon2BytesGenerator generator = new Argon2BytesGenerator();
+        generator.init(parameters);
+        byte[] key = new byte[length];
+        generator.generateBytes(password, key);
+        return key;
+    }
+
+
+    @Override
+    public byte getType() {
+        return TYPE_ARGON2ID;
+    }
+
+
+    @Override
+    int getParametersLength() {
+        return 4 + 4 + 1;
+    }
+
+
+    @Override
+    void writeParameters(ByteBuffer buffer) {
+        buffer.putInt(memoryKib);
+        buffer.putInt(iterations);
+        buffer.put((byte) parallelism);
+    }
+
+
+    public int getMemoryKib() {
+        return memoryKib;
+    }
+
+
+    public int getIterations() {
+        return iterations;
+    }
+
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+
+    @Override
+    public String toString() {
+        return "Argon2id m=" + memoryKib + "KiB t=" + iterations + " p=" + parallelism;
+    }
+
+}
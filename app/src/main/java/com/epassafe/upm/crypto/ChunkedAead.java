@@ -0,0 +1,269 @@
+/*
+ * Epassafe Password Manager
+ * Copyright (c) 2010-2026
+ *
+ * This file is part of Epassafe Password Manager.
+ *
+ * Epassafe Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Epassafe Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ */
+package com.epassafe.upm.crypto;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Chunked AEAD encryption following the STREAM construction. The plaintext
+ * is split into CHUNK_SIZE pieces which are encrypted as separate messages,
+ * each with its own authentication tag. The nonce of every chunk is made up of
+ * a random prefix, the chunk counter and a flag marking the final chunk, so
+ * chunks can't be reordered, dropped or the stream truncated without the
+ * decryption failing.
+ *
+ * Layout: NONCE_PREFIX [CHUNK_0 TAG_0] [CHUNK_1 TAG_1] ... [CHUNK_N TAG_N]
+ *   Every chunk but the last holds exactly CHUNK_SIZE plaintext bytes, the
+ *   last holds between 0 and CHUNK_SIZE bytes.
+ *   Chunk nonce = NONCE_PREFIX (7 bytes) COUNTER (4 bytes, big endian) LAST (1 byte)
+ *
+ * As the chunk boundaries follow from the ciphertext length alone the chunks
+ * can be decrypted independently, which is done in parallel on the common
+ * fork-join pool.
+ */
+final class ChunkedAead {
+
+    /** Plaintext bytes per chunk. */
+    static final int CHUNK_SIZE = 64 * 1024;
+    static final int NONCE_PREFIX_LENGTH = 7;
+
+    private static final int TAG_LENGTH = ModernEncryptionService.GCM_TAG_LENGTH;
+    private static final int NONCE_LENGTH = NONCE_PREFIX_LENGTH + 4 + 1;
+    private static final int ENCRYPTED_CHUNK_SIZE = CHUNK_SIZE + TAG_LENGTH;
+
+    // Chunks decrypted by a single task before the work is split any further
+    private static final int CHUNKS_PER_TASK = 4;
+
+    private ChunkedAead() {
+    }
+
+    private static GCMParameterSpec chunkParameters(byte[] noncePrefix, int counter, boolean last) {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        System.arraycopy(noncePrefix, 0, nonce, 0, NONCE_PREFIX_LENGTH);
+        nonce[NONCE_PREFIX_LENGTH] = (byte) (counter >>> 24);
+        nonce[NONCE_PREFIX_LENGTH + 1] = (byte) (counter >>> 16);
+        nonce[NONCE_PREFIX_LENGTH + 2] = (byte) (counter >>> 8);
+        nonce[NONCE_PREFIX_LENGTH + 3] = (byte) counter;
+        nonce[NONCE_LENGTH - 1] = (byte) (last ? 1 : 0);
+        return new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+    }
+
+    /**
+     * Decrypt the chunks stored in the channel.
+     * @param transformation The cipher transformation the chunks were encrypted with
+     * @param channel The file, read using positional reads so it may be shared
+     * @param position The position of the first chunk
+     * @param length The number of bytes taken up by the chunks
+     * @return A buffer backed by the plaintext
+     * @throws InvalidPasswordException if the length is impossible or a chunk fails to authenticate
+     */
+    static ByteBuffer decrypt(String transformation, SecretKey key, byte[] associatedData, byte[] noncePrefix,
+            FileChannel channel, long position, long length) throws IOException, InvalidPasswordException {
+        // Every stream has at least one chunk and the last chunk has at least a tag
+        long chunkCount = Math.max(1, (length + ENCRYPTED_CHUNK_SIZE - 1) / ENCRYPTED_CHUNK_SIZE);
+        long lastChunkLength = length - (chunkCount - 1) * ENCRYPTED_CHUNK_SIZE;
+        long plaintextLength = length - chunkCount * TAG_LENGTH;
+        if (lastChunkLength < TAG_LENGTH || plaintextLength > Integer.MAX_VALUE - 8) {
+            throw new InvalidPasswordException("Invalid encrypted data");
+        }
+
+        DecryptTask task = new DecryptTask(transformation, key, associatedData, noncePrefix, channel, position,
+                length, new byte[(int) plaintextLength], 0, (int) chunkCount, (int) chunkCount);
+        try {
+            if (chunkCount <= CHUNKS_PER_TASK) {
+                // Not worth handing over to another thread
+                task.invoke();
+            } else {
+                ForkJoinPool.commonPool().invoke(task);
+            }
+        } catch (ChunkException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new InvalidPasswordException("Decryption failed: " + e.getCause().getMessage());
+        }
+        return ByteBuffer.wrap(task.output);
+    }
+
+    /**
+     * Carries checked exceptions out of the fork-join tasks.
+     */
+    private static final class ChunkException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        ChunkException(Exception cause) {
+            super(cause);
+        }
+    }
+
+    private static final class DecryptTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String transformation;
+        private final SecretKey key;
+        private final byte[] associatedData;
+        private final byte[] noncePrefix;
+        private final FileChannel channel;
+        private final long position;
+        private final long length;
+        private final byte[] output;
+        private final int from;
+        private final int to;
+        private final int chunkCount;
+
+        DecryptTask(String transformation, SecretKey key, byte[] associatedData, byte[] noncePrefix,
+                FileChannel channel, long position, long length, byte[] output, int from, int to, int chunkCount) {
+            this.transformation = transformation;
+            this.key = key;
+            this.associatedData = associatedData;
+            this.noncePrefix = noncePrefix;
+            this.channel = channel;
+            this.position = position;
+            this.length = length;
+            this.output = output;
+            this.from = from;
+            this.to = to;
+            this.chunkCount = chunkCount;
+        }
+
+        private DecryptTask range(int from, int to) {
+            return new DecryptTask(transformation, key, associatedData, noncePrefix, channel, position, length,
+                    output, from, to, chunkCount);
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > CHUNKS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(range(from, middle), range(middle, to));
+                return;
+            }
+
+            try {
+                Cipher cipher = CryptoPrimitives.cipher(transformation);
+                ByteBuffer chunk = ByteBuffer.allocate(ENCRYPTED_CHUNK_SIZE);
+                for (int i = from; i < to; i++) {
+                    long chunkPosition = (long) i * ENCRYPTED_CHUNK_SIZE;
+                    chunk.clear();
+                    chunk.limit((int) Math.min(ENCRYPTED_CHUNK_SIZE, length - chunkPosition));
+                    while (chunk.hasRemaining()) {
+                        if (channel.read(chunk, position + chunkPosition + chunk.position()) < 0) {
+                            throw new IOException("Unexpected end of file");
+                        }
+                    }
+
+                    cipher.init(Cipher.DECRYPT_MODE, key, chunkParameters(noncePrefix, i, i == chunkCount - 1));
+                    cipher.updateAAD(associatedData);
+                    cipher.doFinal(chunk.array(), 0, chunk.limit(), output, i * CHUNK_SIZE);
+                }
+            } catch (IOException | GeneralSecurityException e) {
+                throw new ChunkException(e);
+            }
+        }
+    }
+
+    /**
+     * An output stream that encrypts everything written to it as a sequence
+     * of chunks and writes them to a channel. The nonce prefix must already
+     * have been written. Closing the stream writes the final chunk but leaves
+     * the channel open.
+     */
+    static final class EncryptingOutputStream extends OutputStream {
+
+        private final Cipher cipher;
+        private final SecretKey key;
+        private final byte[] associatedData;
+        private final byte[] noncePrefix;
+        private final WritableByteChannel channel;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private final byte[] output = new byte[ENCRYPTED_CHUNK_SIZE];
+        private int count;
+        private int counter;
+        private boolean closed;
+
+        EncryptingOutputStream(Cipher cipher, SecretKey key, byte[] associatedData, byte[] noncePrefix,
+                WritableByteChannel channel) {
+            this.cipher = cipher;
+            this.key = key;
+            this.associatedData = associatedData;
+            this.noncePrefix = noncePrefix;
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            while (len > 0) {
+                // A full chunk is only written once more data arrives as
+                // until then we don't know whether it's the final one
+                if (count == CHUNK_SIZE) {
+                    writeChunk(false);
+                }
+                int n = Math.min(len, CHUNK_SIZE - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            writeChunk(true);
+        }
+
+        private void writeChunk(boolean last) throws IOException {
+            if (counter == Integer.MAX_VALUE) {
+                throw new IOException("Too much data for a single stream");
+            }
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, key, chunkParameters(noncePrefix, counter, last));
+                cipher.updateAAD(associatedData);
+                int produced = cipher.doFinal(buffer, 0, count, output, 0);
+                CipherChannels.writeFully(channel, ByteBuffer.wrap(output, 0, produced));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Encryption failed", e);
+            }
+            counter++;
+            count = 0;
+        }
+    }
+}
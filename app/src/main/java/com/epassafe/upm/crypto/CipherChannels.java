@@ -0,0 +1,155 @@
+/*
+ * Epassafe Password Manager
+ * Copyright (c) 2010-2026
+ *
+ * This file is part of Epassafe Password Manager.
+ *
+ * Epassafe Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Epassafe Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ */
+package com.epassafe.upm.crypto;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+/**
+ * Helpers for running a database file through a Cipher straight from or to a
+ * channel. Data is passed to the cipher in fixed size chunks so we never hold
+ * the encrypted file and the plaintext in memory at once.
+ */
+final class CipherChannels {
+
+    /** Size of the chunks read from the file and handed to the cipher. */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private CipherChannels() {
+    }
+
+    /**
+     * Fill the remaining space of the given buffer from the channel.
+     * @throws EOFException if the channel ends before the buffer is full
+     */
+    static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * Feed the next <code>length</code> bytes of the channel through an
+     * initialised cipher and finish it.
+     * @param cipher An initialised cipher
+     * @param channel The channel positioned at the first ciphertext byte
+     * @param length The number of ciphertext bytes to read
+     * @param outputCapacity An upper bound on the plaintext size
+     * @return A buffer backed by the plaintext array, limited to the bytes produced
+     */
+    static ByteBuffer decrypt(Cipher cipher, ReadableByteChannel channel, long length, int outputCapacity)
+            throws IOException, GeneralSecurityException {
+        byte[] output = new byte[outputCapacity];
+        int outputPos = 0;
+
+        ByteBuffer chunk = ByteBuffer.allocate((int) Math.max(1, Math.min(CHUNK_SIZE, length)));
+        long remaining = length;
+        while (remaining > 0) {
+            chunk.clear();
+            chunk.limit((int) Math.min(chunk.capacity(), remaining));
+            readFully(channel, chunk);
+            outputPos += cipher.update(chunk.array(), 0, chunk.position(), output, outputPos);
+            remaining -= chunk.position();
+        }
+        outputPos += cipher.doFinal(output, outputPos);
+
+        return ByteBuffer.wrap(output, 0, outputPos);
+    }
+
+    /**
+     * Write the remaining bytes of the given buffer to the channel.
+     */
+    static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * An output stream that runs everything written to it through an
+     * initialised cipher and writes the result to a channel. Closing the
+     * stream finishes the cipher but leaves the channel open.
+     */
+    static final class EncryptingOutputStream extends OutputStream {
+
+        private final Cipher cipher;
+        private final WritableByteChannel channel;
+        private byte[] output = new byte[0];
+        private boolean closed;
+
+        EncryptingOutputStream(Cipher cipher, WritableByteChannel channel) {
+            this.cipher = cipher;
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            while (len > 0) {
+                int n = Math.min(len, CHUNK_SIZE);
+                ensureOutputCapacity(cipher.getOutputSize(n));
+                try {
+                    writeOutput(cipher.update(b, off, n, output, 0));
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Encryption failed", e);
+                }
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            ensureOutputCapacity(cipher.getOutputSize(0));
+            try {
+                writeOutput(cipher.doFinal(output, 0));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Encryption failed", e);
+            }
+        }
+
+        private void ensureOutputCapacity(int size) {
+            if (output.length < size) {
+                output = new byte[size];
+            }
+        }
+
+        private void writeOutput(int length) throws IOException {
+            writeFully(channel, ByteBuffer.wrap(output, 0, length));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Epassafe Password Manager
+ * Copyright (c) 2010-2026
+ *
+ * This file is part of Epassafe Password Manager.
+ *
+ * Epassafe Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Epassafe Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ */
+package com.epassafe.upm.crypto;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * The cipher, MAC and random number instances used for the database and key
+ * wrapping. Looking up a provider and seeding a SecureRandom cost far more
+ * than encrypting a journal record or a key slot, so a Cipher and Mac are
+ * kept per thread and one SecureRandom is shared.
+ *
+ * A cached instance must be initialised before every use and mustn't be held
+ * on to, anything called in between may re-initialise it. Long lived users
+ * such as ChunkedAead.EncryptingOutputStream get their own instance.
+ */
+public final class CryptoPrimitives {
+
+    public static final String HMAC_SHA256 = "HmacSHA256";
+
+    // SecureRandom is thread safe
+    private static final SecureRandom random = new SecureRandom();
+
+    private static final ThreadLocal<Cipher> aesGcm = new ThreadLocal<Cipher>();
+    private static final ThreadLocal<Cipher> chaCha20Poly1305 = new ThreadLocal<Cipher>();
+    private static final ThreadLocal<Mac> hmacSha256 = new ThreadLocal<Mac>();
+
+
+    private CryptoPrimitives() {
+    }
+
+
+    public static void nextBytes(byte[] bytes) {
+        random.nextBytes(bytes);
+    }
+
+
+    public static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+
+    /**
+     * This thread's cipher for the given AEAD transformation, either
+     * ModernEncryptionService.AES_GCM or ModernEncryptionService.CHACHA20_POLY1305.
+     * @throws NoSuchAlgorithmException if the device doesn't support it
+     */
+    public static Cipher cipher(String transformation) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        if (transformation.equals(ModernEncryptionService.AES_GCM)) {
+            return cached(aesGcm, transformation);
+        }
+        if (transformation.equals(ModernEncryptionService.CHACHA20_POLY1305)) {
+            return cached(chaCha20Poly1305, transformation);
+        }
+        throw new NoSuchAlgorithmException("No cached cipher for " + transformation);
+    }
+
+
+    public static Cipher aesGcm() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        return cached(aesGcm, ModernEncryptionService.AES_GCM);
+    }
+
+
+    public static Mac hmacSha256() throws NoSuchAlgorithmException {
+        Mac mac = hmacSha256.get();
+        if (mac == null) {
+            mac = Mac.getInstance(HMAC_SHA256);
+            hmacSha256.set(mac);
+        }
+        return mac;
+    }
+
+
+    private static Cipher cached(ThreadLocal<Cipher> cache, String transformation) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Cipher cipher = cache.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            cache.set(cipher);
+        }
+        return cipher;
+    }
+
+}
@@ -22,6 +22,7 @@ import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.PBEParameterSpec;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -38,6 +39,9 @@ public class DESDecryptionService {
     // Secure algorithm for new encryption
     public static final String PBEWithSHA256And256BitAES = "PBEWithSHA256And256BitAES-CBC-BC";
 
+    private static final int DES_BLOCK_SIZE = 8;
+    private static final int AES_BLOCK_SIZE = 16;
+
 
     /**
      * This method initialises a local decryption cipher, and decrypts the given string.
@@ -116,4 +120,61 @@ public class DESDecryptionService {
         }
         return retVal;
     }
+
+    /**
+     * Decrypt a pre 1.3 database with whichever of the two ciphers it was
+     * encrypted with. The cipher is picked by decrypting only the last two
+     * blocks of the ciphertext, so just the one full decryption is done.
+     * @throws IllegalBlockSizeException if the ciphertext isn't whole DES blocks
+     * @throws InvalidPasswordException if neither cipher gives valid padding
+     */
+    public static byte[] decryptDetectingAlgorithm(SecretKey secretKey, byte[] salt, byte[] ciphertext) throws GeneralSecurityException, InvalidPasswordException {
+        String algorithm = detectAlgorithm(secretKey, salt, ciphertext);
+        if (algorithm == null) {
+            if (ciphertext.length == 0 || ciphertext.length % DES_BLOCK_SIZE != 0) {
+                throw new IllegalBlockSizeException("The ciphertext isn't a whole number of blocks");
+            }
+            throw new InvalidPasswordException();
+        }
+        if (algorithm.equals(PBEWithSHA256And256BitAES)) {
+            return decryptAES(secretKey, salt, ciphertext);
+        }
+        return decrypt(secretKey, salt, ciphertext);
+    }
+
+
+    /**
+     * @return The cipher the ciphertext decrypts to valid padding with, AES
+     *         being tried first, or null if it doesn't with either
+     */
+    static String detectAlgorithm(SecretKey secretKey, byte[] salt, byte[] ciphertext) {
+        if (hasValidPadding(PBEWithSHA256And256BitAES, AES_BLOCK_SIZE, secretKey, salt, ciphertext)) {
+            return PBEWithSHA256And256BitAES;
+        }
+        if (hasValidPadding(PBEWithMD5AndDES, DES_BLOCK_SIZE, secretKey, salt, ciphertext)) {
+            return PBEWithMD5AndDES;
+        }
+        return null;
+    }
+
+
+    /**
+     * In CBC mode a block is decrypted using the block before it as its IV,
+     * so decrypting the last two blocks gives the real last block of
+     * plaintext and so its padding. The first of the two comes out as garbage.
+     */
+    private static boolean hasValidPadding(String algorithm, int blockSize, SecretKey secretKey, byte[] salt, byte[] ciphertext) {
+        if (ciphertext.length == 0 || ciphertext.length % blockSize != 0) {
+            return false;
+        }
+        int tailLength = Math.min(ciphertext.length, 2 * blockSize);
+        try {
+            Cipher cipher = Cipher.getInstance(algorithm);
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, new PBEParameterSpec(salt, 20));
+            cipher.doFinal(ciphertext, ciphertext.length - tailLength, tailLength);
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
 }
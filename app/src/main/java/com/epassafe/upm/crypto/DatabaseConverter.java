@@ -27,6 +27,7 @@ import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
@@ -34,6 +35,7 @@ import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.SecretKey;
 
 import com.epassafe.upm.database.AccountInformation;
+import com.epassafe.upm.database.BinaryPayloadWriter;
 import com.epassafe.upm.database.DatabaseHeader;
 import com.epassafe.upm.database.DatabaseOptions;
 import com.epassafe.upm.database.ProblemReadingDatabaseFile;
@@ -118,15 +120,9 @@ public class DatabaseConverter {
             byte[] encryptedBytes = new byte[encryptedBytesLength];
             System.arraycopy(fullDatabase, EncryptionService.SALT_LENGTH, encryptedBytes, 0, encryptedBytesLength);
 
-            // Try to decrypt using existing methods
+            // Could be AES or legacy DES, whichever the last blocks decrypt with
             SecretKey secretKey = EncryptionService.createSecretKey(password);
-            try {
-                // First try AES
-                decryptedBytes = DESDecryptionService.decryptAES(secretKey, salt, encryptedBytes);
-            } catch (Exception e) {
-                // Fall back to legacy DES
-                decryptedBytes = DESDecryptionService.decrypt(secretKey, salt, encryptedBytes);
-            }
+            decryptedBytes = DESDecryptionService.decryptDetectingAlgorithm(secretKey, salt, encryptedBytes);
 
             // Parse the decrypted data
             is = new ByteArrayInputStream(decryptedBytes);
@@ -152,18 +148,10 @@ public class DatabaseConverter {
         // Re-encrypt with the modern encryption service
 
         // First collect all accounts from the input stream
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-        // Write revision and options
-        revision.increment(); // Increment revision since we're converting
-        revision.flatPack(baos);
-        dbOptions.flatPack(baos);
-
-        // Copy account data
+        ArrayList<AccountInformation> accounts = new ArrayList<AccountInformation>();
         try {
             while (true) {
-                AccountInformation ai = new AccountInformation(is, charset);
-                ai.flatPack(baos);
+                accounts.add(new AccountInformation(is, charset));
             }
         } catch (EOFException e) {
             // Expected exception when we reach end of file
@@ -173,6 +161,11 @@ public class DatabaseConverter {
         if (is != null) {
             is.close();
         }
+
+        // Write revision, options and accounts using the binary encoding
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        revision.increment(); // Increment revision since we're converting
+        new BinaryPayloadWriter(baos).write(revision, dbOptions, accounts);
         baos.close();
 
         // Get the account data to encrypt
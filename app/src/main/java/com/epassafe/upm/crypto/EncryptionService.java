@@ -16,6 +16,12 @@
  */
 package com.epassafe.upm.crypto;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -92,6 +98,16 @@ public class EncryptionService {
     }
 
 
+    /**
+     * Encrypt everything written to the returned stream straight to the
+     * given channel. Closing the stream finishes the encryption but leaves
+     * the channel open.
+     */
+    public OutputStream encrypt(WritableByteChannel channel) {
+        return new CipherChannels.EncryptingOutputStream(encryptionCipher, channel);
+    }
+
+
     public byte[] decrypt(byte[] ciphertext) throws IllegalBlockSizeException, InvalidPasswordException {
         byte[] retVal;
         try {
@@ -103,6 +119,24 @@ public class EncryptionService {
     }
 
 
+    /**
+     * Decrypt <code>length</code> bytes read straight from the given channel.
+     * The ciphertext is fed to the cipher in chunks rather than being read
+     * into memory first.
+     * @return A buffer backed by the plaintext, limited to the decrypted bytes
+     */
+    public ByteBuffer decrypt(ReadableByteChannel channel, long length) throws IOException, GeneralSecurityException, InvalidPasswordException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalBlockSizeException("Database is too large to decrypt");
+        }
+        try {
+            return CipherChannels.decrypt(decryptionCipher, channel, length, (int) length);
+        } catch (BadPaddingException e) {
+            throw new InvalidPasswordException();
+        }
+    }
+
+
     public byte[] getSalt() {
         return salt;
     }
@@ -0,0 +1,104 @@
+/*
+ * Epassafe Password Manager
+ * Copyright (c) 2010-2026
+ *
+ * This file is part of Epassafe Password Manager.
+ *
+ * Epassafe Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Epassafe Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ */
+package com.epassafe.upm.crypto;
+
+import android.util.Log;
+
+/**
+ * Picks Argon2id parameters for this device by timing it, so that deriving
+ * the key takes about as long as a latency budget. Quick devices spend the
+ * budget on more memory and passes, slow ones never go below the security
+ * floor of Argon2KeyDerivation.DEFAULT however long that takes.
+ *
+ * This takes a few hundred milliseconds so it mustn't run on the UI thread.
+ */
+public final class KdfCalibrator {
+
+    private static final String TAG = "KdfCalibrator";
+
+    /** The unlock time aimed for */
+    public static final long DEFAULT_TARGET_MILLIS = 1000;
+
+    // More memory costs an attacker more per guess, but the app's heap is limited
+    static final int MAX_MEMORY_KIB = 64 * 1024;
+
+    private static final int FLOOR_MEMORY_KIB = Argon2KeyDerivation.DEFAULT.getMemoryKib();
+    private static final int FLOOR_ITERATIONS = Argon2KeyDerivation.DEFAULT.getIterations();
+
+
+    private KdfCalibrator() {
+    }
+
+
+    public static Argon2KeyDerivation calibrate() {
+        return calibrate(DEFAULT_TARGET_MILLIS);
+    }
+
+
+    /**
+     * @param targetMillis How long deriving the key should take on this device
+     */
+    public static Argon2KeyDerivation calibrate(long targetMillis) {
+        int memoryKib = memoryBudgetKib();
+        long passMillis = timePass(memoryKib);
+        Argon2KeyDerivation kdf = choose(memoryKib, passMillis, targetMillis);
+        Log.i(TAG, "One pass over " + memoryKib + "KiB took " + passMillis + "ms, using " + kdf);
+        return kdf;
+    }
+
+
+    /**
+     * Choose the parameters given the time one pass over <code>memoryKib</code>
+     * takes. Argon2's cost is close to proportional to memory times passes.
+     */
+    static Argon2KeyDerivation choose(int memoryKib, long passMillis, long targetMillis) {
+        double millisPerKibPass = (double) Math.max(1, passMillis) / memoryKib;
+
+        // Too slow to make the floor's passes over this much memory, so use less of it
+        int affordableMemoryKib = (int) (targetMillis / (millisPerKibPass * FLOOR_ITERATIONS));
+        memoryKib = Math.max(FLOOR_MEMORY_KIB, Math.min(memoryKib, affordableMemoryKib));
+
+        long iterations = (long) (targetMillis / (millisPerKibPass * memoryKib));
+        iterations = Math.max(FLOOR_ITERATIONS, Math.min(Argon2KeyDerivation.MAX_ITERATIONS, iterations));
+        return new Argon2KeyDerivation(memoryKib, (int) iterations, Argon2KeyDerivation.DEFAULT_PARALLELISM);
+    }
+
+
+    private static int memoryBudgetKib() {
+        long quarterOfHeapKib = Runtime.getRuntime().maxMemory() / 4 / 1024;
+        return (int) Math.max(FLOOR_MEMORY_KIB, Math.min(MAX_MEMORY_KIB, quarterOfHeapKib));
+    }
+
+
+    /**
+     * Time a single pass, taking the quicker of two runs so the first one's
+     * warm up isn't counted.
+     */
+    private static long timePass(int memoryKib) {
+        Argon2KeyDerivation onePass = new Argon2KeyDerivation(memoryKib, 1, Argon2KeyDerivation.DEFAULT_PARALLELISM);
+        char[] password = "calibration".toCharArray();
+        byte[] salt = new byte[16];
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 2; i++) {
+            long start = System.nanoTime();
+            onePass.deriveKey(password, salt, KeySlots.DATA_KEY_LENGTH);
+            best = Math.min(best, (System.nanoTime() - start) / 1000000);
+        }
+        return best;
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Epassafe Password Manager
+ * Copyright (c) 2010-2026
+ *
+ * This file is part of Epassafe Password Manager.
+ *
+ * Epassafe Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Epassafe Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ */
+package com.epassafe.upm.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+
+/**
+ * A password based key derivation function along with the cost parameters
+ * it's used with. The parameters are stored next to whatever the derived key
+ * protects, so each vault records how its key was derived and the cost can
+ * be raised for new vaults without a format change.
+ *
+ * Encoding:
+ *   TYPE (1 byte) PARAMETERS
+ *   TYPE_PBKDF2   : ITERATIONS (4 bytes)
+ *   TYPE_ARGON2ID : MEMORY_KIB (4 bytes) ITERATIONS (4 bytes) PARALLELISM (1 byte)
+ */
+public abstract class KeyDerivation {
+
+    public static final byte TYPE_PBKDF2 = 1;
+    public static final byte TYPE_ARGON2ID = 2;
+
+
+    /**
+     * Derive a key from a password. The password is left as it is.
+     */
+    public abstract byte[] deriveKey(char[] password, byte[] salt, int length) throws InvalidKeySpecException, NoSuchAlgorithmException;
+
+
+    public abstract byte getType();
+
+
+    abstract int getParametersLength();
+
+
+    abstract void writeParameters(ByteBuffer buffer);
+
+
+    /**
+     * @return The type and parameters, as read back by read()
+     */
+    public byte[] encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + getParametersLength());
+        buffer.put(getType());
+        writeParameters(buffer);
+        return buffer.array();
+    }
+
+
+    /**
+     * Read an encoded key derivation, leaving the buffer just past it.
+     * @throws IllegalArgumentException if the type is unknown or the
+     *         parameters are out of range
+     */
+    public static KeyDerivation read(ByteBuffer buffer) {
+        byte type = buffer.get();
+        switch (type) {
+            case TYPE_PBKDF2:
+                return new Pbkdf2KeyDerivation(buffer.getInt());
+            case TYPE_ARGON2ID:
+                return new Argon2KeyDerivation(buffer.getInt(), buffer.getInt(), buffer.get() & 0xFF);
+            default:
+                throw new IllegalArgumentException("Unknown key derivation " + type);
+        }
+    }
+
+}
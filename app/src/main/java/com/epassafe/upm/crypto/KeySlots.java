@@ -0,0 +1,268 @@
+/*
+ * Epassafe Password Manager
+ * Copyright (c) 2010-2026
+ *
+ * This file is part of Epassafe Password Manager.
+ *
+ * Epassafe Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Epassafe Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ */
+package com.epassafe.upm.crypto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The key slots of a FORMAT_VERSION_KEY_SLOTS database. The database is
+ * encrypted once under a random data key and every slot holds a copy of that
+ * key wrapped by one way of unlocking the database: the master password, a
+ * YubiKey or a recovery code. Changing one of them only replaces its slot, the
+ * encrypted accounts are left as they are.
+ *
+ * Slot area layout (AREA_LENGTH bytes, zero padded):
+ *   SLOT_COUNT (1 byte) (TYPE (1 byte) BLOB_LENGTH (2 bytes, big endian) BLOB)*
+ *   BLOB = the wrapped data key, see YubiKeyManager.wrapDbKeyWithYubiKey
+ *          or for TYPE_PASSWORD and TYPE_RECOVERY_CODE, KDF WRAPPED_KEY where
+ *          KDF is the key derivation used, see KeyDerivation.encode, and
+ *          WRAPPED_KEY is from YubiKeyManager.wrapDbKeyWithPassword
+ *          or for TYPE_KEY_CHECK, HMAC-SHA256(data key, KEY_CHECK_LABEL)
+ *
+ * The key check lets a data key, whether unwrapped from a slot or supplied
+ * directly, be checked without decrypting any of the database.
+ *
+ * The database file holds two copies of the slot area preceded by a byte
+ * saying which one is current (HEADER_LENGTH bytes in all). Updates are
+ * written to the other copy before switching over to it, so an update that's
+ * cut short leaves the current slots intact. The old copy is then wiped so
+ * a replaced password or removed slot can't still open the database.
+ */
+public final class KeySlots {
+
+    public static final int AREA_LENGTH = 512;
+    /** ACTIVE_AREA (1 byte) AREA AREA */
+    public static final int HEADER_LENGTH = 1 + 2 * AREA_LENGTH;
+    public static final int DATA_KEY_LENGTH = ModernEncryptionService.HASH_LENGTH;
+
+    public static final byte TYPE_PASSWORD = 1;
+    public static final byte TYPE_YUBIKEY = 2;
+    public static final byte TYPE_RECOVERY_CODE = 3;
+    public static final byte TYPE_KEY_CHECK = 4;
+
+    /** What password and recovery code slots are protected with unless told otherwise */
+    public static final KeyDerivation DEFAULT_KEY_DERIVATION = Argon2KeyDerivation.DEFAULT;
+
+    private static final byte[] KEY_CHECK_LABEL = "UPM key check".getBytes(StandardCharsets.US_ASCII);
+
+    private final TreeMap<Byte, byte[]> slots = new TreeMap<Byte, byte[]>();
+
+
+    public KeySlots() {
+    }
+
+
+    /**
+     * Parse a slot area.
+     * @throws IOException if the area is malformed
+     */
+    public static KeySlots read(byte[] area) throws IOException {
+        KeySlots keySlots = new KeySlots();
+        ByteBuffer buffer = ByteBuffer.wrap(area);
+        try {
+            int count = buffer.get() & 0xFF;
+            for (int i = 0; i < count; i++) {
+                byte type = buffer.get();
+                byte[] blob = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(blob);
+                keySlots.slots.put(type, blob);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("The key slots are corrupt", e);
+        }
+        return keySlots;
+    }
+
+
+    /**
+     * @return The slots encoded as a slot area of AREA_LENGTH bytes
+     */
+    public byte[] toArea() {
+        ByteBuffer buffer = ByteBuffer.allocate(AREA_LENGTH);
+        buffer.put((byte) slots.size());
+        for (Map.Entry<Byte, byte[]> slot : slots.entrySet()) {
+            if (buffer.remaining() < 3 + slot.getValue().length) {
+                throw new IllegalStateException("Too many key slots");
+            }
+            buffer.put(slot.getKey());
+            buffer.putShort((short) slot.getValue().length);
+            buffer.put(slot.getValue());
+        }
+        return buffer.array();
+    }
+
+
+    /** Generate a new random data key. */
+    public static byte[] generateDataKey() {
+        return CryptoPrimitives.randomBytes(DATA_KEY_LENGTH);
+    }
+
+
+    public void setPassword(byte[] dataKey, char[] password) throws GeneralSecurityException {
+        setPassword(dataKey, password, DEFAULT_KEY_DERIVATION);
+    }
+
+
+    public void setPassword(byte[] dataKey, char[] password, KeyDerivation kdf) throws GeneralSecurityException {
+        put(TYPE_PASSWORD, wrapWithPassword(dataKey, password, kdf), dataKey);
+    }
+
+
+    public void setYubiKey(byte[] dataKey, byte[] hmacResponse) throws GeneralSecurityException {
+        try {
+            put(TYPE_YUBIKEY, YubiKeyManager.wrapDbKeyWithYubiKey(dataKey, hmacResponse), dataKey);
+        } catch (GeneralSecurityException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new GeneralSecurityException("Failed to wrap the data key with the YubiKey", e);
+        }
+    }
+
+
+    public void setRecoveryCode(byte[] dataKey, String recoveryCode) throws GeneralSecurityException {
+        setRecoveryCode(dataKey, recoveryCode, DEFAULT_KEY_DERIVATION);
+    }
+
+
+    public void setRecoveryCode(byte[] dataKey, String recoveryCode, KeyDerivation kdf) throws GeneralSecurityException {
+        char[] code = YubiKeyManager.normalizeRecoveryCode(recoveryCode).toCharArray();
+        put(TYPE_RECOVERY_CODE, wrapWithPassword(dataKey, code, kdf), dataKey);
+    }
+
+
+    private static byte[] wrapWithPassword(byte[] dataKey, char[] password, KeyDerivation kdf) throws GeneralSecurityException {
+        byte[] wrappedKey;
+        try {
+            wrappedKey = YubiKeyManager.wrapDbKeyWithPassword(dataKey, password, kdf);
+        } catch (GeneralSecurityException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new GeneralSecurityException("Failed to wrap the data key", e);
+        }
+        byte[] encodedKdf = kdf.encode();
+        return ByteBuffer.allocate(encodedKdf.length + wrappedKey.length).put(encodedKdf).put(wrappedKey).array();
+    }
+
+
+    private static byte[] unwrapWithPassword(byte[] blob, char[] password) {
+        ByteBuffer buffer = ByteBuffer.wrap(blob);
+        KeyDerivation kdf;
+        try {
+            kdf = KeyDerivation.read(buffer);
+        } catch (RuntimeException e) {
+            return null;
+        }
+        byte[] wrappedKey = new byte[buffer.remaining()];
+        buffer.get(wrappedKey);
+        return YubiKeyManager.unwrapDbKeyWithPassword(wrappedKey, password, kdf);
+    }
+
+
+    /**
+     * @return How the password slot's key is derived, or null if there's no password slot
+     */
+    public KeyDerivation getPasswordKeyDerivation() {
+        byte[] blob = slots.get(TYPE_PASSWORD);
+        if (blob == null) {
+            return null;
+        }
+        try {
+            return KeyDerivation.read(ByteBuffer.wrap(blob));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+
+    private void put(byte type, byte[] blob, byte[] dataKey) throws GeneralSecurityException {
+        slots.put(type, blob);
+        slots.put(TYPE_KEY_CHECK, keyCheck(dataKey));
+    }
+
+
+    private static byte[] keyCheck(byte[] dataKey) throws GeneralSecurityException {
+        Mac mac = CryptoPrimitives.hmacSha256();
+        mac.init(new SecretKeySpec(dataKey, CryptoPrimitives.HMAC_SHA256));
+        return mac.doFinal(KEY_CHECK_LABEL);
+    }
+
+
+    /**
+     * @return true if the key check matches the given data key
+     */
+    public boolean checkKey(byte[] dataKey) {
+        byte[] expected = slots.get(TYPE_KEY_CHECK);
+        if (expected == null || dataKey == null || dataKey.length == 0) {
+            return false;
+        }
+        try {
+            return MessageDigest.isEqual(expected, keyCheck(dataKey));
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * @return The data key, or null if there's no password slot or the password is wrong
+     */
+    public byte[] unwrapWithPassword(char[] password) {
+        byte[] blob = slots.get(TYPE_PASSWORD);
+        return blob != null ? unwrapWithPassword(blob, password) : null;
+    }
+
+
+    /**
+     * @return The data key, or null if there's no YubiKey slot or the response is wrong
+     */
+    public byte[] unwrapWithYubiKey(byte[] hmacResponse) {
+        byte[] blob = slots.get(TYPE_YUBIKEY);
+        return blob != null ? YubiKeyManager.unwrapDbKeyWithYubiKey(blob, hmacResponse) : null;
+    }
+
+
+    /**
+     * @return The data key, or null if there's no recovery code slot or the code is wrong
+     */
+    public byte[] unwrapWithRecoveryCode(String recoveryCode) {
+        byte[] blob = slots.get(TYPE_RECOVERY_CODE);
+        if (blob == null) {
+            return null;
+        }
+        return unwrapWithPassword(blob, YubiKeyManager.normalizeRecoveryCode(recoveryCode).toCharArray());
+    }
+
+
+    public boolean has(byte type) {
+        return slots.containsKey(type);
+    }
+
+
+    public void remove(byte type) {
+        slots.remove(type);
+    }
+
+}
@@ -16,15 +16,19 @@
  */
 package com.epassafe.upm.crypto;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
-import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.KeySpec;
 import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
@@ -32,9 +36,8 @@ import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.GCMParameterSpec;
-import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import android.util.Log;
@@ -58,8 +61,6 @@ public class ModernEncryptionService {
     // Constants for key derivation
     public static final int SALT_LENGTH = 16; // 16 bytes / 128 bits
     public static final int HASH_LENGTH = 32; // 32 bytes / 256 bits
-    private static final int PBKDF2_ITERATIONS = 310000; // Higher iteration count for security
-    private static final String KEY_DERIVATION_ALGORITHM = "PBKDF2WithHmacSHA512";
 
     // Flags to identify algorithm used
     public static final byte ALG_AES_GCM = 1;
@@ -67,7 +68,18 @@ public class ModernEncryptionService {
 
     // Shared data
     private static final byte[] DATABASE_HEADER = "UPM_MODERN".getBytes(StandardCharsets.UTF_8);
-    public static final byte FORMAT_VERSION = 1;
+    // Version 1 payloads use the FlatPack encoding, version 2 the binary encoding.
+    // Version 3 splits the binary encoding over separately encrypted segments.
+    // Version 4 encrypts the binary encoding as a sequence of chunks.
+    // Version 5 holds a version 3 or 4 body encrypted under a random data key
+    // which is wrapped in the key slots at the start of the file, see KeySlots.
+    // Databases are saved using FORMAT_VERSION_KEY_SLOTS, or FORMAT_VERSION_CHUNKED
+    // or FORMAT_VERSION_SEGMENTED if they were opened in one of those formats.
+    public static final byte FORMAT_VERSION_FLATPACK = 1;
+    public static final byte FORMAT_VERSION = 2;
+    public static final byte FORMAT_VERSION_SEGMENTED = 3;
+    public static final byte FORMAT_VERSION_CHUNKED = 4;
+    public static final byte FORMAT_VERSION_KEY_SLOTS = 5;
 
     // Instance variables
     private SecretKey secretKey;
@@ -80,9 +92,7 @@ public class ModernEncryptionService {
      */
     public ModernEncryptionService(char[] password) throws NoSuchAlgorithmException, InvalidKeySpecException {
         // Generate a new random salt
-        SecureRandom secureRandom = new SecureRandom();
-        salt = new byte[SALT_LENGTH];
-        secureRandom.nextBytes(salt);
+        salt = newSalt();
 
         // Use enhanced PBKDF2 to derive the key
         deriveKey(password);
@@ -102,6 +112,33 @@ public class ModernEncryptionService {
         deriveKey(password);
     }
 
+    /**
+     * Create a new encryption service using a random data key rather than
+     * one derived from a password
+     */
+    public ModernEncryptionService(byte[] dataKey) {
+        this(dataKey, newSalt());
+    }
+
+    /**
+     * Create encryption service with an existing data key and salt (for decryption)
+     */
+    public ModernEncryptionService(byte[] dataKey, byte[] salt) {
+        if (salt == null || salt.length != SALT_LENGTH) {
+            throw new IllegalArgumentException("Invalid salt provided");
+        }
+        if (dataKey == null || dataKey.length != HASH_LENGTH) {
+            throw new IllegalArgumentException("Invalid data key provided");
+        }
+        this.salt = salt;
+        secretKey = new SecretKeySpec(dataKey, "AES");
+        algorithmId = ALG_AES_GCM;
+    }
+
+    private static byte[] newSalt() {
+        return CryptoPrimitives.randomBytes(SALT_LENGTH);
+    }
+
     /**
      * Use enhanced PBKDF2 to derive the encryption key
      */
@@ -112,12 +149,9 @@ public class ModernEncryptionService {
                 throw new InvalidKeySpecException("Password cannot be null");
             }
 
-            // Create key spec using PBKDF2 with SHA-512
-            KeySpec spec = new PBEKeySpec(password, salt, PBKDF2_ITERATIONS, HASH_LENGTH * 8);
-            SecretKeyFactory keyFactory = SecretKeyFactory.getInstance(KEY_DERIVATION_ALGORITHM);
-
-            // Generate the secret key bytes
-            byte[] keyBytes = keyFactory.generateSecret(spec).getEncoded();
+            // These formats have no room for KDF parameters, so they're always
+            // PBKDF2 with SHA-512 at the default iteration count
+            byte[] keyBytes = Pbkdf2KeyDerivation.DEFAULT.deriveKey(password, salt, HASH_LENGTH);
 
             // Create AES key
             secretKey = new SecretKeySpec(keyBytes, "AES");
@@ -141,6 +175,26 @@ public class ModernEncryptionService {
      */
     public byte[] encrypt(byte[] plaintext) throws NoSuchPaddingException, NoSuchAlgorithmException,
             NoSuchProviderException, InvalidAlgorithmParameterException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        return encrypt(plaintext, DATABASE_HEADER);
+    }
+
+    /**
+     * Encrypt data binding it to the given associated data. The same
+     * associated data must be passed to {@link #decrypt(byte[], byte[])}.
+     */
+    public byte[] encrypt(byte[] plaintext, byte[] associatedData) throws NoSuchPaddingException, NoSuchAlgorithmException,
+            NoSuchProviderException, InvalidAlgorithmParameterException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        return encrypt(plaintext, 0, plaintext.length, associatedData);
+    }
+
+    /**
+     * Encrypt <code>length</code> bytes of the array from <code>offset</code>
+     * on, binding them to the given associated data. The ciphertext is
+     * written straight into the returned blob.
+     */
+    public byte[] encrypt(byte[] plaintext, int offset, int length, byte[] associatedData) throws NoSuchPaddingException,
+            NoSuchAlgorithmException, NoSuchProviderException, InvalidAlgorithmParameterException, InvalidKeyException,
+            IllegalBlockSizeException, BadPaddingException {
 
         if (secretKey == null) {
             throw new IllegalStateException("Encryption key has not been initialized");
@@ -149,16 +203,16 @@ public class ModernEncryptionService {
         try {
             if (algorithmId == ALG_CHACHA20_POLY1305) {
                 try {
-                    return encryptChaCha20Poly1305(plaintext);
+                    return encryptAead(ALG_CHACHA20_POLY1305, plaintext, offset, length, associatedData);
                 } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
                     // ChaCha20-Poly1305 not available on this device
                     Log.w("ModernEncryptionService", "ChaCha20-Poly1305 not available, falling back to AES-GCM", e);
                     // Switch to AES-GCM
                     algorithmId = ALG_AES_GCM;
-                    return encryptAesGcm(plaintext);
+                    return encryptAead(ALG_AES_GCM, plaintext, offset, length, associatedData);
                 }
             } else {
-                return encryptAesGcm(plaintext);
+                return encryptAead(ALG_AES_GCM, plaintext, offset, length, associatedData);
             }
         } catch (Exception e) {
             Log.e("ModernEncryptionService", "Encryption failed", e);
@@ -170,32 +224,42 @@ public class ModernEncryptionService {
      * Decrypt data by determining which algorithm was used
      */
     public byte[] decrypt(byte[] ciphertext) throws InvalidPasswordException {
+        return decrypt(ciphertext, DATABASE_HEADER);
+    }
+
+    /**
+     * Decrypt data that was encrypted with the given associated data
+     */
+    public byte[] decrypt(byte[] ciphertext, byte[] associatedData) throws InvalidPasswordException {
+        if (ciphertext == null) {
+            throw new InvalidPasswordException("Invalid encrypted data");
+        }
+        return decrypt(ciphertext, 0, ciphertext.length, associatedData);
+    }
+
+    /**
+     * Decrypt a blob held in <code>length</code> bytes of the array from
+     * <code>offset</code> on, such as a record in a buffer read from the file.
+     * The IV and ciphertext are used where they are rather than copied out.
+     */
+    public byte[] decrypt(byte[] data, int offset, int length, byte[] associatedData) throws InvalidPasswordException {
         if (secretKey == null) {
             throw new IllegalStateException("Decryption key has not been initialized");
         }
 
         try {
             // Make sure we have data to decrypt
-            if (ciphertext == null || ciphertext.length < 2) {
+            if (length < 1 + GCM_IV_LENGTH + GCM_TAG_LENGTH) {
                 throw new InvalidPasswordException("Invalid encrypted data");
             }
 
             // First byte indicates algorithm
-            byte algorithm = ciphertext[0];
-            byte[] actualData = Arrays.copyOfRange(ciphertext, 1, ciphertext.length);
+            Cipher cipher = cipherFor(data[offset]);
 
-            if (algorithm == ALG_CHACHA20_POLY1305) {
-                try {
-                    return decryptChaCha20Poly1305(actualData);
-                } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
-                    Log.w("ModernEncryptionService", "ChaCha20-Poly1305 not available for decryption", e);
-                    throw new InvalidPasswordException("ChaCha20-Poly1305 algorithm not supported on this device. Try using AES-GCM instead.");
-                }
-            } else if (algorithm == ALG_AES_GCM) {
-                return decryptAesGcm(actualData);
-            } else {
-                throw new InvalidPasswordException("Unknown encryption algorithm: " + algorithm);
-            }
+            // Format: [Algorithm (1 byte)][IV/Nonce (12 bytes)][Ciphertext + Auth Tag]
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(GCM_TAG_LENGTH * 8, data, offset + 1, GCM_IV_LENGTH));
+            cipher.updateAAD(associatedData);
+            return cipher.doFinal(data, offset + 1 + GCM_IV_LENGTH, length - 1 - GCM_IV_LENGTH);
         } catch (InvalidPasswordException e) {
             throw e;
         } catch (Exception e) {
@@ -205,113 +269,169 @@ public class ModernEncryptionService {
     }
 
     /**
-     * Encrypt data using AES-GCM
+     * Decrypt data read directly from a channel. The algorithm identifier and
+     * IV are read first and the rest of the ciphertext is then streamed into
+     * the cipher in chunks, so the encrypted file is never held in memory.
+     * @param channel A channel positioned at the algorithm identifier
+     * @param length The number of bytes left to read (identifier, IV, ciphertext and tag)
+     * @return A buffer backed by the plaintext, limited to the decrypted bytes
      */
-    private byte[] encryptAesGcm(byte[] plaintext) throws NoSuchAlgorithmException, NoSuchPaddingException,
-            NoSuchProviderException, InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException {
-
-        // Generate random IV
-        SecureRandom secureRandom = new SecureRandom();
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        secureRandom.nextBytes(iv);
-
-        // Initialize cipher
-        Cipher cipher = Cipher.getInstance(AES_GCM);
-        GCMParameterSpec gcmParameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
-        cipher.init(Cipher.ENCRYPT_MODE, secretKey, gcmParameterSpec);
+    public ByteBuffer decrypt(ReadableByteChannel channel, long length) throws IOException, InvalidPasswordException {
+        if (secretKey == null) {
+            throw new IllegalStateException("Decryption key has not been initialized");
+        }
 
-        // Add associated data (header) for additional security
-        cipher.updateAAD(DATABASE_HEADER);
+        // Format: [Algorithm (1 byte)][IV/Nonce (12 bytes)][Ciphertext + Auth Tag]
+        long ciphertextLength = length - 1 - GCM_IV_LENGTH;
+        if (ciphertextLength < GCM_TAG_LENGTH || ciphertextLength - GCM_TAG_LENGTH > Integer.MAX_VALUE) {
+            throw new InvalidPasswordException("Invalid encrypted data");
+        }
 
-        // Perform encryption
-        byte[] ciphertext = cipher.doFinal(plaintext);
+        ByteBuffer prefix = ByteBuffer.allocate(1 + GCM_IV_LENGTH);
+        CipherChannels.readFully(channel, prefix);
 
-        // Format: [Algorithm (1 byte)][IV (12 bytes)][Ciphertext + Auth Tag]
-        ByteBuffer byteBuffer = ByteBuffer.allocate(1 + iv.length + ciphertext.length);
-        byteBuffer.put(ALG_AES_GCM);
-        byteBuffer.put(iv);
-        byteBuffer.put(ciphertext);
+        try {
+            Cipher cipher = cipherFor(prefix.get(0));
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(GCM_TAG_LENGTH * 8, prefix.array(), 1, GCM_IV_LENGTH));
+            cipher.updateAAD(DATABASE_HEADER);
 
-        return byteBuffer.array();
+            return CipherChannels.decrypt(cipher, channel, ciphertextLength,
+                    (int) (ciphertextLength - GCM_TAG_LENGTH));
+        } catch (InvalidPasswordException | IOException e) {
+            throw e;
+        } catch (Exception e) {
+            Log.e("ModernEncryptionService", "Decryption failed", e);
+            throw new InvalidPasswordException("Decryption failed: " + e.getMessage());
+        }
     }
 
     /**
-     * Decrypt data using AES-GCM
+     * Encrypt data straight to a channel using the chunked format of
+     * FORMAT_VERSION_CHUNKED, see {@link ChunkedAead}. The algorithm
+     * identifier and nonce prefix are written immediately, everything written
+     * to the returned stream is then encrypted a chunk at a time and closing
+     * the stream writes the final chunk.
+     * @param associatedData The file header, authenticated with every chunk
      */
-    private byte[] decryptAesGcm(byte[] data) throws NoSuchAlgorithmException, NoSuchPaddingException,
-            NoSuchProviderException, InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException {
+    public OutputStream encryptChunked(WritableByteChannel channel, byte[] associatedData) throws IOException, NoSuchPaddingException,
+            NoSuchAlgorithmException {
+        if (secretKey == null) {
+            throw new IllegalStateException("Encryption key has not been initialized");
+        }
 
-        // Extract IV
-        byte[] iv = Arrays.copyOfRange(data, 0, GCM_IV_LENGTH);
+        Cipher cipher = null;
+        byte algorithm = ALG_AES_GCM;
+        if (algorithmId == ALG_CHACHA20_POLY1305) {
+            try {
+                cipher = Cipher.getInstance(CHACHA20_POLY1305);
+                algorithm = ALG_CHACHA20_POLY1305;
+            } catch (NoSuchAlgorithmException e) {
+                // ChaCha20-Poly1305 not available on this device
+                Log.w("ModernEncryptionService", "ChaCha20-Poly1305 not available, falling back to AES-GCM", e);
+                algorithmId = ALG_AES_GCM;
+            }
+        }
+        if (cipher == null) {
+            cipher = Cipher.getInstance(AES_GCM);
+        }
 
-        // Extract ciphertext (the IV length to the end, including auth tag)
-        byte[] ciphertext = Arrays.copyOfRange(data, GCM_IV_LENGTH, data.length);
+        // Generate random nonce prefix
+        byte[] noncePrefix = CryptoPrimitives.randomBytes(ChunkedAead.NONCE_PREFIX_LENGTH);
 
-        // Initialize cipher
-        Cipher cipher = Cipher.getInstance(AES_GCM);
-        GCMParameterSpec gcmParameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
-        cipher.init(Cipher.DECRYPT_MODE, secretKey, gcmParameterSpec);
+        // Format: [Algorithm (1 byte)][Nonce prefix (7 bytes)][Chunks]
+        ByteBuffer prefix = ByteBuffer.allocate(1 + noncePrefix.length);
+        prefix.put(algorithm);
+        prefix.put(noncePrefix);
+        prefix.flip();
+        CipherChannels.writeFully(channel, prefix);
 
-        // Add associated data (header) for additional security
-        cipher.updateAAD(DATABASE_HEADER);
-
-        // Perform decryption
-        return cipher.doFinal(ciphertext);
+        return new ChunkedAead.EncryptingOutputStream(cipher, secretKey, associatedData, noncePrefix, channel);
     }
 
     /**
-     * Encrypt data using ChaCha20-Poly1305
+     * Decrypt data written by {@link #encryptChunked(WritableByteChannel, byte[])}.
+     * The chunks are read using positional reads and decrypted in parallel.
+     * @param channel The database file
+     * @param position The position of the algorithm identifier
+     * @param length The number of bytes from the algorithm identifier to the end of the data
+     * @param associatedData The file header the data was encrypted with
+     * @return A buffer backed by the plaintext
      */
-    private byte[] encryptChaCha20Poly1305(byte[] plaintext) throws NoSuchAlgorithmException, NoSuchPaddingException,
-            NoSuchProviderException, InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException {
-
-        // Generate random nonce
-        SecureRandom secureRandom = new SecureRandom();
-        byte[] nonce = new byte[CHACHA_NONCE_LENGTH];
-        secureRandom.nextBytes(nonce);
+    public ByteBuffer decryptChunked(FileChannel channel, long position, long length, byte[] associatedData) throws IOException, InvalidPasswordException {
+        if (secretKey == null) {
+            throw new IllegalStateException("Decryption key has not been initialized");
+        }
 
-        // Initialize cipher
-        Cipher cipher = Cipher.getInstance(CHACHA20_POLY1305);
-        GCMParameterSpec parameterSpec = new GCMParameterSpec(128, nonce);
-        cipher.init(Cipher.ENCRYPT_MODE, secretKey, parameterSpec);
+        int prefixLength = 1 + ChunkedAead.NONCE_PREFIX_LENGTH;
+        if (length < prefixLength + GCM_TAG_LENGTH) {
+            throw new InvalidPasswordException("Invalid encrypted data");
+        }
 
-        // Add associated data (header) for additional security
-        cipher.updateAAD(DATABASE_HEADER);
+        ByteBuffer prefix = ByteBuffer.allocate(prefixLength);
+        while (prefix.hasRemaining()) {
+            if (channel.read(prefix, position + prefix.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        byte algorithm = prefix.get(0);
+        byte[] noncePrefix = Arrays.copyOfRange(prefix.array(), 1, prefixLength);
 
-        // Perform encryption
-        byte[] ciphertext = cipher.doFinal(plaintext);
+        try {
+            // Fails if the algorithm is unknown or the device doesn't support it
+            cipherFor(algorithm);
+        } catch (NoSuchPaddingException e) {
+            throw new InvalidPasswordException("Decryption failed: " + e.getMessage());
+        }
+        String transformation = algorithm == ALG_CHACHA20_POLY1305 ? CHACHA20_POLY1305 : AES_GCM;
 
-        // Format: [Algorithm (1 byte)][Nonce (12 bytes)][Ciphertext + Auth Tag]
-        ByteBuffer byteBuffer = ByteBuffer.allocate(1 + nonce.length + ciphertext.length);
-        byteBuffer.put(ALG_CHACHA20_POLY1305);
-        byteBuffer.put(nonce);
-        byteBuffer.put(ciphertext);
+        return ChunkedAead.decrypt(transformation, secretKey, associatedData, noncePrefix,
+                channel, position + prefixLength, length - prefixLength);
+    }
 
-        return byteBuffer.array();
+    /**
+     * This thread's cipher for the algorithm identifier at the start of a blob
+     * @throws InvalidPasswordException if the algorithm is unknown or not supported on this device
+     */
+    private static Cipher cipherFor(byte algorithm) throws InvalidPasswordException, NoSuchPaddingException {
+        if (algorithm == ALG_CHACHA20_POLY1305) {
+            try {
+                return CryptoPrimitives.cipher(CHACHA20_POLY1305);
+            } catch (NoSuchAlgorithmException e) {
+                Log.w("ModernEncryptionService", "ChaCha20-Poly1305 not available for decryption", e);
+                throw new InvalidPasswordException("ChaCha20-Poly1305 algorithm not supported on this device. Try using AES-GCM instead.");
+            }
+        } else if (algorithm == ALG_AES_GCM) {
+            try {
+                return CryptoPrimitives.cipher(AES_GCM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new InvalidPasswordException("Decryption failed: " + e.getMessage());
+            }
+        }
+        throw new InvalidPasswordException("Unknown encryption algorithm: " + algorithm);
     }
 
     /**
-     * Decrypt data using ChaCha20-Poly1305
+     * Encrypt data using AES-GCM or ChaCha20-Poly1305, writing the ciphertext
+     * straight into the blob after the algorithm identifier and IV
      */
-    private byte[] decryptChaCha20Poly1305(byte[] data) throws NoSuchAlgorithmException, NoSuchPaddingException,
-            NoSuchProviderException, InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException {
+    private byte[] encryptAead(byte algorithm, byte[] plaintext, int offset, int length, byte[] associatedData)
+            throws NoSuchAlgorithmException, NoSuchPaddingException, NoSuchProviderException, InvalidKeyException,
+            InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException, ShortBufferException {
 
-        // Extract nonce
-        byte[] nonce = Arrays.copyOfRange(data, 0, CHACHA_NONCE_LENGTH);
+        Cipher cipher = CryptoPrimitives.cipher(algorithm == ALG_CHACHA20_POLY1305 ? CHACHA20_POLY1305 : AES_GCM);
 
-        // Extract ciphertext (the nonce length to the end, including auth tag)
-        byte[] ciphertext = Arrays.copyOfRange(data, CHACHA_NONCE_LENGTH, data.length);
+        // Format: [Algorithm (1 byte)][IV/Nonce (12 bytes)][Ciphertext + Auth Tag]
+        byte[] blob = new byte[1 + GCM_IV_LENGTH + length + GCM_TAG_LENGTH];
+        blob[0] = algorithm;
+        byte[] iv = CryptoPrimitives.randomBytes(GCM_IV_LENGTH);
+        System.arraycopy(iv, 0, blob, 1, GCM_IV_LENGTH);
 
-        // Initialize cipher
-        Cipher cipher = Cipher.getInstance(CHACHA20_POLY1305);
-        GCMParameterSpec parameterSpec = new GCMParameterSpec(128, nonce);
-        cipher.init(Cipher.DECRYPT_MODE, secretKey, parameterSpec);
+        cipher.init(Cipher.ENCRYPT_MODE, secretKey, new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv));
 
         // Add associated data (header) for additional security
-        cipher.updateAAD(DATABASE_HEADER);
-
-        // Perform decryption
-        return cipher.doFinal(ciphertext);
+        cipher.updateAAD(associatedData);
+        cipher.doFinal(plaintext, offset, length, blob, 1 + GCM_IV_LENGTH);
+        return blob;
     }
 
     /**
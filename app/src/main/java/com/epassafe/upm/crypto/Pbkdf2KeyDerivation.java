@@ -0,0 +1,90 @@
+/*
+ * Epassafe Password Manager
+ * Copyright (c) 2010-2026
+ *
+ * This file is part of Epassafe Password Manager.
+ *
+ * Epassafe Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Epassafe Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ */
+package com.epassafe.upm.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * PBKDF2 with HMAC-SHA512.
+ */
+public final class Pbkdf2KeyDerivation extends KeyDerivation {
+
+    public static final int DEFAULT_ITERATIONS = 310000;
+    // Guards against a header that would keep unlock busy more or less forever
+    static final int MAX_ITERATIONS = 100000000;
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA512";
+
+    /** What the formats without stored parameters have always used */
+    public static final Pbkdf2KeyDerivation DEFAULT = new Pbkdf2KeyDerivation(DEFAULT_ITERATIONS);
+
+    private final int iterations;
+
+
+    public Pbkdf2KeyDerivation(int iterations) {
+        if (iterations < 1 || iterations > MAX_ITERATIONS) {
+            throw new IllegalArgumentException("Invalid PBKDF2 iteration count " + iterations);
+        }
+        this.iterations = iterations;
+    }
+
+
+    @Override
+    public byte[] deriveKey(char[] password, byte[] salt, int length) throws InvalidKeySpecException, NoSuchAlgorithmException {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, length * 8);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+
+    @Override
+    public byte getType() {
+        return TYPE_PBKDF2;
+    }
+
+
+    @Override
+    int getParametersLength() {
+        return 4;
+    }
+
+
+    @Override
+    void writeParameters(ByteBuffer buffer) {
+        buffer.putInt(iterations);
+    }
+
+
+    public int getIterations() {
+        return iterations;
+    }
+
+
+    @Override
+    public String toString() {
+        return "PBKDF2-HMAC-SHA512 i=" + iterations;
+    }
+
+}
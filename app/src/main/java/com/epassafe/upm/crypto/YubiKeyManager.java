@@ -33,7 +33,6 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.util.Arrays;
 
 import javax.crypto.Cipher;
@@ -155,9 +154,6 @@ public class YubiKeyManager {
     private static final int WRAP_SALT_LENGTH = 16;
     private static final int WRAP_TAG_BITS = 128;
 
-    /** PBKDF2 iterations for password-based wrapping key (mode 3). */
-    private static final int PBKDF2_WRAP_ITERATIONS = 310000;
-
     /** Blob tags in v2 sidecar. */
     private static final byte BLOB_TAG_YK_WRAPPED_KEY = 0x01;
     private static final byte BLOB_TAG_PW_WRAPPED_KEY = 0x02;
@@ -201,16 +197,12 @@ public class YubiKeyManager {
 
     /** Generate a new random 32-byte challenge. */
     public static byte[] generateChallenge() {
-        byte[] challenge = new byte[CHALLENGE_LENGTH];
-        new SecureRandom().nextBytes(challenge);
-        return challenge;
+        return CryptoPrimitives.randomBytes(CHALLENGE_LENGTH);
     }
 
     /** Generate a new random DB key for PASSWORDLESS / PASSWORD_OR_YUBIKEY modes. */
     public static byte[] generateDbKey() {
-        byte[] key = new byte[DB_KEY_LENGTH];
-        new SecureRandom().nextBytes(key);
-        return key;
+        return CryptoPrimitives.randomBytes(DB_KEY_LENGTH);
     }
 
     /**
@@ -706,7 +698,7 @@ public class YubiKeyManager {
      */
     public static byte[] hkdfSha256(byte[] ikm, byte[] salt, byte[] info, int outputLen) {
         try {
-            javax.crypto.Mac mac = javax.crypto.Mac.getInstance("HmacSHA256");
+            javax.crypto.Mac mac = CryptoPrimitives.hmacSha256();
             // Extract
             if (salt == null || salt.length == 0) salt = new byte[32];
             mac.init(new SecretKeySpec(salt, "HmacSHA256"));
@@ -738,25 +730,13 @@ public class YubiKeyManager {
      * @return blob: salt(16) + iv(12) + ciphertext+tag
      */
     public static byte[] wrapDbKeyWithYubiKey(byte[] dbKey, byte[] hmacResponse) throws Exception {
-        byte[] salt = new byte[WRAP_SALT_LENGTH];
-        new SecureRandom().nextBytes(salt);
+        byte[] salt = CryptoPrimitives.randomBytes(WRAP_SALT_LENGTH);
         byte[] wrappingKey = hkdfSha256(hmacResponse, salt, HKDF_INFO, 32);
-
-        byte[] iv = new byte[WRAP_IV_LENGTH];
-        new SecureRandom().nextBytes(iv);
-
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(wrappingKey, "AES"),
-                new GCMParameterSpec(WRAP_TAG_BITS, iv));
-        byte[] ciphertext = cipher.doFinal(dbKey);
-        Arrays.fill(wrappingKey, (byte) 0);
-
-        // Assemble blob: salt + iv + ciphertext
-        byte[] blob = new byte[salt.length + iv.length + ciphertext.length];
-        System.arraycopy(salt, 0, blob, 0, salt.length);
-        System.arraycopy(iv, 0, blob, salt.length, iv.length);
-        System.arraycopy(ciphertext, 0, blob, salt.length + iv.length, ciphertext.length);
-        return blob;
+        try {
+            return wrap(dbKey, salt, wrappingKey);
+        } finally {
+            Arrays.fill(wrappingKey, (byte) 0);
+        }
     }
 
     /**
@@ -768,20 +748,13 @@ public class YubiKeyManager {
         try {
             if (blob.length < WRAP_SALT_LENGTH + WRAP_IV_LENGTH + 1) return null;
 
-            byte[] salt = new byte[WRAP_SALT_LENGTH];
-            byte[] iv = new byte[WRAP_IV_LENGTH];
-            System.arraycopy(blob, 0, salt, 0, WRAP_SALT_LENGTH);
-            System.arraycopy(blob, WRAP_SALT_LENGTH, iv, 0, WRAP_IV_LENGTH);
-            byte[] ciphertext = new byte[blob.length - WRAP_SALT_LENGTH - WRAP_IV_LENGTH];
-            System.arraycopy(blob, WRAP_SALT_LENGTH + WRAP_IV_LENGTH, ciphertext, 0, ciphertext.length);
-
+            byte[] salt = Arrays.copyOf(blob, WRAP_SALT_LENGTH);
             byte[] wrappingKey = hkdfSha256(hmacResponse, salt, HKDF_INFO, 32);
-            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(wrappingKey, "AES"),
-                    new GCMParameterSpec(WRAP_TAG_BITS, iv));
-            byte[] dbKey = cipher.doFinal(ciphertext);
-            Arrays.fill(wrappingKey, (byte) 0);
-            return dbKey;
+            try {
+                return unwrap(blob, wrappingKey);
+            } finally {
+                Arrays.fill(wrappingKey, (byte) 0);
+            }
         } catch (Exception e) {
             Log.e(TAG, "Failed to unwrap DB key with YubiKey", e);
             return null;
@@ -793,27 +766,22 @@ public class YubiKeyManager {
      * @return blob: salt(16) + iv(12) + ciphertext+tag
      */
     public static byte[] wrapDbKeyWithPassword(byte[] dbKey, char[] password) throws Exception {
-        byte[] salt = new byte[WRAP_SALT_LENGTH];
-        new SecureRandom().nextBytes(salt);
-
-        PBEKeySpec spec = new PBEKeySpec(password, salt, PBKDF2_WRAP_ITERATIONS, 256);
-        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512");
-        byte[] keyBytes = factory.generateSecret(spec).getEncoded();
-
-        byte[] iv = new byte[WRAP_IV_LENGTH];
-        new SecureRandom().nextBytes(iv);
-
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keyBytes, "AES"),
-                new GCMParameterSpec(WRAP_TAG_BITS, iv));
-        byte[] ciphertext = cipher.doFinal(dbKey);
-        Arrays.fill(keyBytes, (byte) 0);
+        return wrapDbKeyWithPassword(dbKey, password, Pbkdf2KeyDerivation.DEFAULT);
+    }
 
-        byte[] blob = new byte[salt.length + iv.length + ciphertext.length];
-        System.arraycopy(salt, 0, blob, 0, salt.length);
-        System.arraycopy(iv, 0, blob, salt.length, iv.length);
-        System.arraycopy(ciphertext, 0, blob, salt.length + iv.length, ciphertext.length);
-        return blob;
+    /**
+     * Wrap (encrypt) a DB key using a password via the given KDF + AES-GCM.
+     * The KDF isn't recorded in the blob, the caller has to keep track of it.
+     * @return blob: salt(16) + iv(12) + ciphertext+tag
+     */
+    public static byte[] wrapDbKeyWithPassword(byte[] dbKey, char[] password, KeyDerivation kdf) throws Exception {
+        byte[] salt = CryptoPrimitives.randomBytes(WRAP_SALT_LENGTH);
+        byte[] keyBytes = kdf.deriveKey(password, salt, 32);
+        try {
+            return wrap(dbKey, salt, keyBytes);
+        } finally {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
     }
 
     /**
@@ -821,32 +789,58 @@ public class YubiKeyManager {
      * @return The 32-byte DB key, or null on failure
      */
     public static byte[] unwrapDbKeyWithPassword(byte[] blob, char[] password) {
+        return unwrapDbKeyWithPassword(blob, password, Pbkdf2KeyDerivation.DEFAULT);
+    }
+
+    /**
+     * Unwrap (decrypt) a DB key using a password and the KDF it was wrapped with.
+     * @return The 32-byte DB key, or null on failure
+     */
+    public static byte[] unwrapDbKeyWithPassword(byte[] blob, char[] password, KeyDerivation kdf) {
         try {
             if (blob.length < WRAP_SALT_LENGTH + WRAP_IV_LENGTH + 1) return null;
 
-            byte[] salt = new byte[WRAP_SALT_LENGTH];
-            byte[] iv = new byte[WRAP_IV_LENGTH];
-            System.arraycopy(blob, 0, salt, 0, WRAP_SALT_LENGTH);
-            System.arraycopy(blob, WRAP_SALT_LENGTH, iv, 0, WRAP_IV_LENGTH);
-            byte[] ciphertext = new byte[blob.length - WRAP_SALT_LENGTH - WRAP_IV_LENGTH];
-            System.arraycopy(blob, WRAP_SALT_LENGTH + WRAP_IV_LENGTH, ciphertext, 0, ciphertext.length);
-
-            PBEKeySpec spec = new PBEKeySpec(password, salt, PBKDF2_WRAP_ITERATIONS, 256);
-            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512");
-            byte[] keyBytes = factory.generateSecret(spec).getEncoded();
-
-            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(keyBytes, "AES"),
-                    new GCMParameterSpec(WRAP_TAG_BITS, iv));
-            byte[] dbKey = cipher.doFinal(ciphertext);
-            Arrays.fill(keyBytes, (byte) 0);
-            return dbKey;
+            byte[] salt = Arrays.copyOf(blob, WRAP_SALT_LENGTH);
+            byte[] keyBytes = kdf.deriveKey(password, salt, 32);
+            try {
+                return unwrap(blob, keyBytes);
+            } finally {
+                Arrays.fill(keyBytes, (byte) 0);
+            }
         } catch (Exception e) {
             Log.e(TAG, "Failed to unwrap DB key with password", e);
             return null;
         }
     }
 
+    /**
+     * Encrypt a DB key with AES-GCM straight into a salt + iv + ciphertext+tag blob.
+     */
+    private static byte[] wrap(byte[] dbKey, byte[] salt, byte[] wrappingKey) throws Exception {
+        byte[] blob = new byte[WRAP_SALT_LENGTH + WRAP_IV_LENGTH + dbKey.length + WRAP_TAG_BITS / 8];
+        System.arraycopy(salt, 0, blob, 0, WRAP_SALT_LENGTH);
+        byte[] iv = CryptoPrimitives.randomBytes(WRAP_IV_LENGTH);
+        System.arraycopy(iv, 0, blob, WRAP_SALT_LENGTH, WRAP_IV_LENGTH);
+
+        Cipher cipher = CryptoPrimitives.aesGcm();
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(wrappingKey, "AES"),
+                new GCMParameterSpec(WRAP_TAG_BITS, iv));
+        cipher.doFinal(dbKey, 0, dbKey.length, blob, WRAP_SALT_LENGTH + WRAP_IV_LENGTH);
+        return blob;
+    }
+
+    /**
+     * Decrypt the DB key in a blob made by wrap(), using the IV and
+     * ciphertext where they are in the blob.
+     */
+    private static byte[] unwrap(byte[] blob, byte[] wrappingKey) throws Exception {
+        int ciphertextPos = WRAP_SALT_LENGTH + WRAP_IV_LENGTH;
+        Cipher cipher = CryptoPrimitives.aesGcm();
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(wrappingKey, "AES"),
+                new GCMParameterSpec(WRAP_TAG_BITS, blob, WRAP_SALT_LENGTH, WRAP_IV_LENGTH));
+        return cipher.doFinal(blob, ciphertextPos, blob.length - ciphertextPos);
+    }
+
     /**
      * Convert a raw DB key to a char[] suitable for PasswordDatabase/PBKDF2.
      */
@@ -940,8 +934,7 @@ public class YubiKeyManager {
      * @return The recovery code string (with dashes for readability)
      */
     public static String generateRecoveryCode() {
-        byte[] bytes = new byte[RECOVERY_CODE_LENGTH];
-        new SecureRandom().nextBytes(bytes);
+        byte[] bytes = CryptoPrimitives.randomBytes(RECOVERY_CODE_LENGTH);
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < bytes.length; i++) {
             if (i > 0 && i % 2 == 0) sb.append('-');
@@ -953,7 +946,7 @@ public class YubiKeyManager {
     /**
      * Normalize a recovery code for cryptographic use (strip dashes, uppercase).
      */
-    private static String normalizeRecoveryCode(String recoveryCode) {
+    static String normalizeRecoveryCode(String recoveryCode) {
         return recoveryCode.replace("-", "").replace(" ", "").toUpperCase();
     }
 
@@ -981,8 +974,7 @@ public class YubiKeyManager {
         String normalized = normalizeRecoveryCode(recoveryCode);
 
         // Derive encryption key from password + recovery code (or just recovery code)
-        byte[] salt = new byte[16];
-        new SecureRandom().nextBytes(salt);
+        byte[] salt = CryptoPrimitives.randomBytes(16);
 
         char[] keyInput = (password != null)
                 ? combineForRecovery(password, normalized)
@@ -995,10 +987,9 @@ public class YubiKeyManager {
         Arrays.fill(keyBytes, (byte) 0);
 
         // Encrypt the secret with AES-GCM
-        byte[] iv = new byte[AES_GCM_IV_LENGTH];
-        new SecureRandom().nextBytes(iv);
+        byte[] iv = CryptoPrimitives.randomBytes(AES_GCM_IV_LENGTH);
 
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        Cipher cipher = CryptoPrimitives.aesGcm();
         cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(AES_GCM_TAG_BITS, iv));
         byte[] ciphertext = cipher.doFinal(secret);
 
@@ -1069,7 +1060,7 @@ public class YubiKeyManager {
             Arrays.fill(keyInput, '\0');
             Arrays.fill(keyBytes, (byte) 0);
 
-            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            Cipher cipher = CryptoPrimitives.aesGcm();
             cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(AES_GCM_TAG_BITS, iv));
             return cipher.doFinal(ciphertext);
 
@@ -66,11 +66,13 @@ public class AccountInformation extends FlatPackObject {
     
     
     public void flatPack(OutputStream os) throws IOException {
-        os.write(flatPack(accountName));
-        os.write(flatPack(userId));
-        os.write(flatPack(password));
-        os.write(flatPack(url));
-        os.write(flatPack(notes));
+        // Go through the getters so subclasses that decode on demand
+        // are written out correctly
+        os.write(flatPack(getAccountName()));
+        os.write(flatPack(getUserId()));
+        os.write(flatPack(getPassword()));
+        os.write(flatPack(getUrl()));
+        os.write(flatPack(getNotes()));
     }
 
     private void assemble(InputStream is, Charset charset) throws IOException, ProblemReadingDatabaseFile {
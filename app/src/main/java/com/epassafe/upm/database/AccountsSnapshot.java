@@ -0,0 +1,129 @@
+/*
+ * Epassafe Password Manager
+ * Copyright (c) 2010-2026
+ *
+ * This file is part of Epassafe Password Manager.
+ *
+ * Epassafe Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Epassafe Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ */
+package com.epassafe.upm.database;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An immutable, point in time view of the accounts in a database along with
+ * the changes made since it was last saved. Every edit produces a new
+ * snapshot with the next version number, so a save can serialise one
+ * snapshot while further edits carry on against newer ones.
+ */
+public final class AccountsSnapshot {
+
+    private final long version;
+    private final Map<String, AccountInformation> accounts;
+    // Unsaved changes keyed on account name, a null value means the account was deleted
+    private final Map<String, AccountInformation> changes;
+
+
+    AccountsSnapshot(Map<String, AccountInformation> accounts) {
+        this(0, accounts, Collections.<String, AccountInformation>emptyMap());
+    }
+
+
+    private AccountsSnapshot(long version, Map<String, AccountInformation> accounts,
+            Map<String, AccountInformation> changes) {
+        this.version = version;
+        this.accounts = Collections.unmodifiableMap(accounts);
+        this.changes = Collections.unmodifiableMap(changes);
+    }
+
+
+    /**
+     * @return A snapshot with the given account added, replacing any account
+     *         called <code>replacedName</code> (which may be its own name)
+     */
+    AccountsSnapshot withAccount(String replacedName, AccountInformation ai) {
+        HashMap<String, AccountInformation> newAccounts = new HashMap<String, AccountInformation>(accounts);
+        LinkedHashMap<String, AccountInformation> newChanges = new LinkedHashMap<String, AccountInformation>(changes);
+        if (replacedName != null && !replacedName.equals(ai.getAccountName())) {
+            newAccounts.remove(replacedName);
+            newChanges.put(replacedName, null);
+        }
+        newAccounts.put(ai.getAccountName(), ai);
+        newChanges.put(ai.getAccountName(), ai);
+        return new AccountsSnapshot(version + 1, newAccounts, newChanges);
+    }
+
+
+    AccountsSnapshot withoutAccount(String accountName) {
+        HashMap<String, AccountInformation> newAccounts = new HashMap<String, AccountInformation>(accounts);
+        LinkedHashMap<String, AccountInformation> newChanges = new LinkedHashMap<String, AccountInformation>(changes);
+        newAccounts.remove(accountName);
+        newChanges.put(accountName, null);
+        return new AccountsSnapshot(version + 1, newAccounts, newChanges);
+    }
+
+
+    /**
+     * @return A snapshot with the changes that were written when
+     *         <code>saved</code> was saved no longer marked as unsaved.
+     *         Changes made to an account since then are kept.
+     */
+    AccountsSnapshot withChangesSaved(AccountsSnapshot saved) {
+        LinkedHashMap<String, AccountInformation> newChanges = new LinkedHashMap<String, AccountInformation>(changes);
+        for (Map.Entry<String, AccountInformation> change : saved.changes.entrySet()) {
+            String name = change.getKey();
+            if (newChanges.containsKey(name) && newChanges.get(name) == change.getValue()) {
+                newChanges.remove(name);
+            }
+        }
+        return new AccountsSnapshot(version + 1, accounts, newChanges);
+    }
+
+
+    public long getVersion() {
+        return version;
+    }
+
+
+    public AccountInformation getAccount(String name) {
+        return accounts.get(name);
+    }
+
+
+    public Collection<AccountInformation> getAccounts() {
+        return accounts.values();
+    }
+
+
+    public int size() {
+        return accounts.size();
+    }
+
+
+    Map<String, AccountInformation> getAccountMap() {
+        return accounts;
+    }
+
+
+    Map<String, AccountInformation> getChanges() {
+        return changes;
+    }
+
+
+    boolean hasChanges() {
+        return !changes.isEmpty();
+    }
+
+}
@@ -0,0 +1,300 @@
+/*
+ * Epassafe Password Manager
+ * Copyright (c) 2010-2026
+ *
+ * This file is part of Epassafe Password Manager.
+ *
+ * Epassafe Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Epassafe Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ */
+package com.epassafe.upm.database;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Reads the binary payload written by {@link BinaryPayloadWriter} directly
+ * from the decrypted buffer. Field lengths are decoded in place, the only
+ * objects created are the field values themselves.
+ */
+public class BinaryPayloadReader {
+
+    private static final int MAX_VARINT_BYTES = 5;
+    // Accounts parsed by a single task when an index lets the work be split
+    private static final int ACCOUNTS_PER_TASK = 1024;
+
+    private final byte[] buffer;
+    private final int start;
+    private final int limit;
+    private int position;
+
+
+    public BinaryPayloadReader(byte[] buffer, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > buffer.length) {
+            throw new IndexOutOfBoundsException("Invalid payload bounds");
+        }
+        this.buffer = buffer;
+        this.start = offset;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+
+    public Revision readRevision() throws ProblemReadingDatabaseFile {
+        Revision revision = new Revision();
+        revision.setRevision(readVarInt());
+        return revision;
+    }
+
+
+    public DatabaseOptions readDatabaseOptions() throws ProblemReadingDatabaseFile {
+        DatabaseOptions dbOptions = new DatabaseOptions();
+        dbOptions.setRemoteLocation(readString());
+        dbOptions.setAuthDBEntry(readString());
+        return dbOptions;
+    }
+
+
+    public AccountInformation readAccount() throws ProblemReadingDatabaseFile {
+        return new AccountInformation(readString(), readString(), readString(),
+                readString(), readString());
+    }
+
+
+    /**
+     * Read an account decoding only its name. The remaining fields are
+     * checked to be within the payload and left for the account to decode
+     * when they're first asked for.
+     */
+    public LazyAccountInformation readLazyAccount() throws ProblemReadingDatabaseFile {
+        int recordStart = position;
+        String accountName = readString();
+        int detailsStart = position;
+        for (int i = 0; i < LazyAccountInformation.NUM_DETAIL_FIELDS; i++) {
+            skipField();
+        }
+        return new LazyAccountInformation(accountName, buffer, recordStart,
+                position - recordStart, detailsStart);
+    }
+
+
+    /**
+     * Read <code>count</code> accounts, decoding only their names. If the
+     * payload carries an index and holds enough accounts to make it worth
+     * it the records are split between tasks on the common fork-join pool,
+     * otherwise they're read one after the other.
+     */
+    public LazyAccountInformation[] readLazyAccounts(int count) throws ProblemReadingDatabaseFile {
+        // Every record takes at least one byte per field
+        if (count > remaining() / (1 + LazyAccountInformation.NUM_DETAIL_FIELDS)) {
+            throw new ProblemReadingDatabaseFile("The account count runs past the end of the database");
+        }
+        LazyAccountInformation[] accounts = new LazyAccountInformation[count];
+        int[] index = count > ACCOUNTS_PER_TASK ? readIndex(count) : null;
+        if (index == null || index[0] != position - start) {
+            for (int i = 0; i < count; i++) {
+                accounts[i] = readLazyAccount();
+            }
+            return accounts;
+        }
+
+        int accountsEnd = start + readInt(limit - BinaryPayloadWriter.INDEX_FOOTER_LENGTH);
+        try {
+            ForkJoinPool.commonPool().invoke(new ParseTask(index, accountsEnd, accounts, 0, count));
+        } catch (ParseException e) {
+            throw (ProblemReadingDatabaseFile) e.getCause();
+        }
+        position = accountsEnd;
+        return accounts;
+    }
+
+
+    /**
+     * Read the index written at the end of the payload. The reader's
+     * position doesn't change.
+     * @return The offset of each account record from the start of the
+     *         payload, or null if the payload has no usable index
+     */
+    public int[] readIndex(int accountCount) {
+        long indexLength = (long) accountCount * 4 + BinaryPayloadWriter.INDEX_FOOTER_LENGTH;
+        if (indexLength > limit - start) {
+            return null;
+        }
+        byte[] magic = BinaryPayloadWriter.INDEX_MAGIC;
+        for (int i = 0; i < magic.length; i++) {
+            if (buffer[limit - magic.length + i] != magic[i]) {
+                return null;
+            }
+        }
+        int indexOffset = readInt(limit - BinaryPayloadWriter.INDEX_FOOTER_LENGTH);
+        if (indexOffset != limit - start - indexLength) {
+            return null;
+        }
+
+        // Records are written in order so the offsets must increase
+        int[] offsets = new int[accountCount];
+        int previous = -1;
+        for (int i = 0; i < accountCount; i++) {
+            offsets[i] = readInt(start + indexOffset + i * 4);
+            if (offsets[i] <= previous || offsets[i] >= indexOffset) {
+                return null;
+            }
+            previous = offsets[i];
+        }
+        return offsets;
+    }
+
+
+    /**
+     * Move to the given offset from the start of the payload, for example a
+     * record offset taken from the index.
+     */
+    public void seek(int payloadOffset) {
+        if (payloadOffset < 0 || payloadOffset > limit - start) {
+            throw new IndexOutOfBoundsException("Invalid payload offset " + payloadOffset);
+        }
+        position = start + payloadOffset;
+    }
+
+
+    private int readInt(int at) {
+        return ((buffer[at] & 0xFF) << 24) | ((buffer[at + 1] & 0xFF) << 16)
+                | ((buffer[at + 2] & 0xFF) << 8) | (buffer[at + 3] & 0xFF);
+    }
+
+
+    public void skipField() throws ProblemReadingDatabaseFile {
+        int length = readLength();
+        position += length;
+    }
+
+
+    public byte[] readBytes() throws ProblemReadingDatabaseFile {
+        int length = readLength();
+        byte[] bytes = Arrays.copyOfRange(buffer, position, position + length);
+        position += length;
+        return bytes;
+    }
+
+
+    public String readString() throws ProblemReadingDatabaseFile {
+        int length = readLength();
+        String s = new String(buffer, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return s;
+    }
+
+
+    /**
+     * Read a field length and check the field fits in what's left of the payload.
+     */
+    public int readLength() throws ProblemReadingDatabaseFile {
+        int length = readVarInt();
+        if (length > limit - position) {
+            throw new ProblemReadingDatabaseFile("A field runs past the end of the database");
+        }
+        return length;
+    }
+
+
+    public int readVarInt() throws ProblemReadingDatabaseFile {
+        int value = 0;
+        for (int i = 0; i < MAX_VARINT_BYTES; i++) {
+            if (position >= limit) {
+                throw new ProblemReadingDatabaseFile("Unexpected end of database");
+            }
+            int b = buffer[position++];
+            if (i == MAX_VARINT_BYTES - 1 && (b & 0xF8) != 0) {
+                // Only the low 3 bits of the last byte fit in a non negative int
+                break;
+            }
+            value |= (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProblemReadingDatabaseFile("A number in the database is out of range");
+    }
+
+
+    public int getPosition() {
+        return position;
+    }
+
+
+    public int remaining() {
+        return limit - position;
+    }
+
+
+
+    /**
+     * Carries a ProblemReadingDatabaseFile out of the fork-join tasks.
+     */
+    private static final class ParseException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        ParseException(ProblemReadingDatabaseFile cause) {
+            super(cause);
+        }
+    }
+
+
+    /**
+     * Reads the accounts from <code>from</code> up to <code>to</code>, each
+     * range of records has to end exactly where the next one starts.
+     */
+    private final class ParseTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] index;
+        private final int accountsEnd;
+        private final LazyAccountInformation[] accounts;
+        private final int from;
+        private final int to;
+
+        ParseTask(int[] index, int accountsEnd, LazyAccountInformation[] accounts, int from, int to) {
+            this.index = index;
+            this.accountsEnd = accountsEnd;
+            this.accounts = accounts;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > ACCOUNTS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ParseTask(index, accountsEnd, accounts, from, middle),
+                        new ParseTask(index, accountsEnd, accounts, middle, to));
+                return;
+            }
+
+            int rangeStart = start + index[from];
+            int rangeEnd = to < index.length ? start + index[to] : accountsEnd;
+            BinaryPayloadReader reader = new BinaryPayloadReader(buffer, rangeStart, rangeEnd - rangeStart);
+            try {
+                for (int i = from; i < to; i++) {
+                    accounts[i] = reader.readLazyAccount();
+                }
+                if (reader.remaining() != 0) {
+                    throw new ProblemReadingDatabaseFile("The database index doesn't match its accounts");
+                }
+            } catch (ProblemReadingDatabaseFile e) {
+                throw new ParseException(e);
+            }
+        }
+    }
+
+}
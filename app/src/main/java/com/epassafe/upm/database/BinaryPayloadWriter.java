@@ -0,0 +1,140 @@
+/*
+ * Epassafe Password Manager
+ * Copyright (c) 2010-2026
+ *
+ * This file is part of Epassafe Password Manager.
+ *
+ * Epassafe Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Epassafe Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ */
+package com.epassafe.upm.database;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * Writes the binary payload used by modern format version 2 databases.
+ *
+ * Payload layout (all lengths and numbers are unsigned varints unless noted):
+ *   REVISION REMOTE_LOCATION AUTH_DB_ENTRY ACCOUNT_COUNT ACCOUNTS [INDEX]
+ *
+ *   REMOTE_LOCATION, AUTH_DB_ENTRY = LENGTH UTF8_BYTES
+ *   ACCOUNTS = ACCOUNT_COUNT x (NAME USER_ID PASSWORD URL NOTES), each LENGTH UTF8_BYTES
+ *   INDEX = ACCOUNT_COUNT x RECORD_OFFSET, INDEX_OFFSET, INDEX_MAGIC
+ *     RECORD_OFFSET, INDEX_OFFSET = 4 byte big endian offsets from the start of the payload
+ *
+ * Unlike the FlatPack encoding there is no limit on the length of a field.
+ *
+ * The index is optional. It lets a reader find any account without walking
+ * the ones before it, and so split the parsing of large databases. Readers
+ * stop after ACCOUNT_COUNT accounts so older ones simply ignore it.
+ */
+public class BinaryPayloadWriter {
+
+    static final byte[] INDEX_MAGIC = { 'U', 'P', 'M', 'I' };
+    /** INDEX_OFFSET and INDEX_MAGIC */
+    static final int INDEX_FOOTER_LENGTH = 4 + 4;
+
+    private final OutputStream os;
+    // Bytes written so far, used for the offsets in the index
+    private int written;
+
+
+    public BinaryPayloadWriter(OutputStream os) {
+        this.os = os;
+    }
+
+
+    /**
+     * Write a complete database payload.
+     */
+    public void write(Revision revision, DatabaseOptions dbOptions,
+            Collection<AccountInformation> accounts) throws IOException {
+        writeVarInt(revision.getRevision());
+        writeString(dbOptions.getRemoteLocation());
+        writeString(dbOptions.getAuthDBEntry());
+        writeVarInt(accounts.size());
+        int[] recordOffsets = new int[accounts.size()];
+        int i = 0;
+        for (AccountInformation ai : accounts) {
+            recordOffsets[i++] = written;
+            writeAccount(ai);
+        }
+
+        int indexOffset = written;
+        for (int recordOffset : recordOffsets) {
+            writeInt(recordOffset);
+        }
+        writeInt(indexOffset);
+        os.write(INDEX_MAGIC);
+        written += INDEX_MAGIC.length;
+    }
+
+
+    public void writeAccount(AccountInformation ai) throws IOException {
+        // Untouched accounts are copied through as they were read
+        if (ai instanceof LazyAccountInformation) {
+            LazyAccountInformation lazyAccount = (LazyAccountInformation) ai;
+            if (!lazyAccount.isModified()) {
+                lazyAccount.writeRecord(os);
+                written += lazyAccount.getRecordLength();
+                return;
+            }
+        }
+
+        writeString(ai.getAccountName());
+        writeString(ai.getUserId());
+        writeString(ai.getPassword());
+        writeString(ai.getUrl());
+        writeString(ai.getNotes());
+    }
+
+
+    public void writeString(String s) throws IOException {
+        writeBytes(s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    public void writeBytes(byte[] bytes) throws IOException {
+        writeVarInt(bytes.length);
+        os.write(bytes);
+        written += bytes.length;
+    }
+
+
+    /**
+     * Write a non negative int using 7 bits per byte, least significant
+     * group first. The high bit of each byte flags that another follows.
+     */
+    public void writeVarInt(int value) throws IOException {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative values can't be written as a varint: " + value);
+        }
+        while ((value & ~0x7F) != 0) {
+            os.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+            written++;
+        }
+        os.write(value);
+        written++;
+    }
+
+
+    private void writeInt(int value) throws IOException {
+        os.write(value >>> 24);
+        os.write(value >>> 16);
+        os.write(value >>> 8);
+        os.write(value);
+        written += 4;
+    }
+
+}
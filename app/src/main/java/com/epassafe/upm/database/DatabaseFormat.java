@@ -0,0 +1,209 @@
+/*
+ * Epassafe Password Manager
+ * Copyright (c) 2010-2026
+ *
+ * This file is part of Epassafe Password Manager.
+ *
+ * Epassafe Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Epassafe Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ */
+package com.epassafe.upm.database;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import com.epassafe.upm.crypto.EncryptionService;
+import com.epassafe.upm.crypto.KeySlots;
+import com.epassafe.upm.crypto.ModernEncryptionService;
+
+/**
+ * What the header of a database file says about how to open it: its format,
+ * version and algorithm, and for key slotted databases the key slots. It's
+ * read before any key is derived so that only the key derivation the format
+ * needs is run. See PasswordDatabase for the layouts.
+ */
+final class DatabaseFormat {
+
+    enum Kind {
+        /** UPM_MODERN header, AES-GCM or ChaCha20-Poly1305 */
+        MODERN,
+        /** UPM header, versions 2 and 3 */
+        LEGACY,
+        /** No header, from before version 2 */
+        ANCIENT
+    }
+
+    final Kind kind;
+    final long fileLength;
+
+    // The rest are for MODERN databases
+    byte formatVersion;
+    // How the encrypted body is laid out, which for key slotted databases
+    // is given after the key slots
+    byte bodyVersion;
+    long bodyPos;
+    byte[] salt;
+    // The header bytes the body is bound to
+    byte[] bodyHeader;
+    boolean chaCha20;
+    KeySlots keySlots;
+    int activeKeySlotArea;
+
+    // For LEGACY databases
+    byte legacyVersion;
+
+
+    private DatabaseFormat(Kind kind, long fileLength) {
+        this.kind = kind;
+        this.fileLength = fileLength;
+    }
+
+
+    /**
+     * Work out the format of a database from its header.
+     * @throws ProblemReadingDatabaseFile if the file isn't a database in a format we can open
+     */
+    static DatabaseFormat probe(FileChannel channel) throws IOException, ProblemReadingDatabaseFile {
+        long fileLength = channel.size();
+        if (fileLength < EncryptionService.SALT_LENGTH) {
+            throw new ProblemReadingDatabaseFile("This file doesn't appear to be a UPM password database");
+        }
+
+        byte[] modernHeader = PasswordDatabase.MODERN_FILE_HEADER.getBytes();
+        if (fileLength > modernHeader.length
+                && PasswordDatabase.startsWith(PasswordDatabase.readAt(channel, 0, modernHeader.length), modernHeader)) {
+            return probeModern(channel, fileLength);
+        }
+
+        byte[] legacyHeader = PasswordDatabase.FILE_HEADER.getBytes();
+        ByteBuffer prefix = PasswordDatabase.readAt(channel, 0, legacyHeader.length + 1);
+        if (!PasswordDatabase.startsWith(prefix, legacyHeader)) {
+            return new DatabaseFormat(Kind.ANCIENT, fileLength);
+        }
+        DatabaseFormat format = new DatabaseFormat(Kind.LEGACY, fileLength);
+        format.legacyVersion = prefix.get(legacyHeader.length);
+        if (format.legacyVersion != 2 && format.legacyVersion != 3) {
+            throw new ProblemReadingDatabaseFile("Don't know how to handle database version [" + format.legacyVersion + "]");
+        }
+        if (fileLength < legacyHeader.length + 1 + EncryptionService.SALT_LENGTH) {
+            throw new ProblemReadingDatabaseFile("This file doesn't appear to be a UPM password database");
+        }
+        return format;
+    }
+
+
+    private static DatabaseFormat probeModern(FileChannel channel, long fileLength) throws IOException, ProblemReadingDatabaseFile {
+        int headerLength = PasswordDatabase.KEY_SLOTS_POS;
+        if (fileLength < headerLength) {
+            throw new ProblemReadingDatabaseFile("The database header is incomplete");
+        }
+        ByteBuffer header = PasswordDatabase.readAt(channel, 0, headerLength);
+
+        DatabaseFormat format = new DatabaseFormat(Kind.MODERN, fileLength);
+        int versionPos = PasswordDatabase.MODERN_FILE_HEADER.length();
+        format.formatVersion = header.get(versionPos);
+        if (!isModernFormatVersion(format.formatVersion)) {
+            throw new ProblemReadingDatabaseFile("Unsupported modern database format version: " + format.formatVersion);
+        }
+        format.salt = Arrays.copyOfRange(header.array(), versionPos + 1, headerLength);
+
+        format.bodyVersion = format.formatVersion;
+        format.bodyPos = headerLength;
+        format.bodyHeader = header.array();
+        if (format.formatVersion == ModernEncryptionService.FORMAT_VERSION_KEY_SLOTS) {
+            ByteBuffer slotHeader = readKeySlotHeader(channel);
+            format.activeKeySlotArea = slotHeader.get(0);
+            format.keySlots = activeKeySlots(slotHeader);
+            format.bodyVersion = slotHeader.get(KeySlots.HEADER_LENGTH);
+            format.bodyPos = headerLength + slotHeader.limit();
+            format.bodyHeader = bodyHeader(format.bodyHeader, format.bodyVersion);
+        }
+
+        // Detect which algorithm was used (AES-GCM or ChaCha20-Poly1305)
+        long algorithmPos = algorithmPosition(format.bodyVersion, format.bodyPos);
+        if (fileLength > algorithmPos) {
+            format.chaCha20 = PasswordDatabase.readAt(channel, algorithmPos, 1).get(0)
+                    == ModernEncryptionService.ALG_CHACHA20_POLY1305;
+        }
+        return format;
+    }
+
+
+    boolean isUsingKeySlots() {
+        return keySlots != null;
+    }
+
+
+    private static boolean isModernFormatVersion(byte formatVersion) {
+        return formatVersion == ModernEncryptionService.FORMAT_VERSION
+                || formatVersion == ModernEncryptionService.FORMAT_VERSION_FLATPACK
+                || formatVersion == ModernEncryptionService.FORMAT_VERSION_SEGMENTED
+                || formatVersion == ModernEncryptionService.FORMAT_VERSION_CHUNKED
+                || formatVersion == ModernEncryptionService.FORMAT_VERSION_KEY_SLOTS;
+    }
+
+
+    /**
+     * The position of the algorithm identifier in a modern database file. In
+     * segmented databases it's the one used for the segment table.
+     * @param bodyPos Where the encrypted part of the file starts
+     */
+    private static long algorithmPosition(byte bodyVersion, long bodyPos) {
+        if (bodyVersion == ModernEncryptionService.FORMAT_VERSION_SEGMENTED) {
+            // Skip the segment table length
+            return bodyPos + 4;
+        }
+        return bodyPos;
+    }
+
+
+    /**
+     * Read the ACTIVE_AREA AREA AREA BODY_VERSION part of a key slotted database.
+     */
+    private static ByteBuffer readKeySlotHeader(FileChannel channel) throws IOException, ProblemReadingDatabaseFile {
+        int length = KeySlots.HEADER_LENGTH + 1;
+        if (channel.size() < PasswordDatabase.KEY_SLOTS_POS + length) {
+            throw new ProblemReadingDatabaseFile("The key slots are incomplete");
+        }
+        ByteBuffer slotHeader = PasswordDatabase.readAt(channel, PasswordDatabase.KEY_SLOTS_POS, length);
+        byte activeArea = slotHeader.get(0);
+        byte bodyVersion = slotHeader.get(KeySlots.HEADER_LENGTH);
+        if ((activeArea != 0 && activeArea != 1)
+                || (bodyVersion != ModernEncryptionService.FORMAT_VERSION_CHUNKED
+                        && bodyVersion != ModernEncryptionService.FORMAT_VERSION_SEGMENTED)) {
+            throw new ProblemReadingDatabaseFile("The key slots are corrupt");
+        }
+        return slotHeader;
+    }
+
+
+    private static KeySlots activeKeySlots(ByteBuffer slotHeader) throws ProblemReadingDatabaseFile {
+        int areaPos = 1 + slotHeader.get(0) * KeySlots.AREA_LENGTH;
+        try {
+            return KeySlots.read(Arrays.copyOfRange(slotHeader.array(), areaPos, areaPos + KeySlots.AREA_LENGTH));
+        } catch (IOException e) {
+            throw new ProblemReadingDatabaseFile(e.getMessage());
+        }
+    }
+
+
+    /**
+     * The header the body of a key slotted database is bound to. It leaves
+     * out the key slots so they can change without the body being re-encrypted.
+     */
+    static byte[] bodyHeader(byte[] header, byte bodyVersion) {
+        byte[] bodyHeader = Arrays.copyOf(header, PasswordDatabase.KEY_SLOTS_POS + 1);
+        bodyHeader[PasswordDatabase.KEY_SLOTS_POS] = bodyVersion;
+        return bodyHeader;
+    }
+
+}
@@ -0,0 +1,282 @@
+/*
+ * Epassafe Password Manager
+ * Copyright (c) 2010-2026
+ *
+ * This file is part of Epassafe Password Manager.
+ *
+ * Epassafe Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Epassafe Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ */
+package com.epassafe.upm.database;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+
+import android.util.Log;
+
+import com.epassafe.upm.crypto.InvalidPasswordException;
+import com.epassafe.upm.crypto.ModernEncryptionService;
+
+/**
+ * An append only log of account changes kept next to a modern format
+ * database. Saving a few edited accounts appends one small encrypted record
+ * instead of re-encrypting and rewriting the whole database. Once the journal
+ * grows past a threshold the database is saved in full and the journal is
+ * thrown away.
+ *
+ * File format:
+ *   JOURNAL_HEADER JOURNAL_VERSION BASE_TAG RECORD*
+ *   RECORD = LENGTH (4 bytes, big endian) [CHANGE_COUNT CHANGE*]
+ *   CHANGE = OP_PUT ACCOUNT | OP_DELETE ACCOUNT_NAME (binary payload encoding)
+ *
+ * BASE_TAG is an authentication tag taken from the database file the journal
+ * applies to, one that changes every time the database is written in full.
+ * Each record is authenticated together with the base tag and its sequence
+ * number, so records can't be replayed against another version of the
+ * database or reordered.
+ *
+ * Nothing records how many records there should be, so cutting the journal
+ * off at a record boundary goes unnoticed. What's left is an earlier saved
+ * state of the database, the same as putting back an older copy of the
+ * database file would give, which nothing in the file can detect either.
+ */
+public class DatabaseJournal {
+
+    private static final String TAG = "DatabaseJournal";
+
+    public static final String FILE_SUFFIX = ".journal";
+
+    private static final byte[] JOURNAL_HEADER = "UPM_JOURNAL".getBytes(StandardCharsets.UTF_8);
+    private static final byte JOURNAL_VERSION = 1;
+    static final int BASE_TAG_LENGTH = ModernEncryptionService.GCM_TAG_LENGTH;
+    private static final int HEADER_LENGTH = JOURNAL_HEADER.length + 1 + BASE_TAG_LENGTH;
+
+    private static final int OP_PUT = 1;
+    private static final int OP_DELETE = 2;
+
+    // Compact once there are this many records or the journal is larger
+    // than half the database (but never for less than MIN_COMPACTION_SIZE)
+    private static final int MAX_RECORDS = 256;
+    private static final long MIN_COMPACTION_SIZE = 64 * 1024;
+
+    private final File journalFile;
+    private final byte[] baseTag;
+    private int recordCount;
+    private long validLength;
+
+
+    private DatabaseJournal(File journalFile, byte[] baseTag) {
+        this.journalFile = journalFile;
+        this.baseTag = baseTag;
+    }
+
+
+    public static File getJournalFile(File databaseFile) {
+        return new File(databaseFile.getParentFile(), databaseFile.getName() + FILE_SUFFIX);
+    }
+
+
+    /**
+     * Delete the journal belonging to the given database, if there is one.
+     * @return true if there's no longer a journal
+     */
+    public static boolean delete(File databaseFile) {
+        File journalFile = getJournalFile(databaseFile);
+        return !journalFile.exists() || journalFile.delete();
+    }
+
+
+    /**
+     * Start an empty journal for a database file that has just been written
+     * in full. Any existing journal is deleted.
+     */
+    static DatabaseJournal create(File databaseFile, byte[] baseTag) throws IOException {
+        File journalFile = getJournalFile(databaseFile);
+        if (journalFile.exists() && !journalFile.delete()) {
+            throw new IOException("Couldn't delete " + journalFile);
+        }
+        return new DatabaseJournal(journalFile, baseTag);
+    }
+
+
+    /**
+     * Open the journal belonging to the given database and apply its changes
+     * to the accounts loaded from the database. A journal written against a
+     * different version of the database is discarded. A final record that
+     * was only partly written is ignored and the next append overwrites it.
+     *
+     * @throws ProblemReadingDatabaseFile if a complete record can't be read.
+     *         Its changes and any after it would otherwise be lost, so the
+     *         journal is left as it is for the database to be recovered from.
+     */
+    static DatabaseJournal open(File databaseFile, byte[] baseTag, ModernEncryptionService encryptionService,
+            Map<String, AccountInformation> accounts) throws IOException, ProblemReadingDatabaseFile {
+        DatabaseJournal journal = new DatabaseJournal(getJournalFile(databaseFile), baseTag);
+        if (!journal.journalFile.exists()) {
+            return journal;
+        }
+
+        RandomAccessFile file = new RandomAccessFile(journal.journalFile, "r");
+        try {
+            byte[] header = new byte[HEADER_LENGTH];
+            if (file.length() >= HEADER_LENGTH) {
+                file.readFully(header);
+            }
+            if (!Arrays.equals(Arrays.copyOf(header, JOURNAL_HEADER.length), JOURNAL_HEADER)
+                    || header[JOURNAL_HEADER.length] != JOURNAL_VERSION
+                    || !Arrays.equals(Arrays.copyOfRange(header, JOURNAL_HEADER.length + 1, HEADER_LENGTH), journal.baseTag)) {
+                Log.w(TAG, "Ignoring journal that doesn't belong to this database");
+                return journal;
+            }
+            journal.validLength = HEADER_LENGTH;
+
+            while (journal.validLength < file.length()) {
+                byte[] record;
+                try {
+                    int length = file.readInt();
+                    if (length <= 0) {
+                        throw new ProblemReadingDatabaseFile("Journal record " + journal.recordCount + " is damaged");
+                    }
+                    if (length > file.length() - file.getFilePointer()) {
+                        throw new EOFException();
+                    }
+                    record = new byte[length];
+                    file.readFully(record);
+                } catch (EOFException e) {
+                    Log.w(TAG, "Journal ends with an incomplete record");
+                    break;
+                }
+
+                try {
+                    byte[] changes = encryptionService.decrypt(record, journal.associatedData(journal.recordCount));
+                    applyChanges(changes, accounts);
+                } catch (InvalidPasswordException | ProblemReadingDatabaseFile e) {
+                    Log.e(TAG, "Unreadable journal record " + journal.recordCount, e);
+                    throw new ProblemReadingDatabaseFile("Journal record " + journal.recordCount + " is damaged", e);
+                }
+
+                journal.recordCount++;
+                journal.validLength = file.getFilePointer();
+            }
+        } finally {
+            file.close();
+        }
+
+        Log.i(TAG, "Replayed " + journal.recordCount + " journal records");
+        return journal;
+    }
+
+
+    /**
+     * Append a record holding the given changes. A null value means the
+     * account with that name was deleted.
+     */
+    void append(Map<String, AccountInformation> changes, ModernEncryptionService encryptionService)
+            throws IOException, IllegalBlockSizeException, BadPaddingException, NoSuchPaddingException,
+            NoSuchAlgorithmException, InvalidKeyException, InvalidAlgorithmParameterException, NoSuchProviderException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        BinaryPayloadWriter writer = new BinaryPayloadWriter(os);
+        writer.writeVarInt(changes.size());
+        for (Map.Entry<String, AccountInformation> change : changes.entrySet()) {
+            if (change.getValue() != null) {
+                writer.writeVarInt(OP_PUT);
+                writer.writeAccount(change.getValue());
+            } else {
+                writer.writeVarInt(OP_DELETE);
+                writer.writeString(change.getKey());
+            }
+        }
+        byte[] record = encryptionService.encrypt(os.toByteArray(), associatedData(recordCount));
+
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        try {
+            if (validLength == 0) {
+                file.setLength(0);
+                file.write(JOURNAL_HEADER);
+                file.write(JOURNAL_VERSION);
+                file.write(baseTag);
+                validLength = HEADER_LENGTH;
+            } else {
+                // Drop anything after the last good record, e.g. a record
+                // that was only partly written before the app was killed
+                file.setLength(validLength);
+            }
+            file.seek(validLength);
+            file.writeInt(record.length);
+            file.write(record);
+            file.getFD().sync();
+        } finally {
+            // If anything failed validLength is left alone, so the next
+            // append overwrites whatever did get written
+            file.close();
+        }
+
+        recordCount++;
+        validLength += 4 + record.length;
+    }
+
+
+    /**
+     * @return true if the database should be saved in full rather than
+     * appending to this journal
+     */
+    boolean needsCompaction(long databaseLength) {
+        return recordCount >= MAX_RECORDS
+                || validLength > Math.max(MIN_COMPACTION_SIZE, databaseLength / 2);
+    }
+
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+
+    private byte[] associatedData(int sequence) {
+        return ByteBuffer.allocate(JOURNAL_HEADER.length + BASE_TAG_LENGTH + 4)
+                .put(JOURNAL_HEADER)
+                .put(baseTag)
+                .putInt(sequence)
+                .array();
+    }
+
+
+    private static void applyChanges(byte[] changes, Map<String, AccountInformation> accounts)
+            throws ProblemReadingDatabaseFile {
+        BinaryPayloadReader reader = new BinaryPayloadReader(changes, 0, changes.length);
+        int changeCount = reader.readVarInt();
+        for (int i = 0; i < changeCount; i++) {
+            int op = reader.readVarInt();
+            if (op == OP_PUT) {
+                AccountInformation ai = reader.readAccount();
+                accounts.put(ai.getAccountName(), ai);
+            } else if (op == OP_DELETE) {
+                accounts.remove(reader.readString());
+            } else {
+                throw new ProblemReadingDatabaseFile("Unknown journal operation: " + op);
+            }
+        }
+    }
+
+}
@@ -20,7 +20,6 @@ import java.io.InputStream;
 import java.io.IOException;
 import java.io.EOFException;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 
@@ -36,20 +35,28 @@ import com.epassafe.upm.util.Util;
 public abstract class FlatPackObject {
 
     private static final int LENGTH_FIELD_NUM_CHARS = 4;
+    private static final int MAX_FIELD_LENGTH = 9999;
     
     
     /**
      * Write the given string to the given OutputStream
      * @param s
      * @param os
-     * @throws UnsupportedEncodingException 
+     * @throws IOException if the field is too long for the FlatPack encoding
      */
-    protected byte[] flatPack(String s) throws UnsupportedEncodingException {
+    protected byte[] flatPack(String s) throws IOException {
         return flatPack(s.getBytes(StandardCharsets.UTF_8));
     }
     
 
-    protected byte[] flatPack(byte[] bytesToFlatPack) throws UnsupportedEncodingException {
+    protected byte[] flatPack(byte[] bytesToFlatPack) throws IOException {
+        //The length has to fit in LENGTH_FIELD_NUM_CHARS digits, anything
+        //longer would corrupt the database
+        if (bytesToFlatPack.length > MAX_FIELD_LENGTH) {
+            throw new IOException("Field is too long for this database format ("
+                    + bytesToFlatPack.length + " bytes)");
+        }
+
         //Create a byte array populated with the field length 
         String l = Util.lpad(bytesToFlatPack.length, LENGTH_FIELD_NUM_CHARS, '0');
         byte[] fieldLengthBytes = l.getBytes(StandardCharsets.UTF_8);
@@ -66,48 +73,28 @@ public abstract class FlatPackObject {
 
 
     public byte[] getBytes(InputStream is) throws IOException, ProblemReadingDatabaseFile {
-        
-        byte[] fieldContents = null;
-        
         //Get the length of the next field
         byte[] fieldLength = new byte[LENGTH_FIELD_NUM_CHARS];
-        int bytesRead = is.read(fieldLength);
-        if (bytesRead == -1 || bytesRead != LENGTH_FIELD_NUM_CHARS) {
+        if (Util.readFully(is, fieldLength) != LENGTH_FIELD_NUM_CHARS) {
             throw new EOFException();
         }
-        String s = new String(fieldLength);
-        try {
-            int i = Integer.parseInt(s);
-
-            //Read the field
-            fieldContents = new byte[i];
-            
-            //Had to do it this way because the next section (commented out)
-            //didn't read in the correct number of bytes
-            for (int j=0; j<i; j++) {
-                fieldContents[j] = (byte) is.read();
-                if (fieldContents[j] == -1) {
-                    throw new EOFException();
-                }
+
+        //The length is a zero padded decimal number, decode it in place
+        int i = 0;
+        for (byte digit : fieldLength) {
+            if (digit < '0' || digit > '9') {
+                throw new ProblemReadingDatabaseFile("A field length had invalid characters");
             }
-            
-            /*if (i > 0) {
-                bytesRead = is.read(fieldContents);
-                //I had to comment this next line out because the CipherInputStream reads one to few bytes for
-                //the last field in the file, don't know why??? Problem now is I'm not checking that the number
-                //of bytes read is correct
-                //if (bytesRead == -1 || bytesRead != i) { 
-                if (bytesRead == -1) {
-                    throw new EOFException();
-                }
-            }*/
-            
-        } catch (NumberFormatException e) {
-            throw new ProblemReadingDatabaseFile("A field length had invalid characters", e);
+            i = i * 10 + (digit - '0');
         }
-                
+
+        //Read the field in one go
+        byte[] fieldContents = new byte[i];
+        if (Util.readFully(is, fieldContents) != i) {
+            throw new EOFException();
+        }
+
         return fieldContents;
-        
     }
     
     
@@ -0,0 +1,403 @@
+/*
+ * Epassafe Password Manager
+ * Copyright (c) 2010-2026
+ *
+ * This file is part of Epassafe Password Manager.
+ *
+ * Epassafe Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Epassafe Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ */
+package com.epassafe.upm.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+/**
+ * Finds the accounts that best match a query allowing for abbreviations and
+ * typos, so "gh ent" finds "GitHub Enterprise" and "entrprise" still finds it
+ * too. Every word of the query has to match one of the account's fields,
+ * either as a substring, as a subsequence of its characters or within a
+ * small edit distance of a word, and the account is scored on how well they
+ * match and in which field. The name counts for more than the user ID, URL
+ * and notes.
+ *
+ * Every account containing all the words of the query is found through the
+ * SearchIndex and returned, however many there are. Only if there are fewer
+ * than the maximum number of results are the rest of the accounts scored to
+ * fill the remaining places, and that stops after the time budget with the
+ * best close matches found so far. The accounts sharing the most trigrams
+ * with the query are scored first as they're the likeliest to match, and
+ * the index keeps a mask of the characters in each account so accounts
+ * missing more of the query's characters than its typos could explain are
+ * skipped without being scored. Scoring an account stops as soon as it
+ * can't make it into the results.
+ */
+public final class FuzzyMatcher {
+
+    public static final int DEFAULT_MAX_RESULTS = 50;
+    public static final long DEFAULT_TIME_BUDGET_MS = 8;
+
+    // In the order of the fields in SearchIndex.text(): name, user ID, URL and notes
+    private static final double[] FIELD_WEIGHTS = { 1.0, 0.7, 0.5, 0.4 };
+
+    private static final double PREFIX_SCORE = 1.0;
+    private static final double WORD_START_SCORE = 0.9;
+    private static final double SUBSTRING_SCORE = 0.8;
+    private static final double SUBSEQUENCE_SCORE = 0.7;
+    private static final double TYPO_SCORE = 0.9;
+
+    // How many accounts are looked at between checking the time
+    private static final int TIME_CHECK_MASK = 256 - 1;
+
+
+    public static final class Result {
+
+        private final ArrayList<String> names;
+        private final boolean complete;
+
+        private Result(ArrayList<String> names, boolean complete) {
+            this.names = names;
+            this.complete = complete;
+        }
+
+        /**
+         * @return The names of the matching accounts, best first
+         */
+        public ArrayList<String> getNames() {
+            return names;
+        }
+
+        /**
+         * @return false if the time budget ran out before every account was
+         *         looked at for close matches, some may be missing
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+    }
+
+
+    private static final class Hit {
+        final int id;
+        final double score;
+        final int rank;
+
+        Hit(int id, double score, int rank) {
+            this.id = id;
+            this.score = score;
+            this.rank = rank;
+        }
+    }
+
+    // Lower scores first, then accounts later in the sorted names
+    private static final Comparator<Hit> WORST_FIRST = new Comparator<Hit>() {
+        @Override
+        public int compare(Hit a, Hit b) {
+            if (a.score != b.score) {
+                return Double.compare(a.score, b.score);
+            }
+            return Integer.compare(b.rank, a.rank);
+        }
+    };
+
+    private final SearchIndex index;
+    private final int maxResults;
+    private final long timeBudgetNanos;
+
+
+    public FuzzyMatcher(SearchIndex index) {
+        this(index, DEFAULT_MAX_RESULTS, DEFAULT_TIME_BUDGET_MS);
+    }
+
+
+    /**
+     * @param maxResults The number of results close matches make up, every
+     *                   account containing the query is returned regardless
+     * @param timeBudgetMs How long to look for close matches
+     */
+    public FuzzyMatcher(SearchIndex index, int maxResults, long timeBudgetMs) {
+        this.index = index;
+        this.maxResults = maxResults;
+        this.timeBudgetNanos = timeBudgetMs * 1000 * 1000;
+    }
+
+
+    public Result match(String query) {
+        String[] tokens = tokenize(query);
+        if (tokens.length == 0) {
+            return new Result(new ArrayList<String>(), true);
+        }
+
+        synchronized (index) {
+            // Every account containing all the words is a result, however many
+            // there are, the time budget only limits the search for close matches
+            int[] exact = index.containingAll(tokens);
+            boolean[] seen = new boolean[index.idLimit()];
+            ArrayList<Hit> hits = new ArrayList<Hit>(exact.length + maxResults);
+            for (int id : exact) {
+                seen[id] = true;
+                hits.add(new Hit(id, score(tokens, fields(id), 0), index.rank(id)));
+            }
+            boolean complete = exact.length >= maxResults
+                    || addCloseMatches(tokens, maxResults - exact.length, seen, hits);
+
+            Hit[] sorted = hits.toArray(new Hit[hits.size()]);
+            Arrays.sort(sorted, Collections.reverseOrder(WORST_FIRST));
+            ArrayList<String> names = new ArrayList<String>(sorted.length);
+            for (Hit hit : sorted) {
+                names.add(index.name(hit.id));
+            }
+            return new Result(names, complete);
+        }
+    }
+
+
+    /**
+     * Add the best of the accounts not yet seen that match the tokens with
+     * abbreviations or typos.
+     * @return false if the time budget ran out before every account was
+     *         looked at
+     */
+    private boolean addCloseMatches(String[] tokens, int count, boolean[] seen, ArrayList<Hit> hits) {
+        long deadline = System.nanoTime() + timeBudgetNanos;
+        long queryMask = 0;
+        int typos = 0;
+        for (String token : tokens) {
+            queryMask |= SearchIndex.charMask(token);
+            typos += maxEdits(token);
+        }
+
+        // A typo leaves most of a word's trigrams alone, looking at the accounts
+        // sharing the most trigrams with the query first finds the likeliest
+        // matches before the time runs out and lets most of the rest be passed
+        // over after a glance
+        int[] likely = index.bySharedTrigrams(tokens);
+        PriorityQueue<Hit> best = new PriorityQueue<Hit>(count + 1, WORST_FIRST);
+        boolean complete = true;
+        int checked = 0;
+        for (int i = 0; i < likely.length + seen.length && complete; i++) {
+            int id = i < likely.length ? likely[i] : i - likely.length;
+            if (seen[id]) {
+                continue;
+            }
+            seen[id] = true;
+            if ((++checked & TIME_CHECK_MASK) == 0 && System.nanoTime() > deadline) {
+                complete = false;
+            }
+
+            // Each typo can account for at most one character the account doesn't have
+            if (index.text(id) == null || Long.bitCount(queryMask & ~index.charMask(id)) > typos) {
+                continue;
+            }
+            double floor = best.size() < count ? 0 : best.peek().score;
+            double score = score(tokens, fields(id), floor);
+            if (score == 0) {
+                continue;
+            }
+            Hit hit = new Hit(id, score, index.rank(id));
+            if (best.size() < count) {
+                best.add(hit);
+            } else if (WORST_FIRST.compare(hit, best.peek()) > 0) {
+                best.poll();
+                best.add(hit);
+            }
+        }
+        hits.addAll(best);
+        return complete;
+    }
+
+
+    private String[] fields(int id) {
+        return index.text(id).split(String.valueOf(SearchIndex.FIELD_SEPARATOR), -1);
+    }
+
+
+    /**
+     * @return The account's score, or 0 if a token doesn't match any field or
+     *         the account can't score more than <code>floor</code>
+     */
+    static double score(String[] tokens, String[] fields, double floor) {
+        double total = 0;
+        for (int t = 0; t < tokens.length; t++) {
+            // What this token has to score for the account to still make it
+            double needed = floor - total - (tokens.length - t - 1) * FIELD_WEIGHTS[0];
+            double tokenBest = 0;
+            for (int f = 0; f < fields.length && f < FIELD_WEIGHTS.length; f++) {
+                // The weights go down so a later field can't beat a good enough match
+                double target = Math.max(needed, tokenBest);
+                if (FIELD_WEIGHTS[f] <= tokenBest || FIELD_WEIGHTS[f] < needed) {
+                    break;
+                }
+                tokenBest = Math.max(tokenBest, FIELD_WEIGHTS[f] * matchScore(tokens[t], fields[f], target / FIELD_WEIGHTS[f]));
+            }
+            if (tokenBest == 0 || tokenBest < needed) {
+                return 0;
+            }
+            total += tokenBest;
+        }
+        return total;
+    }
+
+
+    /**
+     * @return How well the token matches the field, from 1 for a prefix down
+     *         to 0 for no match
+     */
+    static double matchScore(String token, String field) {
+        return matchScore(token, field, 0);
+    }
+
+
+    /**
+     * @param minScore The scores below this don't matter, the slower ways of
+     *                 matching are skipped when they can't reach it
+     */
+    private static double matchScore(String token, String field, double minScore) {
+        int at = field.indexOf(token);
+        if (at == 0) {
+            return PREFIX_SCORE;
+        }
+        if (at > 0) {
+            for (; at >= 0; at = field.indexOf(token, at + 1)) {
+                if (!Character.isLetterOrDigit(field.charAt(at - 1))) {
+                    return WORD_START_SCORE;
+                }
+            }
+            return SUBSTRING_SCORE;
+        }
+        double score = SUBSEQUENCE_SCORE >= minScore ? subsequenceScore(token, field) : 0;
+        if (score == 0 && TYPO_SCORE / 2 >= minScore) {
+            score = typoScore(token, field);
+        }
+        return score;
+    }
+
+
+    /**
+     * Scores the token's characters appearing in order in the field, better
+     * the more of them start words and the closer together they are.
+     */
+    private static double subsequenceScore(String token, String field) {
+        int wordStarts = 0;
+        int first = -1;
+        int position = -1;
+        for (int i = 0; i < token.length(); i++) {
+            position = field.indexOf(token.charAt(i), position + 1);
+            if (position < 0) {
+                return 0;
+            }
+            if (first < 0) {
+                first = position;
+            }
+            if (position == 0 || !Character.isLetterOrDigit(field.charAt(position - 1))) {
+                wordStarts++;
+            }
+        }
+        double span = position - first + 1;
+        return SUBSEQUENCE_SCORE * (0.5 + 0.5 * wordStarts / token.length())
+                * (0.5 + 0.5 * token.length() / span);
+    }
+
+
+    /**
+     * Scores the token being a word of the field, or the start of one, with
+     * a few characters wrong.
+     */
+    private static double typoScore(String token, String field) {
+        int maxEdits = maxEdits(token);
+        if (maxEdits == 0) {
+            return 0;
+        }
+        int best = maxEdits + 1;
+        int start = 0;
+        while (start < field.length()) {
+            while (start < field.length() && !Character.isLetterOrDigit(field.charAt(start))) {
+                start++;
+            }
+            int end = start;
+            while (end < field.length() && Character.isLetterOrDigit(field.charAt(end))) {
+                end++;
+            }
+            if (end - start >= token.length() - maxEdits) {
+                best = Math.min(best, prefixEditDistance(token, field, start, end, best - 1));
+            }
+            start = end;
+        }
+        return best > maxEdits ? 0 : TYPO_SCORE / (1 + best);
+    }
+
+
+    /**
+     * @return The fewest edits turning the token into the start of the word
+     *         between <code>start</code> and <code>end</code>, or more than
+     *         <code>maxEdits</code> if that's too many. Swapping two adjacent
+     *         characters counts as one edit.
+     */
+    static int prefixEditDistance(String token, String text, int start, int end, int maxEdits) {
+        // Further along the word is too many insertions away
+        int length = Math.min(end - start, token.length() + maxEdits);
+        int[] beforePrevious = new int[length + 1];
+        int[] previous = new int[length + 1];
+        int[] current = new int[length + 1];
+        for (int j = 0; j <= length; j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= token.length(); i++) {
+            current[0] = i;
+            int rowMin = i;
+            char c = token.charAt(i - 1);
+            for (int j = 1; j <= length; j++) {
+                char t = text.charAt(start + j - 1);
+                int distance = Math.min(previous[j - 1] + (t == c ? 0 : 1), Math.min(previous[j], current[j - 1]) + 1);
+                if (i > 1 && j > 1 && c == text.charAt(start + j - 2) && token.charAt(i - 2) == t) {
+                    distance = Math.min(distance, beforePrevious[j - 2] + 1);
+                }
+                current[j] = distance;
+                rowMin = Math.min(rowMin, distance);
+            }
+            if (rowMin > maxEdits) {
+                return maxEdits + 1;
+            }
+            int[] swap = beforePrevious;
+            beforePrevious = previous;
+            previous = current;
+            current = swap;
+        }
+        int distance = previous[0];
+        for (int j = 1; j <= length; j++) {
+            distance = Math.min(distance, previous[j]);
+        }
+        return distance;
+    }
+
+
+    private static int maxEdits(String token) {
+        if (token.length() < 4) {
+            return 0;
+        }
+        return token.length() < 8 ? 1 : 2;
+    }
+
+
+    private static String[] tokenize(String query) {
+        ArrayList<String> tokens = new ArrayList<String>();
+        for (String token : query.toLowerCase(Locale.ROOT).trim().split("\\s+")) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Epassafe Password Manager
+ * Copyright (c) 2010-2026
+ *
+ * This file is part of Epassafe Password Manager.
+ *
+ * Epassafe Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Epassafe Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ */
+package com.epassafe.upm.database;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An account read from a binary payload where only the account name is
+ * decoded up front. The other fields stay as UTF-8 bytes in the decrypted
+ * buffer until one of them is first asked for, at which point they're all
+ * decoded together.
+ *
+ * While the account hasn't been changed it can be written back out by
+ * copying its original bytes.
+ */
+public class LazyAccountInformation extends AccountInformation {
+
+    /** The number of fields following the account name in a record. */
+    static final int NUM_DETAIL_FIELDS = 4;
+
+    private final byte[] buffer;
+    private final int recordOffset;
+    private final int recordLength;
+    private final int detailsOffset;
+
+    private boolean materialized;
+    private boolean modified;
+
+
+    LazyAccountInformation(String accountName, byte[] buffer, int recordOffset,
+            int recordLength, int detailsOffset) {
+        super.setAccountName(accountName);
+        this.buffer = buffer;
+        this.recordOffset = recordOffset;
+        this.recordLength = recordLength;
+        this.detailsOffset = detailsOffset;
+    }
+
+
+    /**
+     * Decode the remaining fields if that hasn't been done yet.
+     */
+    private synchronized void materialize() {
+        if (materialized) {
+            return;
+        }
+        BinaryPayloadReader reader = new BinaryPayloadReader(buffer, detailsOffset,
+                recordOffset + recordLength - detailsOffset);
+        try {
+            super.setUserId(reader.readString());
+            super.setPassword(reader.readString());
+            super.setUrl(reader.readString());
+            super.setNotes(reader.readString());
+        } catch (ProblemReadingDatabaseFile e) {
+            // The field bounds were checked when the account was read
+            throw new IllegalStateException("Account record is corrupt", e);
+        }
+        materialized = true;
+    }
+
+
+    /**
+     * @return true if any field has been set since the account was read
+     */
+    public synchronized boolean isModified() {
+        return modified;
+    }
+
+
+    /**
+     * Write the account's original encoded bytes.
+     */
+    void writeRecord(OutputStream os) throws IOException {
+        os.write(buffer, recordOffset, recordLength);
+    }
+
+
+    int getRecordLength() {
+        return recordLength;
+    }
+
+
+    @Override
+    public synchronized void setAccountName(String accountName) {
+        modified = true;
+        super.setAccountName(accountName);
+    }
+
+    @Override
+    public String getUserId() {
+        materialize();
+        return super.getUserId();
+    }
+
+    @Override
+    public synchronized void setUserId(String userId) {
+        materialize();
+        modified = true;
+        super.setUserId(userId);
+    }
+
+    @Override
+    public String getPassword() {
+        materialize();
+        return super.getPassword();
+    }
+
+    @Override
+    public synchronized void setPassword(String password) {
+        materialize();
+        modified = true;
+        super.setPassword(password);
+    }
+
+    @Override
+    public String getUrl() {
+        materialize();
+        return super.getUrl();
+    }
+
+    @Override
+    public synchronized void setUrl(String url) {
+        materialize();
+        modified = true;
+        super.setUrl(url);
+    }
+
+    @Override
+    public String getNotes() {
+        materialize();
+        return super.getNotes();
+    }
+
+    @Override
+    public synchronized void setNotes(String notes) {
+        materialize();
+        modified = true;
+        super.setNotes(notes);
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Epassafe Password Manager
+ * Copyright (c) 2010-2026
+ *
+ * This file is part of Epassafe Password Manager.
+ *
+ * Epassafe Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Epassafe Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ */
+package com.epassafe.upm.database;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * The names removed from and inserted into a list of account names between
+ * two versions of it. Account names are unique so a name missing from the
+ * new list was removed and one missing from the old list was inserted,
+ * which takes a single pass over each list rather than a general diff. An
+ * edited account that keeps its name isn't a change to the list.
+ */
+public final class NameListDiff {
+
+    private final int[] removed;
+    private final int[] inserted;
+
+
+    private NameListDiff(int[] removed, int[] inserted) {
+        this.removed = removed;
+        this.inserted = inserted;
+    }
+
+
+    public static NameListDiff compute(String[] before, String[] after) {
+        HashSet<String> beforeNames = new HashSet<String>(Arrays.asList(before));
+        HashSet<String> afterNames = new HashSet<String>(Arrays.asList(after));
+        return new NameListDiff(missingFrom(afterNames, before), missingFrom(beforeNames, after));
+    }
+
+
+    /**
+     * @return The positions of the names in <code>list</code> that aren't in
+     *         <code>names</code>, in ascending order
+     */
+    private static int[] missingFrom(HashSet<String> names, String[] list) {
+        int[] positions = new int[list.length];
+        int count = 0;
+        for (int i = 0; i < list.length; i++) {
+            if (!names.contains(list[i])) {
+                positions[count++] = i;
+            }
+        }
+        return Arrays.copyOf(positions, count);
+    }
+
+
+    /**
+     * @return The positions of the removed names in the old list, ascending
+     */
+    public int[] getRemoved() {
+        return removed;
+    }
+
+
+    /**
+     * @return The positions of the inserted names in the new list, ascending
+     */
+    public int[] getInserted() {
+        return inserted;
+    }
+
+
+    public boolean isEmpty() {
+        return removed.length == 0 && inserted.length == 0;
+    }
+
+
+    /**
+     * @return Where the name at <code>oldPosition</code> in the old list is
+     *         in the new list, or where it would have been if it was removed
+     */
+    public int newPosition(int oldPosition) {
+        int removedBefore = Arrays.binarySearch(removed, oldPosition);
+        removedBefore = removedBefore >= 0 ? removedBefore : -removedBefore - 1;
+        int position = oldPosition - removedBefore;
+        for (int insertedAt : inserted) {
+            if (insertedAt > position) {
+                break;
+            }
+            position++;
+        }
+        return position;
+    }
+
+}
@@ -17,23 +17,30 @@
 package com.epassafe.upm.database;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
@@ -42,9 +49,12 @@ import javax.crypto.SecretKey;
 
 import android.util.Log;
 
+import com.epassafe.upm.crypto.AeadBenchmark;
 import com.epassafe.upm.crypto.DESDecryptionService;
 import com.epassafe.upm.crypto.EncryptionService;
 import com.epassafe.upm.crypto.InvalidPasswordException;
+import com.epassafe.upm.crypto.KeyDerivation;
+import com.epassafe.upm.crypto.KeySlots;
 import com.epassafe.upm.crypto.ModernEncryptionService;
 import com.epassafe.upm.util.Util;
 
@@ -54,8 +64,16 @@ import com.epassafe.upm.util.Util;
  * All interaction with the database file is done using this class.
  * 
  * Database versions and formats. The items between [] brackets are encrypted.
- *   4      >> UPM_MODERN FORMAT_VERSION SALT [ENCRYPTED DATA WITH ALGORITHM IDENTIFIER]
+ *   4      >> UPM_MODERN FORMAT_VERSION SALT ALGORITHM IV [PAYLOAD]
  *        (all strings are encoded using UTF-8, AES-GCM or ChaCha20-Poly1305)
+ *        FORMAT_VERSION 5: KEY_SLOTS BODY_VERSION BODY, where BODY is laid out as for
+ *                          FORMAT_VERSION BODY_VERSION (3 or 4) and encrypted under a
+ *                          random data key wrapped in the KEY_SLOTS, see KeySlots
+ *        FORMAT_VERSION 4: ALGORITHM NONCE_PREFIX [PAYLOAD] encrypted in 64 KiB chunks
+ *                          bound to the file header, see ModernEncryptionService.encryptChunked
+ *        FORMAT_VERSION 3: segmented layout, see SegmentedContainer
+ *        FORMAT_VERSION 2: PAYLOAD = binary encoding, see BinaryPayloadWriter
+ *        FORMAT_VERSION 1: PAYLOAD = DB_REVISION DB_OPTIONS ACCOUNTS (FlatPack encoding)
  *   3      >> MAGIC_NUMBER DB_VERSION SALT [DB_REVISION DB_OPTIONS ACCOUNTS]
  *        (all strings are encoded using UTF-8)
  *   2      >> MAGIC_NUMBER DB_VERSION SALT [DB_REVISION DB_OPTIONS ACCOUNTS]
@@ -72,18 +90,39 @@ public class PasswordDatabase {
 
     private static final String TAG = "PasswordDatabase";
     private static final int DB_VERSION = 3;
-    private static final String FILE_HEADER = "UPM";
-    private static final String MODERN_FILE_HEADER = "UPM_MODERN";
+    static final String FILE_HEADER = "UPM";
+    static final String MODERN_FILE_HEADER = "UPM_MODERN";
+    // Where the key slots start in FORMAT_VERSION_KEY_SLOTS databases
+    static final int KEY_SLOTS_POS = MODERN_FILE_HEADER.length() + 1 + ModernEncryptionService.SALT_LENGTH;
+    // Accounts are encoded field by field so batch them up before they're
+    // handed to the cipher
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
 
     private File databaseFile;
     private Revision revision;
     private DatabaseOptions dbOptions;
-    private HashMap<String, AccountInformation> accounts;
+    // The accounts, replaced with a new snapshot on every edit
+    private final AtomicReference<AccountsSnapshot> snapshot = new AtomicReference<AccountsSnapshot>();
+    // The account names in order, edits update it while holding its lock so
+    // it changes in the same order as the snapshots
+    private final SortedNameIndex sortedNames = new SortedNameIndex();
+    // Built on the first search and then kept up to date with every edit
+    private SearchIndex searchIndex;
+    private final Object searchIndexLock = new Object();
     private EncryptionService encryptionService;
     private ModernEncryptionService modernEncryptionService;
     private boolean isUsingModernEncryption = false;
     private boolean preferChaCha20 = false;
 
+    // The wrapped copies of the data key, null unless the database uses key slots
+    private KeySlots keySlots;
+    private int activeKeySlotArea;
+    private boolean keySlotsChanged = false;
+
+    private DatabaseJournal journal;
+    private boolean fullSaveRequired = true;
+    private SegmentedContainer segments;
+
 
     public PasswordDatabase(File dbFile, SecretKey secretKey) throws IOException, GeneralSecurityException, ProblemReadingDatabaseFile, InvalidPasswordException {
         databaseFile = dbFile;
@@ -97,6 +136,15 @@ public class PasswordDatabase {
 
 
     public PasswordDatabase(File dbFile, char[] password, boolean overwrite) throws IOException, GeneralSecurityException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        this(dbFile, password, overwrite, KeySlots.DEFAULT_KEY_DERIVATION);
+    }
+
+
+    /**
+     * @param kdf Derives the key that wraps the password key slot if a new
+     *            database is created, see KdfCalibrator
+     */
+    public PasswordDatabase(File dbFile, char[] password, boolean overwrite, KeyDerivation kdf) throws IOException, GeneralSecurityException, ProblemReadingDatabaseFile, InvalidPasswordException {
         databaseFile = dbFile;
         //Either create a new file (if it exists and overwrite == true OR it doesn't exist) or open the existing file
         if ((databaseFile.exists() && overwrite) || !databaseFile.exists()) {
@@ -104,14 +152,15 @@ public class PasswordDatabase {
             databaseFile.createNewFile();
             revision = new Revision();
             dbOptions = new DatabaseOptions();
-            accounts = new HashMap<String, AccountInformation>();
+            setAccounts(new HashMap<String, AccountInformation>());
 
-            // Use modern encryption by default for new databases
+            // Use modern encryption with key slots by default for new databases
             try {
                 isUsingModernEncryption = true;
-                modernEncryptionService = new ModernEncryptionService(password);
-                // Can set algorithm preference here (AES-GCM is default)
-                // modernEncryptionService.setAlgorithm(true); // true = ChaCha20-Poly1305
+                createKeySlots(password, kdf);
+                // Use whichever of AES-GCM and ChaCha20-Poly1305 is quicker on this device
+                preferChaCha20 = AeadBenchmark.get().preferChaCha20();
+                modernEncryptionService.setAlgorithm(preferChaCha20);
             } catch (Exception e) {
                 // Fall back to legacy encryption if modern fails
                 Log.w(TAG, "Modern encryption initialization failed, falling back to legacy encryption", e);
@@ -119,27 +168,139 @@ public class PasswordDatabase {
                 encryptionService = new EncryptionService(password);
             }
         } else {
-            // Store the original password for modern decryption
-            // then also create a SecretKey for legacy formats
-            load(password, EncryptionService.createSecretKey(password));
+            load(password, null);
         }
     }
 
 
-    public void changePassword(char[] password) throws GeneralSecurityException {
+    /**
+     * Open a key slotted database with its data key, as unwrapped from one of
+     * its key slots. No key derivation is needed so this is quick.
+     * @throws ProblemReadingDatabaseFile if the database doesn't use key slots
+     */
+    public PasswordDatabase(File dbFile, byte[] dataKey) throws IOException, GeneralSecurityException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        databaseFile = dbFile;
+        load(null, dataKey);
+    }
+
+
+    /**
+     * Change the master password. Databases using key slots only have their
+     * password slot replaced, other modern databases are moved over to key
+     * slots which re-encrypts them one last time.
+     */
+    public synchronized void changePassword(char[] password) throws GeneralSecurityException {
+        changePassword(password, KeySlots.DEFAULT_KEY_DERIVATION);
+    }
+
+    /**
+     * Change the master password, deriving the key that wraps the password
+     * key slot with the given KDF. Legacy databases ignore the KDF.
+     */
+    public synchronized void changePassword(char[] password, KeyDerivation kdf) throws GeneralSecurityException {
         if (isUsingModernEncryption) {
-            try {
-                modernEncryptionService = new ModernEncryptionService(password);
+            if (keySlots != null) {
+                byte[] dataKey = modernEncryptionService.getSecretKey().getEncoded();
+                try {
+                    keySlots.setPassword(dataKey, password, kdf);
+                } finally {
+                    Arrays.fill(dataKey, (byte) 0);
+                    Arrays.fill(password, '\0');
+                }
+                keySlotsChanged = true;
+            } else {
+                createKeySlots(password, kdf);
                 // Preserve the algorithm choice (AES-GCM vs ChaCha20-Poly1305)
                 modernEncryptionService.setAlgorithm(preferChaCha20);
-            } catch (NoSuchAlgorithmException e) {
-                throw new GeneralSecurityException("Failed to change password with modern encryption", e);
             }
         } else {
+            keyChanged();
             encryptionService = new EncryptionService(password);
         }
     }
 
+    /**
+     * Start using key slots with a new random data key, wrapped by the
+     * password. Everything has to be re-encrypted under the new key.
+     */
+    private void createKeySlots(char[] password, KeyDerivation kdf) throws GeneralSecurityException {
+        byte[] dataKey = KeySlots.generateDataKey();
+        try {
+            KeySlots newKeySlots = new KeySlots();
+            newKeySlots.setPassword(dataKey, password, kdf);
+            modernEncryptionService = new ModernEncryptionService(dataKey);
+            keySlots = newKeySlots;
+        } finally {
+            Arrays.fill(dataKey, (byte) 0);
+            Arrays.fill(password, '\0');
+        }
+        keyChanged();
+    }
+
+    /**
+     * Add or replace the copy of the data key wrapped by a YubiKey's
+     * HMAC-SHA1 response. Like a password change this only rewrites the key
+     * slots when the database is next saved.
+     * @throws IllegalStateException if the database doesn't use key slots
+     */
+    public synchronized void setYubiKeySlot(byte[] hmacResponse) throws GeneralSecurityException {
+        byte[] dataKey = keySlotsDataKey();
+        try {
+            keySlots.setYubiKey(dataKey, hmacResponse);
+        } finally {
+            Arrays.fill(dataKey, (byte) 0);
+        }
+        keySlotsChanged = true;
+    }
+
+    /**
+     * Add or replace the copy of the data key wrapped by a recovery code.
+     * @throws IllegalStateException if the database doesn't use key slots
+     */
+    public synchronized void setRecoveryCodeSlot(String recoveryCode) throws GeneralSecurityException {
+        setRecoveryCodeSlot(recoveryCode, KeySlots.DEFAULT_KEY_DERIVATION);
+    }
+
+    /**
+     * Add or replace the copy of the data key wrapped by a recovery code,
+     * deriving the wrapping key with the given KDF.
+     * @throws IllegalStateException if the database doesn't use key slots
+     */
+    public synchronized void setRecoveryCodeSlot(String recoveryCode, KeyDerivation kdf) throws GeneralSecurityException {
+        byte[] dataKey = keySlotsDataKey();
+        try {
+            keySlots.setRecoveryCode(dataKey, recoveryCode, kdf);
+        } finally {
+            Arrays.fill(dataKey, (byte) 0);
+        }
+        keySlotsChanged = true;
+    }
+
+    /**
+     * Remove a key slot, one of the KeySlots.TYPE_ constants.
+     * @throws IllegalStateException if the database doesn't use key slots
+     */
+    public synchronized void removeKeySlot(byte type) {
+        if (keySlots == null) {
+            throw new IllegalStateException("The database doesn't use key slots");
+        }
+        if (keySlots.has(type)) {
+            keySlots.remove(type);
+            keySlotsChanged = true;
+        }
+    }
+
+    private byte[] keySlotsDataKey() {
+        if (keySlots == null) {
+            throw new IllegalStateException("The database doesn't use key slots");
+        }
+        return modernEncryptionService.getSecretKey().getEncoded();
+    }
+
+    public boolean isUsingKeySlots() {
+        return keySlots != null;
+    }
+
     /**
      * Upgrade to modern encryption. This will use the modern encryption
      * formats and authenticated encryption.
@@ -147,16 +308,20 @@ public class PasswordDatabase {
      * @param useChaCha Whether to use ChaCha20-Poly1305 instead of AES-GCM
      * @throws GeneralSecurityException
      */
-    public void upgradeToModernEncryption(char[] password, boolean useChaCha) throws GeneralSecurityException {
-        try {
-            // Always create a new modern encryption service regardless of current state
-            modernEncryptionService = new ModernEncryptionService(password);
-            modernEncryptionService.setAlgorithm(useChaCha);
-            preferChaCha20 = useChaCha;
-            isUsingModernEncryption = true;
-        } catch (NoSuchAlgorithmException e) {
-            throw new GeneralSecurityException("Failed to upgrade to modern encryption", e);
-        }
+    public synchronized void upgradeToModernEncryption(char[] password, boolean useChaCha) throws GeneralSecurityException {
+        upgradeToModernEncryption(password, useChaCha, KeySlots.DEFAULT_KEY_DERIVATION);
+    }
+
+    /**
+     * Upgrade to modern encryption, deriving the key that wraps the password
+     * key slot with the given KDF.
+     */
+    public synchronized void upgradeToModernEncryption(char[] password, boolean useChaCha, KeyDerivation kdf) throws GeneralSecurityException {
+        // Always create a new data key regardless of current state
+        createKeySlots(password, kdf);
+        modernEncryptionService.setAlgorithm(useChaCha);
+        preferChaCha20 = useChaCha;
+        isUsingModernEncryption = true;
     }
 
     /**
@@ -165,13 +330,25 @@ public class PasswordDatabase {
      * @param useChaCha Whether to use ChaCha20-Poly1305 instead of AES-GCM
      * @throws IllegalStateException if not using modern encryption
      */
-    public void switchModernAlgorithm(boolean useChaCha) {
+    public synchronized void switchModernAlgorithm(boolean useChaCha) {
         if (!isUsingModernEncryption) {
             throw new IllegalStateException("Cannot switch algorithm - not using modern encryption");
         }
 
         preferChaCha20 = useChaCha;
         modernEncryptionService.setAlgorithm(preferChaCha20);
+        keyChanged();
+    }
+
+    /**
+     * Everything written so far is encrypted with the old key or algorithm,
+     * so the next save has to re-encrypt the whole database.
+     */
+    private void keyChanged() {
+        fullSaveRequired = true;
+        if (segments != null) {
+            segments.markAllDirty();
+        }
     }
 
     /**
@@ -179,7 +356,7 @@ public class PasswordDatabase {
      * @param password The current master password
      * @throws GeneralSecurityException
      */
-    public void downgradeToLegacyEncryption(char[] password) throws GeneralSecurityException {
+    public synchronized void downgradeToLegacyEncryption(char[] password) throws GeneralSecurityException {
         if (!isUsingModernEncryption) {
             // Already using legacy encryption, nothing to do
             return;
@@ -191,7 +368,7 @@ public class PasswordDatabase {
             System.arraycopy(password, 0, passwordCopy, 0, password.length);
 
             // First verify the password with the existing modern encryption
-            if (!verifyModernPassword(passwordCopy)) {
+            if (!verifyPassword(passwordCopy)) {
                 throw new GeneralSecurityException("Invalid password provided for downgrade");
             }
 
@@ -206,6 +383,10 @@ public class PasswordDatabase {
             isUsingModernEncryption = false;
             preferChaCha20 = false;
             modernEncryptionService = null; // Clear the modern encryption service
+            keySlots = null;
+            keySlotsChanged = false;
+            segments = null;
+            fullSaveRequired = true;
 
             // Save immediately to persist changes with the new encryption
             save();
@@ -220,356 +401,691 @@ public class PasswordDatabase {
     }
 
     /**
-     * Verify that the given password works with the current modern encryption
-     * @param password Password to verify
-     * @return true if password is valid
+     * Check a password against the database without decrypting any of it.
+     * Modern databases only need a single key derivation, checked against
+     * the key check in the key slots or the key in use, so this takes the
+     * same time whatever the size of the database. Legacy databases are
+     * checked by opening them.
+     * @param password The password to check, left as it is
+     * @return true if the password unlocks the database
      */
-    private boolean verifyModernPassword(char[] password) {
+    public synchronized boolean verifyPassword(char[] password) throws IOException, GeneralSecurityException, ProblemReadingDatabaseFile {
+        if (keySlots != null) {
+            byte[] dataKey = keySlots.unwrapWithPassword(password);
+            if (dataKey == null) {
+                return false;
+            }
+            try {
+                return keySlots.checkKey(dataKey);
+            } finally {
+                Arrays.fill(dataKey, (byte) 0);
+            }
+        }
+        if (isUsingModernEncryption) {
+            byte[] derivedKey = new ModernEncryptionService(password.clone(), modernEncryptionService.getSalt())
+                    .getSecretKey().getEncoded();
+            byte[] currentKey = modernEncryptionService.getSecretKey().getEncoded();
+            try {
+                return MessageDigest.isEqual(derivedKey, currentKey);
+            } finally {
+                Arrays.fill(derivedKey, (byte) 0);
+                Arrays.fill(currentKey, (byte) 0);
+            }
+        }
         try {
-            // Create a temporary service to validate the password
-            ModernEncryptionService testService = new ModernEncryptionService(password, modernEncryptionService.getSalt());
-
-            // Generate some test data to verify encryption/decryption works
-            byte[] testData = "TEST_VERIFICATION".getBytes(StandardCharsets.UTF_8);
-            byte[] encrypted = testService.encrypt(testData);
-            byte[] decrypted = testService.decrypt(encrypted);
-
-            // Verify the decryption works correctly
-            return Arrays.equals(testData, decrypted);
-        } catch (Exception e) {
-            Log.e(TAG, "Password verification failed", e);
+            new PasswordDatabase(databaseFile, password.clone());
+            return true;
+        } catch (InvalidPasswordException e) {
             return false;
         }
     }
 
     private void load(SecretKey secretKey) throws IOException, GeneralSecurityException, ProblemReadingDatabaseFile, InvalidPasswordException {
-        //Read in the encrypted bytes
-        byte[] fullDatabase = Util.getBytesFromFile(databaseFile);
-
-        // Check the database has minimum length
-        if (fullDatabase.length < EncryptionService.SALT_LENGTH) {
-            throw new ProblemReadingDatabaseFile("This file doesn't appear to be a UPM password database");
+        FileInputStream fis = new FileInputStream(databaseFile);
+        try {
+            FileChannel channel = fis.getChannel();
+            DatabaseFormat format = DatabaseFormat.probe(channel);
+            if (format.kind == DatabaseFormat.Kind.MODERN) {
+                // Modern format databases are keyed from the original password
+                // or the data key. A SecretKey (derived from the legacy PBE
+                // algorithm) cannot be used here.
+                throw new ProblemReadingDatabaseFile(
+                    "Modern format database requires the original password for decryption. " +
+                    "Cannot open with a SecretKey alone.");
+            }
+            loadLegacy(channel, format, secretKey);
+        } finally {
+            fis.close();
         }
+    }
 
+    /**
+     * Load a legacy format database by streaming the file through the cipher.
+     * The file is never held in memory in its encrypted form.
+     */
+    private void loadLegacy(FileChannel channel, DatabaseFormat format, SecretKey secretKey) throws IOException, GeneralSecurityException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        long fileLength = format.fileLength;
         ByteArrayInputStream is = null;
         Charset charset = StandardCharsets.UTF_8;
 
-        // Check for modern format first (UPM_MODERN header)
-        byte[] modernHeader = new byte[MODERN_FILE_HEADER.getBytes().length];
-        if (fullDatabase.length >= modernHeader.length) {
-            System.arraycopy(fullDatabase, 0, modernHeader, 0, modernHeader.length);
+        if (format.kind == DatabaseFormat.Kind.LEGACY) {
+            Log.i(TAG, "Loading legacy format database (v2+)");
 
-            if (Arrays.equals(modernHeader, MODERN_FILE_HEADER.getBytes())) {
-                Log.i(TAG, "Loading modern format database");
-                isUsingModernEncryption = true;
+            // Calculate the positions of each item in the file
+            int saltPos           = FILE_HEADER.length() + 1;
+            int encryptedBytesPos = saltPos + EncryptionService.SALT_LENGTH;
+            byte[] salt = readAt(channel, saltPos, EncryptionService.SALT_LENGTH).array();
 
-                // Calculate positions of items in the file
-                int formatVersionPos = modernHeader.length;
-                int saltPos = formatVersionPos + 1;
-                int encryptedBytesPos = saltPos + ModernEncryptionService.SALT_LENGTH;
+            // From version 3 onwards Strings in AccountInformation are
+            // encoded using UTF-8. To ensure we can still open older dbs
+            // we default back to the then character set, the system default
+            if (format.legacyVersion < 3) {
+                charset = Util.defaultCharset();
+            }
 
-                // Get format version
-                byte formatVersion = fullDatabase[formatVersionPos];
+            //Attempt to decrypt the database information
+            encryptionService = new EncryptionService(secretKey, salt);
+            channel.position(encryptedBytesPos);
+            ByteBuffer decrypted = encryptionService.decrypt(channel, fileLength - encryptedBytesPos);
 
-                if (formatVersion == ModernEncryptionService.FORMAT_VERSION) {
-                    // Extract salt
-                    byte[] salt = new byte[ModernEncryptionService.SALT_LENGTH];
-                    System.arraycopy(fullDatabase, saltPos, salt, 0, ModernEncryptionService.SALT_LENGTH);
+            //If we've got here then the database was successfully decrypted
+            is = new ByteArrayInputStream(decrypted.array(), 0, decrypted.limit());
+            revision = new Revision(is);
+            dbOptions = new DatabaseOptions(is);
+        } else {
+            // Try oldest format (pre v2)
+            Log.i(TAG, "Loading ancient format database (pre v2)");
 
-                    // Extract encrypted data
-                    int encryptedBytesLength = fullDatabase.length - encryptedBytesPos;
-                    byte[] encryptedBytes = new byte[encryptedBytesLength];
-                    System.arraycopy(fullDatabase, encryptedBytesPos, encryptedBytes, 0, encryptedBytesLength);
+            //Split up the salt and encrypted bytes
+            byte[] salt = readAt(channel, 0, EncryptionService.SALT_LENGTH).array();
+            if (fileLength - EncryptionService.SALT_LENGTH > Integer.MAX_VALUE) {
+                throw new ProblemReadingDatabaseFile("This file doesn't appear to be a UPM password database");
+            }
+            byte[] encryptedBytes = readAt(channel, EncryptionService.SALT_LENGTH,
+                    (int) (fileLength - EncryptionService.SALT_LENGTH)).array();
 
-                    // Detect which algorithm was used (AES-GCM or ChaCha20-Poly1305)
-                    if (encryptedBytes.length > 0) {
-                        preferChaCha20 = (encryptedBytes[0] == ModernEncryptionService.ALG_CHACHA20_POLY1305);
-                    }
+            byte[] decryptedBytes = null;
+            try {
+                // Could be AES or legacy DES, whichever the last blocks decrypt with
+                decryptedBytes = DESDecryptionService.decryptDetectingAlgorithm(secretKey, salt, encryptedBytes);
+            } catch (IllegalBlockSizeException e) {
+                throw new ProblemReadingDatabaseFile("Either your password is incorrect or this file isn't a UPM password database");
+            }
 
-                    // Modern format databases require the original password for PBKDF2 key derivation.
-                    // A SecretKey (derived from the legacy PBE algorithm) cannot be used here.
-                    // This code path should not be reached in normal operation since all external
-                    // callers use the char[] password constructor, which calls load(password, secretKey).
-                    throw new ProblemReadingDatabaseFile(
-                        "Modern format database requires the original password for decryption. " +
-                        "Cannot open with a SecretKey alone.");
-                } else {
-                    throw new ProblemReadingDatabaseFile("Unsupported modern database format version: " + formatVersion);
-                }
+            // Create the encryption for use later in the save() method
+            // Always use the more secure AES encryption for future saves
+            encryptionService = new EncryptionService(secretKey, salt);
+
+            //We'll get to here if the password was correct so load up the decryped bytes
+            is = new ByteArrayInputStream(decryptedBytes);
+            DatabaseHeader dh = new DatabaseHeader(is);
+
+            // At this point we'll check to see what version the database is and load it accordingly
+            if (dh.getVersion().equals("1.1.0")) {
+                // Version 1.1.0 introduced a revision number & database options so read that in now
+                revision = new Revision(is);
+                dbOptions = new DatabaseOptions(is);
+            } else if (dh.getVersion().equals("1.0.0")) {
+                revision = new Revision();
+                dbOptions = new DatabaseOptions();
+            } else {
+                throw new ProblemReadingDatabaseFile("Don't know how to handle database version [" + dh.getVersion() + "]");
             }
         }
 
-        // If we didn't load as modern format, try legacy formats
-        if (!isUsingModernEncryption) {
-            // Check for UPM standard format
-            byte[] legacyHeader = new byte[FILE_HEADER.getBytes().length];
-            System.arraycopy(fullDatabase, 0, legacyHeader, 0, legacyHeader.length);
-
-            if (Arrays.equals(legacyHeader, FILE_HEADER.getBytes())) {
-                Log.i(TAG, "Loading legacy format database (v2+)");
-
-                // Calculate the positions of each item in the file
-                int dbVersionPos      = legacyHeader.length;
-                int saltPos           = dbVersionPos + 1;
-                int encryptedBytesPos = saltPos + EncryptionService.SALT_LENGTH;
-
-                // Get the database version
-                byte dbVersion = fullDatabase[dbVersionPos];
-
-                if (dbVersion == 2 || dbVersion == 3) {
-                    byte[] salt = new byte[EncryptionService.SALT_LENGTH];
-                    System.arraycopy(fullDatabase, saltPos, salt, 0, EncryptionService.SALT_LENGTH);
-                    int encryptedBytesLength = fullDatabase.length - encryptedBytesPos;
-                    byte[] encryptedBytes = new byte[encryptedBytesLength];
-                    System.arraycopy(fullDatabase, encryptedBytesPos, encryptedBytes, 0, encryptedBytesLength);
-
-                    // From version 3 onwards Strings in AccountInformation are
-                    // encoded using UTF-8. To ensure we can still open older dbs
-                    // we default back to the then character set, the system default
-                    if (dbVersion < 3) {
-                        charset = Util.defaultCharset();
-                    }
-
-                    //Attempt to decrypt the database information
-                    encryptionService = new EncryptionService(secretKey, salt);
-                    byte[] decryptedBytes = encryptionService.decrypt(encryptedBytes);
-
-                    //If we've got here then the database was successfully decrypted
-                    is = new ByteArrayInputStream(decryptedBytes);
-                    revision = new Revision(is);
-                    dbOptions = new DatabaseOptions(is);
-                } else {
-                    throw new ProblemReadingDatabaseFile("Don't know how to handle database version [" + dbVersion + "]");
-                }
-            } else {
-                // Try oldest format (pre v2)
-                Log.i(TAG, "Loading ancient format database (pre v2)");
+        // Read the remainder of the database in now
+        setAccounts(readAccounts(is, charset));
+    }
 
-                // Check the database is a minimum length
-                if (fullDatabase.length < EncryptionService.SALT_LENGTH) {
-                    throw new ProblemReadingDatabaseFile("This file doesn't appear to be a UPM password database");
-                }
+    /**
+     * Load a database with the original password, or with the data key of a
+     * key slotted database in place of it. The header is probed first so
+     * only the key derivation the database's format needs is run.
+     */
+    private void load(char[] password, byte[] dataKey) throws IOException, GeneralSecurityException, ProblemReadingDatabaseFile, InvalidPasswordException {
+        FileInputStream fis = new FileInputStream(databaseFile);
+        try {
+            FileChannel channel = fis.getChannel();
+            DatabaseFormat format = DatabaseFormat.probe(channel);
+            if (dataKey != null && !format.isUsingKeySlots()) {
+                throw new ProblemReadingDatabaseFile("Only databases using key slots can be opened with a data key");
+            }
+            if (format.kind != DatabaseFormat.Kind.MODERN) {
+                // Only the legacy formats use the PBE key
+                loadLegacy(channel, format, EncryptionService.createSecretKey(password));
+                return;
+            }
 
-                //Split up the salt and encrypted bytes
-                byte[] salt = new byte[EncryptionService.SALT_LENGTH];
-                System.arraycopy(fullDatabase, 0, salt, 0, EncryptionService.SALT_LENGTH);
-                int encryptedBytesLength = fullDatabase.length - EncryptionService.SALT_LENGTH;
-                byte[] encryptedBytes = new byte[encryptedBytesLength];
-                System.arraycopy(fullDatabase, EncryptionService.SALT_LENGTH, encryptedBytes, 0, encryptedBytesLength);
+            Log.i(TAG, "Loading modern format database using password");
+            isUsingModernEncryption = true;
 
-                byte[] decryptedBytes = null;
-                try {
-                    // First try to decrypt using AES (in case it was encrypted with the modern algorithm)
-                    try {
-                        decryptedBytes = DESDecryptionService.decryptAES(secretKey, salt, encryptedBytes);
-                    } catch (Exception e) {
-                        // If AES decryption fails, fall back to legacy DES decryption
-                        decryptedBytes = DESDecryptionService.decrypt(secretKey, salt, encryptedBytes);
+            // The body of a key slotted database follows the key slots and
+            // is laid out as for its own format version
+            long fileLength = format.fileLength;
+            byte[] salt = format.salt;
+            byte bodyVersion = format.bodyVersion;
+            long bodyPos = format.bodyPos;
+            keySlots = format.keySlots;
+            activeKeySlotArea = format.activeKeySlotArea;
+            preferChaCha20 = format.chaCha20;
+            boolean segmented = bodyVersion == ModernEncryptionService.FORMAT_VERSION_SEGMENTED;
+
+            // Attempt to decrypt the database using the original password chars
+            ByteBuffer decrypted = null;
+            HashMap<String, AccountInformation> accounts = null;
+            try {
+                if (dataKey != null) {
+                    if (!keySlots.checkKey(dataKey)) {
+                        throw new InvalidPasswordException("The data key doesn't match the key check");
+                    }
+                    modernEncryptionService = new ModernEncryptionService(dataKey, salt);
+                } else if (keySlots != null) {
+                    Log.d(TAG, "Unwrapping the data key with the password");
+                    byte[] unwrappedKey = keySlots.unwrapWithPassword(password);
+                    Arrays.fill(password, '\0');
+                    if (unwrappedKey == null) {
+                        throw new InvalidPasswordException("The password doesn't unlock any key slot");
+                    }
+                    if (!keySlots.checkKey(unwrappedKey)) {
+                        Arrays.fill(unwrappedKey, (byte) 0);
+                        throw new InvalidPasswordException("The data key doesn't match the key check");
                     }
-                } catch (IllegalBlockSizeException e) {
-                    throw new ProblemReadingDatabaseFile("Either your password is incorrect or this file isn't a UPM password database");
+                    modernEncryptionService = new ModernEncryptionService(unwrappedKey, salt);
+                    Arrays.fill(unwrappedKey, (byte) 0);
+                } else {
+                    Log.d(TAG, "Initializing modern encryption with original password");
+                    // Use the original password for modern encryption
+                    modernEncryptionService = new ModernEncryptionService(password, salt);
                 }
 
-                // Create the encryption for use later in the save() method
-                // Always use the more secure AES encryption for future saves
-                encryptionService = new EncryptionService(secretKey, salt);
-
-                //We'll get to here if the password was correct so load up the decryped bytes
-                is = new ByteArrayInputStream(decryptedBytes);
-                DatabaseHeader dh = new DatabaseHeader(is);
+                channel.position(bodyPos);
+                if (segmented) {
+                    accounts = new HashMap<String, AccountInformation>();
+                    segments = SegmentedContainer.read(channel, format.bodyHeader, modernEncryptionService, accounts);
+                } else if (bodyVersion == ModernEncryptionService.FORMAT_VERSION_CHUNKED) {
+                    decrypted = modernEncryptionService.decryptChunked(channel, bodyPos, fileLength - bodyPos, format.bodyHeader);
+                } else {
+                    decrypted = modernEncryptionService.decrypt(channel, fileLength - bodyPos);
+                }
+            } catch (ProblemReadingDatabaseFile e) {
+                throw e;
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to decrypt database with modern encryption", e);
+                throw new InvalidPasswordException("Failed to decrypt the database. Either the password is incorrect or the database is corrupted.");
+            }
 
-                // At this point we'll check to see what version the database is and load it accordingly
-                if (dh.getVersion().equals("1.1.0")) {
-                    // Version 1.1.0 introduced a revision number & database options so read that in now
+            // Load the decrypted database contents
+            byte[] baseTag;
+            if (segmented) {
+                revision = segments.getRevision();
+                dbOptions = segments.getDbOptions();
+                baseTag = segments.getTableTag();
+            } else {
+                if (bodyVersion == ModernEncryptionService.FORMAT_VERSION_FLATPACK) {
+                    ByteArrayInputStream is = new ByteArrayInputStream(decrypted.array(), 0, decrypted.limit());
                     revision = new Revision(is);
                     dbOptions = new DatabaseOptions(is);
-                } else if (dh.getVersion().equals("1.0.0")) {
-                    revision = new Revision();
-                    dbOptions = new DatabaseOptions();
+                    accounts = readAccounts(is, StandardCharsets.UTF_8);
                 } else {
-                    throw new ProblemReadingDatabaseFile("Don't know how to handle database version [" + dh.getVersion() + "]");
+                    accounts = readAccounts(new BinaryPayloadReader(decrypted.array(), 0, decrypted.limit()));
                 }
+                baseTag = readAt(channel, fileLength - DatabaseJournal.BASE_TAG_LENGTH, DatabaseJournal.BASE_TAG_LENGTH).array();
             }
+
+            // Apply any changes saved to the journal since the database was last written in full
+            journal = DatabaseJournal.open(databaseFile, baseTag, modernEncryptionService, accounts);
+            setAccounts(accounts);
+            // FlatPack databases are upgraded to the binary encoding on the first save
+            fullSaveRequired = bodyVersion == ModernEncryptionService.FORMAT_VERSION_FLATPACK;
+        } finally {
+            fis.close();
         }
-        
-        // Read the remainder of the database in now
-        accounts = new HashMap<String, AccountInformation>();
+    }
+
+    /**
+     * Read accounts from the given stream until the end of it is reached.
+     */
+    private static HashMap<String, AccountInformation> readAccounts(InputStream is, Charset charset) throws IOException, ProblemReadingDatabaseFile {
+        HashMap<String, AccountInformation> accounts = new HashMap<String, AccountInformation>();
         try {
             while (true) { //keep loading accounts until an EOFException is thrown
                 AccountInformation ai = new AccountInformation(is, charset);
-                addAccount(ai);
+                accounts.put(ai.getAccountName(), ai);
             }
         } catch (EOFException e) {
             //just means we hit eof
         }
         is.close();
+        return accounts;
     }
 
     /**
-     * Load a database with both original password and SecretKey for
-     * proper handling of different encryption formats
+     * Read the revision, options and accounts from a binary payload.
      */
-    private void load(char[] password, SecretKey secretKey) throws IOException, GeneralSecurityException, ProblemReadingDatabaseFile, InvalidPasswordException {
-        //Read in the encrypted bytes
-        byte[] fullDatabase = Util.getBytesFromFile(databaseFile);
-
-        // Check the database has minimum length
-        if (fullDatabase.length < EncryptionService.SALT_LENGTH) {
-            throw new ProblemReadingDatabaseFile("This file doesn't appear to be a UPM password database");
+    private HashMap<String, AccountInformation> readAccounts(BinaryPayloadReader reader) throws ProblemReadingDatabaseFile {
+        revision = reader.readRevision();
+        dbOptions = reader.readDatabaseOptions();
+        int accountCount = reader.readVarInt();
+        LazyAccountInformation[] records = reader.readLazyAccounts(accountCount);
+        HashMap<String, AccountInformation> accounts = new HashMap<String, AccountInformation>(accountCount * 4 / 3 + 1);
+        for (AccountInformation ai : records) {
+            accounts.put(ai.getAccountName(), ai);
         }
+        return accounts;
+    }
 
-        ByteArrayInputStream is = null;
-        Charset charset = StandardCharsets.UTF_8;
+    /**
+     * Read the key slots of a database without decrypting anything, so one of
+     * them can be unwrapped to open the database with its data key.
+     * @return The key slots, or null if the database doesn't use key slots
+     */
+    public static KeySlots readKeySlots(File dbFile) throws IOException, ProblemReadingDatabaseFile {
+        FileInputStream fis = new FileInputStream(dbFile);
+        try {
+            return DatabaseFormat.probe(fis.getChannel()).keySlots;
+        } finally {
+            fis.close();
+        }
+    }
 
-        // Check for modern format first (UPM_MODERN header)
-        byte[] modernHeader = new byte[MODERN_FILE_HEADER.getBytes().length];
-        if (fullDatabase.length >= modernHeader.length) {
-            System.arraycopy(fullDatabase, 0, modernHeader, 0, modernHeader.length);
+    /**
+     * Read <code>length</code> bytes from the channel at the given position
+     * without moving the channel's own position.
+     */
+    static ByteBuffer readAt(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
 
-            if (Arrays.equals(modernHeader, MODERN_FILE_HEADER.getBytes())) {
-                Log.i(TAG, "Loading modern format database using password");
-                isUsingModernEncryption = true;
+    static boolean startsWith(ByteBuffer buffer, byte[] header) {
+        if (buffer.limit() < header.length) {
+            return false;
+        }
+        for (int i = 0; i < header.length; i++) {
+            if (buffer.get(i) != header[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-                // Calculate positions of items in the file
-                int formatVersionPos = modernHeader.length;
-                int saltPos = formatVersionPos + 1;
-                int encryptedBytesPos = saltPos + ModernEncryptionService.SALT_LENGTH;
 
-                // Get format version
-                byte formatVersion = fullDatabase[formatVersionPos];
+    private void setAccounts(HashMap<String, AccountInformation> accounts) {
+        synchronized (sortedNames) {
+            snapshot.set(new AccountsSnapshot(accounts));
+            sortedNames.reset(accounts.keySet());
+        }
+    }
 
-                if (formatVersion == ModernEncryptionService.FORMAT_VERSION) {
-                    // Extract salt
-                    byte[] salt = new byte[ModernEncryptionService.SALT_LENGTH];
-                    System.arraycopy(fullDatabase, saltPos, salt, 0, ModernEncryptionService.SALT_LENGTH);
 
-                    // Extract encrypted data
-                    int encryptedBytesLength = fullDatabase.length - encryptedBytesPos;
-                    byte[] encryptedBytes = new byte[encryptedBytesLength];
-                    System.arraycopy(fullDatabase, encryptedBytesPos, encryptedBytes, 0, encryptedBytesLength);
+    public void addAccount(AccountInformation ai) {
+        replaceAccount(ai.getAccountName(), ai);
+    }
 
-                    // Detect which algorithm was used (AES-GCM or ChaCha20-Poly1305)
-                    if (encryptedBytes.length > 0) {
-                        preferChaCha20 = (encryptedBytes[0] == ModernEncryptionService.ALG_CHACHA20_POLY1305);
-                    }
 
-                    // Attempt to decrypt the database using the original password chars
-                    try {
-                        Log.d(TAG, "Initializing modern encryption with original password");
-                        // Use the original password for modern encryption
-                        modernEncryptionService = new ModernEncryptionService(password, salt);
-
-                        byte[] decryptedBytes = modernEncryptionService.decrypt(encryptedBytes);
-
-                        // Load the decrypted database contents
-                        is = new ByteArrayInputStream(decryptedBytes);
-                        revision = new Revision(is);
-                        dbOptions = new DatabaseOptions(is);
-                    } catch (Exception e) {
-                        Log.e(TAG, "Failed to decrypt database with modern encryption", e);
-                        throw new InvalidPasswordException("Failed to decrypt the database. Either the password is incorrect or the database is corrupted.");
-                    }
-                } else {
-                    throw new ProblemReadingDatabaseFile("Unsupported modern database format version: " + formatVersion);
-                }
+    /**
+     * Replace an account with an edited version of it in a single step, so
+     * a save happening at the same time sees either the old or the new
+     * account but never neither.
+     */
+    public void replaceAccount(String accountName, AccountInformation ai) {
+        synchronized (sortedNames) {
+            AccountsSnapshot current;
+            do {
+                current = snapshot.get();
+            } while (!snapshot.compareAndSet(current, current.withAccount(accountName, ai)));
+            sortedNames.rename(accountName, ai.getAccountName());
+        }
+        synchronized (searchIndexLock) {
+            if (searchIndex != null) {
+                searchIndex.remove(accountName);
+                searchIndex.add(ai);
             }
         }
+    }
+    
 
-        // If we didn't load as modern format, try legacy formats with the SecretKey
-        if (!isUsingModernEncryption) {
-            load(secretKey);
+    public void deleteAccount(String accountName) {
+        synchronized (sortedNames) {
+            AccountsSnapshot current;
+            do {
+                current = snapshot.get();
+            } while (!snapshot.compareAndSet(current, current.withoutAccount(accountName)));
+            sortedNames.remove(accountName);
         }
-        else {
-            // We've already loaded account data in the modern decryption path, so just read accounts
-            accounts = new HashMap<String, AccountInformation>();
-            try {
-                while (true) { //keep loading accounts until an EOFException is thrown
-                    AccountInformation ai = new AccountInformation(is, charset);
-                    addAccount(ai);
-                }
-            } catch (EOFException e) {
-                //just means we hit eof
+        synchronized (searchIndexLock) {
+            if (searchIndex != null) {
+                searchIndex.remove(accountName);
             }
-            is.close();
         }
     }
 
+    
+    public AccountInformation getAccount(String name) {
+        return snapshot.get().getAccount(name);
+    }
+
 
-    public void addAccount(AccountInformation ai) {
-        accounts.put(ai.getAccountName(), ai);
+    /**
+     * @return The accounts as they are right now. The snapshot doesn't change
+     *         when the database is edited afterwards.
+     */
+    public AccountsSnapshot getSnapshot() {
+        return snapshot.get();
     }
-    
 
-    public void deleteAccount(String accountName) {
-        accounts.remove(accountName);
+
+    /**
+     * @return The index used to search every field of the accounts. It's
+     *         built on the first call, which decodes every account, so that
+     *         mustn't be made on the UI thread for a large database.
+     */
+    public SearchIndex getSearchIndex() {
+        synchronized (searchIndexLock) {
+            if (searchIndex == null) {
+                // An edit racing with this is applied to the index afterwards,
+                // applying one twice is harmless
+                searchIndex = new SearchIndex(snapshot.get().getAccounts());
+            }
+            return searchIndex;
+        }
     }
 
-    
-    public AccountInformation getAccount(String name) {
-        return accounts.get(name);
+
+    /**
+     * Stop treating the changes written out from <code>saved</code> as
+     * unsaved, keeping any made since the snapshot was taken.
+     */
+    private void changesSaved(AccountsSnapshot saved) {
+        AccountsSnapshot current;
+        do {
+            current = snapshot.get();
+        } while (!snapshot.compareAndSet(current, current.withChangesSaved(saved)));
     }
     
     
-    public void save() throws IOException, IllegalBlockSizeException, BadPaddingException, NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, InvalidAlgorithmParameterException, NoSuchProviderException {
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        
-        // Flatpack the database revision and options
+    /**
+     * Save any changes. For modern databases the changed accounts are
+     * appended to the journal where possible and changed key slots are
+     * rewritten in place, the whole database is only rewritten when the
+     * journal needs compacting or something else has changed.
+     *
+     * What's written is a snapshot of the accounts taken when the save
+     * starts, so accounts can go on being edited while a save runs in the
+     * background. Saves themselves are serialised.
+     */
+    public synchronized void save() throws IOException, IllegalBlockSizeException, BadPaddingException, NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, InvalidAlgorithmParameterException, NoSuchProviderException {
+        AccountsSnapshot saving = snapshot.get();
+        markChangedSegmentsDirty(saving);
+
+        if (isUsingModernEncryption && journal != null && !fullSaveRequired
+                && !journal.needsCompaction(databaseFile.length())) {
+            try {
+                if (keySlotsChanged) {
+                    writeKeySlots();
+                }
+                if (saving.hasChanges()) {
+                    journal.append(saving.getChanges(), modernEncryptionService);
+                    changesSaved(saving);
+                }
+                return;
+            } catch (IOException e) {
+                Log.w(TAG, "Couldn't update the database in place, saving the whole database", e);
+            }
+        }
+
+        saveFully(saving);
+    }
+
+
+    /**
+     * The segments holding changed accounts have to be re-encrypted on the
+     * next full save, even if the changes go to the journal for now.
+     */
+    private void markChangedSegmentsDirty(AccountsSnapshot saving) {
+        if (segments != null) {
+            for (String accountName : saving.getChanges().keySet()) {
+                segments.markDirty(accountName);
+            }
+        }
+    }
+
+
+    /**
+     * Write the whole database to disk if there's anything in the journal or
+     * waiting to be saved, leaving a single self contained file. This should
+     * be done before the database file is copied anywhere.
+     */
+    public synchronized void compactJournal() throws IOException, GeneralSecurityException {
+        AccountsSnapshot saving = snapshot.get();
+        if (fullSaveRequired || keySlotsChanged || saving.hasChanges()
+                || (journal != null && journal.getRecordCount() > 0)) {
+            markChangedSegmentsDirty(saving);
+            saveFully(saving);
+        }
+    }
+
+
+    private void saveFully(AccountsSnapshot saving) throws IOException, IllegalBlockSizeException, BadPaddingException, NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, InvalidAlgorithmParameterException, NoSuchProviderException {
         revision.increment();
-        revision.flatPack(os);
-        dbOptions.flatPack(os);
 
-        // Flatpack the accounts
-        Iterator<AccountInformation> it = accounts.values().iterator();
-        while (it.hasNext()) {
-            AccountInformation ai = it.next();
-            ai.flatPack(os);
+        // Large databases are split into segments so later saves only have
+        // to re-encrypt the segments holding changed accounts
+        if (isUsingModernEncryption) {
+            if ((segments == null && saving.size() >= SegmentedContainer.MIN_ACCOUNTS)
+                    || (segments != null && !segments.isBalanced(saving.size()))) {
+                segments = SegmentedContainer.forAccounts(saving.size());
+            }
         }
-        os.close();
-        byte[] dataToEncrypt = os.toByteArray();
 
         // Write to a temporary file
         File tempFile = File.createTempFile("upmdb", null);
-        FileOutputStream fos = new FileOutputStream(tempFile);
+        RandomAccessFile out = new RandomAccessFile(tempFile, "rw");
+        byte[] baseTag = null;
+
+        try {
+            if (isUsingModernEncryption && segments != null) {
+                baseTag = writeSegmented(out.getChannel(), saving);
+            } else {
+                baseTag = writeSingle(out.getChannel(), saving);
+            }
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            out.close();
+            tempFile.delete();
+            throw e;
+        }
+
+        out.close();
+
+        // Rename the tempfile to the real database file
+        // The reason for this is to protect against the write thread being
+        // terminated thus corrupting the file.
+        if (!tempFile.renameTo(databaseFile)) {
+            tempFile.delete();
+            if (segments != null) {
+                // The segments were positioned for the file we couldn't move into place
+                segments.markAllDirty();
+            }
+            throw new IOException("Couldn't replace " + databaseFile);
+        }
 
-        // Encrypt and format according to the encryption method we're using
+        // Everything is in the database file now so start a new journal.
+        // Should the app die before the old journal is deleted it'll be
+        // ignored on the next load as it no longer matches the database.
         if (isUsingModernEncryption) {
-            //Now encrypt the database data using modern encryption
-            byte[] encryptedData = modernEncryptionService.encrypt(dataToEncrypt);
+            journal = DatabaseJournal.create(databaseFile, baseTag);
+        } else {
+            DatabaseJournal.delete(databaseFile);
+            journal = null;
+        }
+        changesSaved(saving);
+        fullSaveRequired = false;
+        // The key slots are written to the first slot area of a new file
+        activeKeySlotArea = 0;
+        keySlotsChanged = false;
+    }
 
+
+    /**
+     * Write the key slots to the spare slot area of the database file and
+     * then switch over to it. Nothing else in the file changes.
+     *
+     * The old area is then wiped. It still holds the data key wrapped by the
+     * old password or by a slot that's been removed, and left in place it
+     * would go on opening the database.
+     */
+    private void writeKeySlots() throws IOException {
+        int spareArea = 1 - activeKeySlotArea;
+        RandomAccessFile file = new RandomAccessFile(databaseFile, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            writeAt(channel, ByteBuffer.wrap(keySlots.toArea()), KEY_SLOTS_POS + 1 + spareArea * KeySlots.AREA_LENGTH);
+            channel.force(false);
+            writeAt(channel, ByteBuffer.wrap(new byte[] { (byte) spareArea }), KEY_SLOTS_POS);
+            channel.force(false);
+            writeAt(channel, ByteBuffer.allocate(KeySlots.AREA_LENGTH), KEY_SLOTS_POS + 1 + activeKeySlotArea * KeySlots.AREA_LENGTH);
+            channel.force(false);
+        } finally {
+            file.close();
+        }
+        activeKeySlotArea = spareArea;
+        keySlotsChanged = false;
+    }
+
+
+    private static void writeAt(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+
+    /**
+     * Write the database as a single encrypted payload. The payload is
+     * encoded straight into the cipher which writes to the file as it goes,
+     * so neither the plaintext nor the ciphertext is ever held in full.
+     * @return The authentication tag of the payload's final chunk
+     */
+    private byte[] writeSingle(FileChannel out, AccountsSnapshot saving) throws IOException, NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, InvalidAlgorithmParameterException {
+        OutputStream os;
+        if (isUsingModernEncryption) {
             // Write modern format header
-            fos.write(MODERN_FILE_HEADER.getBytes());
-            fos.write(ModernEncryptionService.FORMAT_VERSION);
-            fos.write(modernEncryptionService.getSalt());
-            fos.write(encryptedData);
-        } else {
-            //Now encrypt the database data using legacy encryption
-            byte[] encryptedData = encryptionService.encrypt(dataToEncrypt);
+            // The chunks are bound to the header so it can't be altered either
+            byte[] fileHeader = writeModernHeader(out, ModernEncryptionService.FORMAT_VERSION_CHUNKED);
+            os = new BufferedOutputStream(modernEncryptionService.encryptChunked(out, fileHeader), WRITE_BUFFER_SIZE);
 
+            // Modern databases are always written using the binary encoding,
+            // this transparently upgrades FlatPack (format version 1) databases
+            new BinaryPayloadWriter(os).write(revision, dbOptions, saving.getAccounts());
+        } else {
             // Write legacy format header
-            fos.write(FILE_HEADER.getBytes());
-            fos.write(DB_VERSION);
-            fos.write(encryptionService.getSalt());
-            fos.write(encryptedData);
+            writeHeader(out, FILE_HEADER, DB_VERSION, encryptionService.getSalt());
+            os = new BufferedOutputStream(encryptionService.encrypt(out), WRITE_BUFFER_SIZE);
+
+            // Flatpack the database revision and options
+            revision.flatPack(os);
+            dbOptions.flatPack(os);
+
+            // Flatpack the accounts
+            Iterator<AccountInformation> it = saving.getAccounts().iterator();
+            while (it.hasNext()) {
+                AccountInformation ai = it.next();
+                ai.flatPack(os);
+            }
         }
+        // Closing the stream finishes the encryption, the file stays open
+        os.close();
 
-        fos.close();
+        return readAt(out, out.size() - DatabaseJournal.BASE_TAG_LENGTH, DatabaseJournal.BASE_TAG_LENGTH).array();
+    }
 
-        // Rename the tempfile to the real database file
-        // The reason for this is to protect against the write thread being
-        // terminated thus corrupting the file.
-        tempFile.renameTo(databaseFile);
+
+    private static void writeHeader(FileChannel out, String header, int version, byte[] salt) throws IOException {
+        byte[] headerBytes = header.getBytes();
+        ByteBuffer buffer = ByteBuffer.allocate(headerBytes.length + 1 + salt.length);
+        buffer.put(headerBytes);
+        buffer.put((byte) version);
+        buffer.put(salt);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+
+    /**
+     * Write the modern file header. In key slotted databases it's followed by
+     * the key slots and the format version of the body.
+     * @return The header the body is bound to
+     */
+    private byte[] writeModernHeader(FileChannel out, byte bodyVersion) throws IOException {
+        if (keySlots == null) {
+            writeHeader(out, MODERN_FILE_HEADER, bodyVersion, modernEncryptionService.getSalt());
+            return readAt(out, 0, (int) out.size()).array();
+        }
+
+        writeHeader(out, MODERN_FILE_HEADER, ModernEncryptionService.FORMAT_VERSION_KEY_SLOTS, modernEncryptionService.getSalt());
+        byte[] header = readAt(out, 0, (int) out.size()).array();
+        // The slots go in the first area, the second is left empty until they change
+        ByteBuffer buffer = ByteBuffer.allocate(KeySlots.HEADER_LENGTH + 1);
+        buffer.put((byte) 0);
+        buffer.put(keySlots.toArea());
+        buffer.position(KeySlots.HEADER_LENGTH);
+        buffer.put(bodyVersion);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        return DatabaseFormat.bodyHeader(header, bodyVersion);
+    }
+
+
+    /**
+     * Write the database in the segmented layout, copying unchanged segments
+     * from the current database file.
+     * @return The authentication tag of the segment table
+     */
+    private byte[] writeSegmented(FileChannel out, AccountsSnapshot saving) throws IOException, IllegalBlockSizeException, BadPaddingException, NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, InvalidAlgorithmParameterException, NoSuchProviderException {
+        byte[] fileHeader = writeModernHeader(out, ModernEncryptionService.FORMAT_VERSION_SEGMENTED);
+
+        FileInputStream existing = databaseFile.exists() ? new FileInputStream(databaseFile) : null;
+        try {
+            segments.write(out, existing != null ? existing.getChannel() : null, fileHeader,
+                    modernEncryptionService, revision, dbOptions, saving.getAccountMap());
+        } finally {
+            if (existing != null) {
+                existing.close();
+            }
+        }
+        return segments.getTableTag();
     }
 
     
     public ArrayList<AccountInformation> getAccounts() {
-        return new ArrayList<AccountInformation>(accounts.values());
+        return new ArrayList<AccountInformation>(snapshot.get().getAccounts());
     }
     
     
-    public ArrayList<String> getAccountNames() {
-        ArrayList<String> accountNames = new ArrayList<String>(accounts.keySet());
-        Collections.sort(accountNames, String.CASE_INSENSITIVE_ORDER);
-        return accountNames;
+    /**
+     * @return The account names sorted ignoring case, as a read-only view
+     *         that follows later edits
+     */
+    public List<String> getAccountNames() {
+        return sortedNames.getNames();
+    }
+
+
+    /**
+     * @return The sorted account names along with prefix lookups into them
+     */
+    public SortedNameIndex getSortedNames() {
+        return sortedNames;
     }
 
 
@@ -586,8 +1102,11 @@ public class PasswordDatabase {
      * one and then repoint this PassswordDatabase at the main db file.  
      * @param file
      */
-    public void setDatabaseFile(File file) {
+    public synchronized void setDatabaseFile(File file) {
         databaseFile = file;
+        // The journal and segment positions belong to the old file
+        journal = null;
+        keyChanged();
     }
 
 
@@ -0,0 +1,539 @@
+/*
+ * Epassafe Password Manager
+ * Copyright (c) 2010-2026
+ *
+ * This file is part of Epassafe Password Manager.
+ *
+ * Epassafe Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Epassafe Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ */
+package com.epassafe.upm.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+
+/**
+ * A trigram index over the name, user ID, URL and notes of every account,
+ * used to find the accounts containing some text without lowercasing and
+ * scanning every one of them on each query.
+ *
+ * Each account gets a small int ID and every three character sequence in its
+ * lowercased fields maps to a sorted array of the IDs containing it. A query
+ * intersects the arrays for its own trigrams, smallest first, and checks the
+ * few accounts left for the whole query. Queries shorter than a trigram scan
+ * the lowercased text directly, which is still kept in memory for checking.
+ *
+ * The index is kept up to date account by account as accounts are added,
+ * replaced and deleted. That includes where each account comes in the
+ * sorted names, which orders the results: the IDs are kept sorted by name
+ * the way SortedNameIndex keeps the names, so an edit moves the IDs after it
+ * along by one rather than sorting every name again.
+ */
+public final class SearchIndex {
+
+    private static final int TRIGRAM_LENGTH = 3;
+    private static final int INITIAL_CAPACITY = 16;
+    // Keeps a query from matching across the end of one field and the start of the next
+    static final char FIELD_SEPARATOR = '\0';
+    // How many accounts are checked between looking for an interrupt
+    private static final int INTERRUPT_CHECK_MASK = 1024 - 1;
+
+    /** The IDs of the accounts containing a trigram, in ascending order. */
+    private static final class Postings {
+        int[] ids = new int[4];
+        int size;
+
+        void insert(int id) {
+            int position = Arrays.binarySearch(ids, 0, size, id);
+            if (position >= 0) {
+                return;
+            }
+            position = -position - 1;
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, position, ids, position + 1, size - position);
+            ids[position] = id;
+            size++;
+        }
+
+        void remove(int id) {
+            int position = Arrays.binarySearch(ids, 0, size, id);
+            if (position >= 0) {
+                System.arraycopy(ids, position + 1, ids, position, size - position - 1);
+                size--;
+            }
+        }
+    }
+
+    private final HashMap<Long, Postings> postings = new HashMap<Long, Postings>();
+    private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+    // Indexed by ID, null where the ID is free
+    private String[] names = new String[INITIAL_CAPACITY];
+    private String[] texts = new String[INITIAL_CAPACITY];
+    // The characters in each text, see charMask()
+    private long[] charMasks = new long[INITIAL_CAPACITY];
+    private int[] freeIds = new int[INITIAL_CAPACITY];
+    private int freeCount;
+    private int nextId;
+    // The IDs in use sorted by name with SortedNameIndex.ORDER, and where
+    // each ID comes in them
+    private int[] sortedIds = new int[INITIAL_CAPACITY];
+    private int[] ranks = new int[INITIAL_CAPACITY];
+    // Bumped on every edit so earlier matches aren't narrowed down any more
+    private long version;
+
+
+    SearchIndex(Collection<AccountInformation> accounts) {
+        for (AccountInformation account : accounts) {
+            remove(account.getAccountName());
+            index(account);
+        }
+        // Sorted once here rather than inserting the accounts one at a time
+        String[] sorted = ids.keySet().toArray(new String[ids.size()]);
+        Arrays.sort(sorted, SortedNameIndex.ORDER);
+        for (int rank = 0; rank < sorted.length; rank++) {
+            int id = ids.get(sorted[rank]);
+            sortedIds[rank] = id;
+            ranks[id] = rank;
+        }
+    }
+
+
+    /**
+     * Index an account, replacing any account indexed under the same name.
+     */
+    synchronized void add(AccountInformation account) {
+        remove(account.getAccountName());
+        int id = index(account);
+
+        // Find the name's place with a binary search and move the IDs after it along
+        int count = ids.size() - 1;
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (SortedNameIndex.ORDER.compare(names[sortedIds[middle]], names[id]) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        System.arraycopy(sortedIds, low, sortedIds, low + 1, count - low);
+        sortedIds[low] = id;
+        updateRanks(low, count + 1);
+    }
+
+
+    /**
+     * Add the account's text and trigrams under a free ID, leaving it unranked.
+     */
+    private int index(AccountInformation account) {
+        int id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+        if (id == names.length) {
+            names = Arrays.copyOf(names, id * 2);
+            texts = Arrays.copyOf(texts, id * 2);
+            charMasks = Arrays.copyOf(charMasks, id * 2);
+            sortedIds = Arrays.copyOf(sortedIds, id * 2);
+            ranks = Arrays.copyOf(ranks, id * 2);
+        }
+        String text = searchableText(account);
+        names[id] = account.getAccountName();
+        texts[id] = text;
+        charMasks[id] = charMask(text);
+        ids.put(account.getAccountName(), id);
+        version++;
+
+        for (long trigram : trigrams(text)) {
+            Postings list = postings.get(trigram);
+            if (list == null) {
+                list = new Postings();
+                postings.put(trigram, list);
+            }
+            list.insert(id);
+        }
+        return id;
+    }
+
+
+    private void updateRanks(int from, int to) {
+        for (int rank = from; rank < to; rank++) {
+            ranks[sortedIds[rank]] = rank;
+        }
+    }
+
+
+    synchronized void remove(String accountName) {
+        Integer id = ids.remove(accountName);
+        if (id == null) {
+            return;
+        }
+        for (long trigram : trigrams(texts[id])) {
+            Postings list = postings.get(trigram);
+            list.remove(id);
+            if (list.size == 0) {
+                postings.remove(trigram);
+            }
+        }
+        names[id] = null;
+        texts[id] = null;
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+        int rank = ranks[id];
+        int count = ids.size();
+        System.arraycopy(sortedIds, rank + 1, sortedIds, rank, count - rank);
+        updateRanks(rank, count);
+        version++;
+    }
+
+
+    /**
+     * The accounts matching a query, which a search for a longer query can
+     * narrow down rather than searching every account again.
+     */
+    public static final class Matches {
+
+        private final SearchIndex index;
+        private final long version;
+        private final String lowerQuery;
+        // In the order of the names
+        private final int[] ids;
+        private final ArrayList<String> names;
+
+        private Matches(SearchIndex index, long version, String lowerQuery, int[] ids, ArrayList<String> names) {
+            this.index = index;
+            this.version = version;
+            this.lowerQuery = lowerQuery;
+            this.ids = ids;
+            this.names = names;
+        }
+
+        public ArrayList<String> getNames() {
+            return names;
+        }
+    }
+
+
+    /**
+     * @return The names of the accounts with the query in their name, user
+     *         ID, URL or notes, ignoring case, sorted the same way as
+     *         PasswordDatabase.getAccountNames()
+     */
+    public synchronized ArrayList<String> search(String query) {
+        try {
+            return find(query, null, false).names;
+        } catch (InterruptedException e) {
+            // Can't happen when not interruptible
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    /**
+     * Search for the accounts matching a query. When the query contains the
+     * query of <code>previous</code> only the accounts that matched that are
+     * checked, so typing a query out a character at a time gets quicker with
+     * every character.
+     * @param previous The result of an earlier search or null
+     * @throws InterruptedException if the thread is interrupted, which
+     *         abandons a search that's been superseded
+     */
+    public synchronized Matches search(String query, Matches previous) throws InterruptedException {
+        return find(query, previous, true);
+    }
+
+
+    private Matches find(String query, Matches previous, boolean interruptible) throws InterruptedException {
+        String lowerQuery = query.toLowerCase(Locale.ROOT);
+
+        int[] matchIds;
+        int count = 0;
+        if (previous != null && previous.index == this && previous.version == version
+                && lowerQuery.contains(previous.lowerQuery)) {
+            // Anything matching the longer query matched the previous one, and
+            // keeping their order means there's nothing to sort
+            matchIds = new int[previous.ids.length];
+            for (int i = 0; i < previous.ids.length; i++) {
+                checkInterrupted(interruptible, i);
+                int id = previous.ids[i];
+                if (texts[id].contains(lowerQuery)) {
+                    matchIds[count++] = id;
+                }
+            }
+        } else {
+            int[] candidates = lowerQuery.length() < TRIGRAM_LENGTH ? null : candidates(lowerQuery);
+            int end = candidates == null ? nextId : candidates.length;
+
+            // Sorting by rank is far quicker than comparing names, each match is
+            // packed as its rank followed by its ID
+            long[] matches = new long[ids.size()];
+            for (int i = 0; i < end; i++) {
+                checkInterrupted(interruptible, i);
+                int id = candidates == null ? i : candidates[i];
+                if (texts[id] != null && texts[id].contains(lowerQuery)) {
+                    matches[count++] = ((long) ranks[id] << 32) | id;
+                }
+            }
+            Arrays.sort(matches, 0, count);
+
+            matchIds = new int[count];
+            for (int i = 0; i < count; i++) {
+                matchIds[i] = (int) matches[i];
+            }
+        }
+
+        ArrayList<String> names = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(this.names[matchIds[i]]);
+        }
+        return new Matches(this, version, lowerQuery, Arrays.copyOf(matchIds, count), names);
+    }
+
+
+    private static void checkInterrupted(boolean interruptible, int i) throws InterruptedException {
+        if (interruptible && (i & INTERRUPT_CHECK_MASK) == 0 && Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+
+    public synchronized int size() {
+        return ids.size();
+    }
+
+
+    /**
+     * @return One more than the highest ID in use, IDs below it may be free
+     */
+    int idLimit() {
+        return nextId;
+    }
+
+
+    /**
+     * @return The account's lowercased name, user ID, URL and notes separated
+     *         by FIELD_SEPARATOR, or null if the ID is free
+     */
+    String text(int id) {
+        return texts[id];
+    }
+
+
+    String name(int id) {
+        return names[id];
+    }
+
+
+    /**
+     * @return The IDs of the accounts containing every one of the lowercased
+     *         words, in ID order
+     */
+    int[] containingAll(String[] lowerWords) {
+        // Only the accounts with every trigram of a word can contain it, the
+        // fewest of those are the only ones worth checking
+        int[] candidates = null;
+        for (String word : lowerWords) {
+            if (word.length() >= TRIGRAM_LENGTH) {
+                int[] wordCandidates = candidates(word);
+                if (candidates == null || wordCandidates.length < candidates.length) {
+                    candidates = wordCandidates;
+                }
+            }
+        }
+        int end = candidates == null ? nextId : candidates.length;
+
+        int[] result = new int[end];
+        int count = 0;
+        for (int i = 0; i < end; i++) {
+            int id = candidates == null ? i : candidates[i];
+            if (texts[id] != null && containsAll(texts[id], lowerWords)) {
+                result[count++] = id;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+
+    private static boolean containsAll(String text, String[] words) {
+        for (String word : words) {
+            if (!text.contains(word)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * @return The IDs of the accounts sharing at least one trigram with the
+     *         lowercased words, those sharing the most first
+     */
+    int[] bySharedTrigrams(String[] lowerWords) {
+        HashSet<Long> queryTrigrams = new HashSet<Long>();
+        for (String word : lowerWords) {
+            queryTrigrams.addAll(trigrams(word));
+        }
+        int[] shared = new int[nextId];
+        int most = 0;
+        for (long trigram : queryTrigrams) {
+            Postings list = postings.get(trigram);
+            if (list != null) {
+                for (int i = 0; i < list.size; i++) {
+                    most = Math.max(most, ++shared[list.ids[i]]);
+                }
+            }
+        }
+
+        // A counting sort, the accounts sharing the same number stay in ID order
+        int[] starts = new int[most + 1];
+        for (int id = 0; id < nextId; id++) {
+            starts[shared[id]]++;
+        }
+        int position = 0;
+        for (int count = most; count > 0; count--) {
+            int accounts = starts[count];
+            starts[count] = position;
+            position += accounts;
+        }
+        int[] result = new int[position];
+        for (int id = 0; id < nextId; id++) {
+            if (shared[id] > 0) {
+                result[starts[shared[id]]++] = id;
+            }
+        }
+        return result;
+    }
+
+
+    long charMask(int id) {
+        return charMasks[id];
+    }
+
+
+    /**
+     * @return Where the account's name comes in the sorted names
+     */
+    int rank(int id) {
+        return ranks[id];
+    }
+
+
+    /**
+     * @return A bit for each letter and digit in the text, other characters
+     *         share the remaining bits
+     */
+    static long charMask(CharSequence text) {
+        long mask = 0;
+        for (int i = 0; i < text.length(); i++) {
+            mask |= charBit(text.charAt(i));
+        }
+        return mask;
+    }
+
+
+    private static long charBit(char c) {
+        if (c >= 'a' && c <= 'z') {
+            return 1L << (c - 'a');
+        }
+        if (c >= '0' && c <= '9') {
+            return 1L << (26 + c - '0');
+        }
+        return 1L << (36 + c % 28);
+    }
+
+
+    /**
+     * @return The IDs of the accounts containing every trigram of the query
+     */
+    private int[] candidates(String lowerQuery) {
+        HashSet<Long> queryTrigrams = trigrams(lowerQuery);
+        Postings[] lists = new Postings[queryTrigrams.size()];
+        int count = 0;
+        for (long trigram : queryTrigrams) {
+            Postings list = postings.get(trigram);
+            if (list == null) {
+                return new int[0];
+            }
+            lists[count++] = list;
+        }
+
+        // Start from the rarest trigram so the candidates shrink quickest
+        int smallest = 0;
+        for (int i = 1; i < lists.length; i++) {
+            if (lists[i].size < lists[smallest].size) {
+                smallest = i;
+            }
+        }
+        int[] result = Arrays.copyOf(lists[smallest].ids, lists[smallest].size);
+        int resultSize = result.length;
+        for (int i = 0; i < lists.length && resultSize > 0; i++) {
+            if (i != smallest) {
+                resultSize = intersect(result, resultSize, lists[i]);
+            }
+        }
+        return Arrays.copyOf(result, resultSize);
+    }
+
+
+    /**
+     * Keep the IDs in <code>result</code> that are also in <code>list</code>.
+     * @return The number of IDs kept at the start of <code>result</code>
+     */
+    private static int intersect(int[] result, int resultSize, Postings list) {
+        int kept = 0;
+        int j = 0;
+        for (int i = 0; i < resultSize && j < list.size; i++) {
+            int id = result[i];
+            while (j < list.size && list.ids[j] < id) {
+                j++;
+            }
+            if (j < list.size && list.ids[j] == id) {
+                result[kept++] = id;
+            }
+        }
+        return kept;
+    }
+
+
+    static String searchableText(AccountInformation account) {
+        StringBuilder text = new StringBuilder();
+        append(text, account.getAccountName());
+        text.append(FIELD_SEPARATOR);
+        append(text, account.getUserId());
+        text.append(FIELD_SEPARATOR);
+        append(text, account.getUrl());
+        text.append(FIELD_SEPARATOR);
+        append(text, account.getNotes());
+        return text.toString().toLowerCase(Locale.ROOT);
+    }
+
+
+    private static void append(StringBuilder text, String field) {
+        if (field != null) {
+            text.append(field);
+        }
+    }
+
+
+    private static HashSet<Long> trigrams(String text) {
+        HashSet<Long> trigrams = new HashSet<Long>();
+        for (int i = 0; i + TRIGRAM_LENGTH <= text.length(); i++) {
+            trigrams.add(((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2));
+        }
+        return trigrams;
+    }
+
+}
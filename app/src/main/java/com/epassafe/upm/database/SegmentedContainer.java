@@ -0,0 +1,344 @@
+/*
+ * Epassafe Password Manager
+ * Copyright (c) 2010-2026
+ *
+ * This file is part of Epassafe Password Manager.
+ *
+ * Epassafe Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Epassafe Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ */
+package com.epassafe.upm.database;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+
+import com.epassafe.upm.crypto.InvalidPasswordException;
+import com.epassafe.upm.crypto.ModernEncryptionService;
+
+/**
+ * The segmented layout used by modern format version 3 databases. Accounts
+ * are spread over a number of independently encrypted segments by a hash of
+ * the account name, so saving a few edited accounts only re-encrypts the
+ * segments they're in. Unchanged segments are copied through from the
+ * existing file as they are.
+ *
+ * Layout following UPM_MODERN FORMAT_VERSION SALT:
+ *   TABLE_LENGTH (4 bytes, big endian) [TABLE] [SEGMENT]*
+ *   TABLE = REVISION REMOTE_LOCATION AUTH_DB_ENTRY SEGMENT_COUNT (SEGMENT_LENGTH SEGMENT_TAG)*
+ *   SEGMENT = ACCOUNT_COUNT ACCOUNTS (binary payload encoding)
+ *
+ * The table is authenticated together with the file header. It holds the
+ * authentication tag of every segment, and each segment is authenticated
+ * together with its index, so segments can't be swapped, reordered or
+ * replaced with older versions.
+ */
+class SegmentedContainer {
+
+    /** Databases with at least this many accounts are saved segmented. */
+    static final int MIN_ACCOUNTS = 512;
+
+    private static final int ACCOUNTS_PER_SEGMENT = 128;
+    private static final int MAX_SEGMENTS = 1024;
+    private static final int TAG_LENGTH = ModernEncryptionService.GCM_TAG_LENGTH;
+    private static final byte[] SEGMENT_HEADER = "UPM_SEGMENT".getBytes(StandardCharsets.UTF_8);
+
+    private final int segmentCount;
+    private final long[] segmentOffsets;
+    private final int[] segmentLengths;
+    private final byte[][] segmentTags;
+    private final BitSet dirtySegments = new BitSet();
+    private byte[] tableTag;
+
+    private Revision revision;
+    private DatabaseOptions dbOptions;
+
+
+    private SegmentedContainer(int segmentCount) {
+        this.segmentCount = segmentCount;
+        segmentOffsets = new long[segmentCount];
+        segmentLengths = new int[segmentCount];
+        segmentTags = new byte[segmentCount][];
+    }
+
+
+    /**
+     * A new container sized for the given number of accounts. Nothing has
+     * been written yet so every segment is dirty.
+     */
+    static SegmentedContainer forAccounts(int accountCount) {
+        int segmentCount = Math.max(1, Math.min(MAX_SEGMENTS, accountCount / ACCOUNTS_PER_SEGMENT));
+        SegmentedContainer container = new SegmentedContainer(segmentCount);
+        container.markAllDirty();
+        return container;
+    }
+
+
+    /**
+     * @return false if the segments have grown so large they should be split up
+     */
+    boolean isBalanced(int accountCount) {
+        return segmentCount == MAX_SEGMENTS || accountCount <= segmentCount * ACCOUNTS_PER_SEGMENT * 4;
+    }
+
+
+    void markDirty(String accountName) {
+        dirtySegments.set(segmentFor(accountName));
+    }
+
+
+    void markAllDirty() {
+        dirtySegments.set(0, segmentCount);
+    }
+
+
+    private int segmentFor(String accountName) {
+        return (accountName.hashCode() & 0x7FFFFFFF) % segmentCount;
+    }
+
+
+    /**
+     * Read the segment table and every segment, adding the accounts to the given map.
+     * @param channel Positioned just after the file header
+     * @param fileHeader The UPM_MODERN FORMAT_VERSION SALT bytes the table is bound to
+     */
+    static SegmentedContainer read(FileChannel channel, byte[] fileHeader,
+            ModernEncryptionService encryptionService, Map<String, AccountInformation> accounts)
+            throws IOException, InvalidPasswordException, ProblemReadingDatabaseFile {
+        long fileLength = channel.size();
+        ByteBuffer lengthBuffer = readFully(channel, channel.position(), 4);
+        int tableLength = lengthBuffer.getInt(0);
+        long tablePos = channel.position() + 4;
+        if (tableLength < TAG_LENGTH || tableLength > fileLength - tablePos) {
+            throw new ProblemReadingDatabaseFile("The segment table is corrupt");
+        }
+
+        // A table that fails to decrypt means the password is wrong
+        byte[] tableBlob = readFully(channel, tablePos, tableLength).array();
+        byte[] table = encryptionService.decrypt(tableBlob, fileHeader);
+
+        BinaryPayloadReader reader = new BinaryPayloadReader(table, 0, table.length);
+        Revision revision = reader.readRevision();
+        DatabaseOptions dbOptions = reader.readDatabaseOptions();
+        int segmentCount = reader.readVarInt();
+        if (segmentCount < 1 || segmentCount > MAX_SEGMENTS) {
+            throw new ProblemReadingDatabaseFile("Invalid number of segments: " + segmentCount);
+        }
+
+        SegmentedContainer container = new SegmentedContainer(segmentCount);
+        container.revision = revision;
+        container.dbOptions = dbOptions;
+        container.tableTag = Arrays.copyOfRange(tableBlob, tableBlob.length - TAG_LENGTH, tableBlob.length);
+
+        long offset = tablePos + tableLength;
+        for (int i = 0; i < segmentCount; i++) {
+            container.segmentOffsets[i] = offset;
+            container.segmentLengths[i] = reader.readVarInt();
+            container.segmentTags[i] = reader.readBytes();
+            if (container.segmentTags[i].length != TAG_LENGTH) {
+                throw new ProblemReadingDatabaseFile("The segment table is corrupt");
+            }
+            offset += container.segmentLengths[i];
+        }
+        if (offset != fileLength) {
+            throw new ProblemReadingDatabaseFile("The database file is the wrong length for its segments");
+        }
+
+        // The segments take up the rest of the file, so read them in one go
+        // and decrypt each where it lies in the buffer
+        long segmentsPos = tablePos + tableLength;
+        if (fileLength - segmentsPos > Integer.MAX_VALUE) {
+            throw new ProblemReadingDatabaseFile("The database file is too large");
+        }
+        byte[] segmentBytes = readFully(channel, segmentsPos, (int) (fileLength - segmentsPos)).array();
+        for (int i = 0; i < segmentCount; i++) {
+            int blobPos = (int) (container.segmentOffsets[i] - segmentsPos);
+            int blobLength = container.segmentLengths[i];
+            if (blobLength < TAG_LENGTH
+                    || !tagMatches(container.segmentTags[i], segmentBytes, blobPos + blobLength - TAG_LENGTH)) {
+                throw new ProblemReadingDatabaseFile("Segment " + i + " doesn't match the segment table");
+            }
+            byte[] segment = encryptionService.decrypt(segmentBytes, blobPos, blobLength, segmentAssociatedData(i));
+
+            BinaryPayloadReader segmentReader = new BinaryPayloadReader(segment, 0, segment.length);
+            int accountCount = segmentReader.readVarInt();
+            for (int j = 0; j < accountCount; j++) {
+                AccountInformation ai = segmentReader.readLazyAccount();
+                accounts.put(ai.getAccountName(), ai);
+            }
+        }
+
+        return container;
+    }
+
+
+    private static boolean tagMatches(byte[] tag, byte[] buffer, int position) {
+        for (int i = 0; i < TAG_LENGTH; i++) {
+            if (buffer[position + i] != tag[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Write the complete database to the given channel. Dirty segments are
+     * encrypted from the accounts, the rest are copied from the existing file.
+     * @param out Channel for the new database file, positioned just after the file header
+     * @param existing Channel for the current database file
+     * @param fileHeader The UPM_MODERN FORMAT_VERSION SALT bytes the table is bound to
+     */
+    void write(FileChannel out, FileChannel existing, byte[] fileHeader,
+            ModernEncryptionService encryptionService, Revision revision, DatabaseOptions dbOptions,
+            Map<String, AccountInformation> accounts) throws IOException, IllegalBlockSizeException,
+            BadPaddingException, NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException,
+            InvalidAlgorithmParameterException, NoSuchProviderException {
+        // Gather up the accounts belonging to the dirty segments
+        List<List<AccountInformation>> buckets = new ArrayList<List<AccountInformation>>(segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            buckets.add(dirtySegments.get(i) ? new ArrayList<AccountInformation>() : null);
+        }
+        for (AccountInformation ai : accounts.values()) {
+            List<AccountInformation> bucket = buckets.get(segmentFor(ai.getAccountName()));
+            if (bucket != null) {
+                bucket.add(ai);
+            }
+        }
+
+        byte[][] blobs = new byte[segmentCount][];
+        for (int i = dirtySegments.nextSetBit(0); i >= 0; i = dirtySegments.nextSetBit(i + 1)) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            BinaryPayloadWriter writer = new BinaryPayloadWriter(os);
+            writer.writeVarInt(buckets.get(i).size());
+            for (AccountInformation ai : buckets.get(i)) {
+                writer.writeAccount(ai);
+            }
+            blobs[i] = encryptionService.encrypt(os.toByteArray(), segmentAssociatedData(i));
+        }
+
+        // Build and encrypt the table now all the segment tags are known
+        ByteArrayOutputStream tableStream = new ByteArrayOutputStream();
+        BinaryPayloadWriter tableWriter = new BinaryPayloadWriter(tableStream);
+        tableWriter.writeVarInt(revision.getRevision());
+        tableWriter.writeString(dbOptions.getRemoteLocation());
+        tableWriter.writeString(dbOptions.getAuthDBEntry());
+        tableWriter.writeVarInt(segmentCount);
+        int[] newLengths = new int[segmentCount];
+        byte[][] newTags = new byte[segmentCount][];
+        for (int i = 0; i < segmentCount; i++) {
+            if (blobs[i] != null) {
+                newLengths[i] = blobs[i].length;
+                newTags[i] = Arrays.copyOfRange(blobs[i], blobs[i].length - TAG_LENGTH, blobs[i].length);
+            } else {
+                newLengths[i] = segmentLengths[i];
+                newTags[i] = segmentTags[i];
+            }
+            tableWriter.writeVarInt(newLengths[i]);
+            tableWriter.writeBytes(newTags[i]);
+        }
+        byte[] tableBlob = encryptionService.encrypt(tableStream.toByteArray(), fileHeader);
+
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        lengthBuffer.putInt(0, tableBlob.length);
+        writeFully(out, lengthBuffer);
+        writeFully(out, ByteBuffer.wrap(tableBlob));
+
+        long[] newOffsets = new long[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            newOffsets[i] = out.position();
+            if (blobs[i] != null) {
+                writeFully(out, ByteBuffer.wrap(blobs[i]));
+            } else {
+                transferFully(existing, segmentOffsets[i], segmentLengths[i], out);
+            }
+        }
+
+        // The new file now describes the state of this container
+        System.arraycopy(newOffsets, 0, segmentOffsets, 0, segmentCount);
+        System.arraycopy(newLengths, 0, segmentLengths, 0, segmentCount);
+        System.arraycopy(newTags, 0, segmentTags, 0, segmentCount);
+        tableTag = Arrays.copyOfRange(tableBlob, tableBlob.length - TAG_LENGTH, tableBlob.length);
+        dirtySegments.clear();
+    }
+
+
+    /**
+     * @return The table's authentication tag, which changes on every save
+     */
+    byte[] getTableTag() {
+        return tableTag;
+    }
+
+
+    Revision getRevision() {
+        return revision;
+    }
+
+
+    DatabaseOptions getDbOptions() {
+        return dbOptions;
+    }
+
+
+    private static byte[] segmentAssociatedData(int index) {
+        return ByteBuffer.allocate(SEGMENT_HEADER.length + 4)
+                .put(SEGMENT_HEADER)
+                .putInt(index)
+                .array();
+    }
+
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return buffer;
+    }
+
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+
+    private static void transferFully(FileChannel source, long position, long count, FileChannel target) throws IOException {
+        while (count > 0) {
+            long transferred = source.transferTo(position, count, target);
+            if (transferred <= 0) {
+                throw new EOFException();
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+}
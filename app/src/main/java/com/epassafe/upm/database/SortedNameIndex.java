@@ -0,0 +1,186 @@
+/*
+ * Epassafe Password Manager
+ * Copyright (c) 2010-2026
+ *
+ * This file is part of Epassafe Password Manager.
+ *
+ * Epassafe Password Manager is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Epassafe Password Manager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ */
+package com.epassafe.upm.database;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The account names kept sorted ignoring case as accounts are added, renamed
+ * and deleted, so the account list doesn't have to copy and sort every name
+ * each time it's shown. Names that differ only in case are sorted on case.
+ *
+ * The names are held in a sorted array. Each edit finds its place with a
+ * binary search and shifts the names after it along by one, a single
+ * memory move. getNames() is a read-only view onto the array, so a list
+ * showing it only needs telling that it has changed after an edit.
+ */
+public final class SortedNameIndex {
+
+    static final Comparator<String> ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            int order = String.CASE_INSENSITIVE_ORDER.compare(a, b);
+            return order != 0 ? order : a.compareTo(b);
+        }
+    };
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private String[] names = new String[INITIAL_CAPACITY];
+    private int size;
+
+    private final List<String> view = new Names();
+
+
+    private final class Names extends AbstractList<String> implements RandomAccess {
+
+        @Override
+        public String get(int index) {
+            synchronized (SortedNameIndex.this) {
+                if (index < 0 || index >= size) {
+                    throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+                }
+                return names[index];
+            }
+        }
+
+        @Override
+        public int size() {
+            synchronized (SortedNameIndex.this) {
+                return size;
+            }
+        }
+    }
+
+
+    SortedNameIndex() {
+    }
+
+
+    /**
+     * Replace all the names, sorting them in one go.
+     */
+    synchronized void reset(Collection<String> accountNames) {
+        names = accountNames.toArray(new String[Math.max(INITIAL_CAPACITY, accountNames.size())]);
+        size = accountNames.size();
+        Arrays.sort(names, 0, size, ORDER);
+    }
+
+
+    synchronized void add(String name) {
+        int position = Arrays.binarySearch(names, 0, size, name, ORDER);
+        if (position >= 0) {
+            return;
+        }
+        position = -position - 1;
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+        }
+        System.arraycopy(names, position, names, position + 1, size - position);
+        names[position] = name;
+        size++;
+    }
+
+
+    synchronized void remove(String name) {
+        int position = Arrays.binarySearch(names, 0, size, name, ORDER);
+        if (position < 0) {
+            return;
+        }
+        System.arraycopy(names, position + 1, names, position, size - position - 1);
+        names[--size] = null;
+    }
+
+
+    /**
+     * Move an account from its old name to its new one, which may be the same.
+     */
+    synchronized void rename(String oldName, String newName) {
+        if (oldName != null && !oldName.equals(newName)) {
+            remove(oldName);
+        }
+        add(newName);
+    }
+
+
+    /**
+     * @return A read-only view of the names in order, which follows any
+     *         edits made later
+     */
+    public List<String> getNames() {
+        return view;
+    }
+
+
+    /**
+     * @return A copy of the names as they are now
+     */
+    public synchronized String[] toArray() {
+        return Arrays.copyOf(names, size);
+    }
+
+
+    public synchronized int size() {
+        return size;
+    }
+
+
+    /**
+     * @return Where the names starting with the prefix, ignoring case, would
+     *         be found. For a letter this is where the letter's section of
+     *         the list starts.
+     */
+    public synchronized int positionFor(String prefix) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (String.CASE_INSENSITIVE_ORDER.compare(names[middle], prefix) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+
+    /**
+     * @return The start and end, exclusive, of the names starting with the
+     *         prefix, ignoring case
+     */
+    public synchronized int[] prefixRange(String prefix) {
+        int start = positionFor(prefix);
+        int low = start;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (names[middle].regionMatches(true, 0, prefix, 0, prefix.length())) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return new int[] { start, low };
+    }
+
+}
@@ -77,6 +77,21 @@ public class Util {
         return bytes;
     }
 
+    /**
+     * Read from the stream until the buffer is full or the end of the
+     * stream is reached.
+     * @return The number of bytes actually read
+     */
+    public static int readFully(InputStream is, byte[] buffer) throws IOException {
+        int offset = 0;
+        int numRead;
+        while (offset < buffer.length
+               && (numRead = is.read(buffer, offset, buffer.length - offset)) >= 0) {
+            offset += numRead;
+        }
+        return offset;
+    }
+
     public static Charset defaultCharset() {
         return Charset.forName(
                 new OutputStreamWriter(
@@ -0,0 +1,36 @@
+/*
+ * Unit tests for AeadBenchmark.
+ * These run on the JVM and validate:
+ * - AES-GCM is measured at a positive throughput
+ * - The measurements are made once and cached
+ * - ChaCha20 is only preferred when it's clearly quicker
+ */
+package com.epassafe.upm.crypto;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AeadBenchmarkTest {
+
+    @Test
+    public void testMeasure_aesGcm() {
+        assertTrue(AeadBenchmark.measure(ModernEncryptionService.AES_GCM) > 0);
+        assertTrue(AeadBenchmark.measure("Unknown/Cipher") == 0);
+    }
+
+    @Test
+    public void testGet_cached() {
+        AeadBenchmark.Result result = AeadBenchmark.get();
+        assertSame(result, AeadBenchmark.get());
+        assertTrue(result.getAesGcmThroughput() > 0);
+    }
+
+    @Test
+    public void testPreferChaCha20() {
+        assertFalse(new AeadBenchmark.Result(100e6, 0).preferChaCha20());
+        assertFalse(new AeadBenchmark.Result(100e6, 110e6).preferChaCha20());
+        assertTrue(new AeadBenchmark.Result(100e6, 300e6).preferChaCha20());
+        assertTrue(new AeadBenchmark.Result(0, 50e6).preferChaCha20());
+    }
+}
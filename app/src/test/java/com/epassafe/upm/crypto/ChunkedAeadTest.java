@@ -0,0 +1,179 @@
+/*
+ * Unit tests for the chunked encryption used by FORMAT_VERSION_CHUNKED.
+ * These run on the JVM and validate:
+ * - Round trips for empty, single chunk, chunk boundary and multi chunk data
+ * - Truncating the stream at a chunk boundary is detected
+ * - Tampering with or reordering chunks is detected
+ * - The chunks only decrypt with the header they were bound to
+ */
+package com.epassafe.upm.crypto;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+public class ChunkedAeadTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    // Algorithm identifier and nonce prefix
+    private static final int PREFIX_LENGTH = 1 + ChunkedAead.NONCE_PREFIX_LENGTH;
+    private static final int ENCRYPTED_CHUNK_SIZE = ChunkedAead.CHUNK_SIZE + ModernEncryptionService.GCM_TAG_LENGTH;
+    // Stands in for the file header the chunks are bound to
+    private static final byte[] HEADER = "UPM_MODERN\u0004header".getBytes(StandardCharsets.UTF_8);
+
+    private ModernEncryptionService service;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        service = new ModernEncryptionService("MyTestPassword123!".toCharArray());
+        file = new File(tempFolder.getRoot(), "chunked.bin");
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private void encryptToFile(byte[] plaintext) throws Exception {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            OutputStream os = service.encryptChunked(fos.getChannel(), HEADER);
+            // Write in uneven pieces to cross chunk boundaries mid write
+            int pos = 0;
+            while (pos < plaintext.length) {
+                int n = Math.min(plaintext.length - pos, 10007);
+                os.write(plaintext, pos, n);
+                pos += n;
+            }
+            os.close();
+        } finally {
+            fos.close();
+        }
+    }
+
+    private byte[] decryptFile() throws Exception {
+        return decryptFile(HEADER);
+    }
+
+    private byte[] decryptFile(byte[] header) throws Exception {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            ByteBuffer decrypted = service.decryptChunked(fis.getChannel(), 0, file.length(), header);
+            return Arrays.copyOfRange(decrypted.array(), 0, decrypted.limit());
+        } finally {
+            fis.close();
+        }
+    }
+
+    private void assertRoundTrip(int length) throws Exception {
+        byte[] plaintext = randomBytes(length);
+        encryptToFile(plaintext);
+        int chunks = Math.max(1, (length + ChunkedAead.CHUNK_SIZE - 1) / ChunkedAead.CHUNK_SIZE);
+        assertEquals(PREFIX_LENGTH + length + chunks * ModernEncryptionService.GCM_TAG_LENGTH, file.length());
+        assertArrayEquals(plaintext, decryptFile());
+    }
+
+    private void assertDecryptFails() throws Exception {
+        try {
+            decryptFile();
+            fail("Expected InvalidPasswordException");
+        } catch (InvalidPasswordException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRoundTrip_empty() throws Exception {
+        assertRoundTrip(0);
+    }
+
+    @Test
+    public void testRoundTrip_singleChunk() throws Exception {
+        assertRoundTrip(1000);
+    }
+
+    @Test
+    public void testRoundTrip_exactChunkBoundary() throws Exception {
+        assertRoundTrip(ChunkedAead.CHUNK_SIZE);
+        assertRoundTrip(ChunkedAead.CHUNK_SIZE * 2);
+    }
+
+    @Test
+    public void testRoundTrip_manyChunksDecryptedInParallel() throws Exception {
+        assertRoundTrip(ChunkedAead.CHUNK_SIZE * 37 + 123);
+    }
+
+    @Test
+    public void testTruncatedAtChunkBoundary_fails() throws Exception {
+        encryptToFile(randomBytes(ChunkedAead.CHUNK_SIZE * 3 + 10));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(PREFIX_LENGTH + ENCRYPTED_CHUNK_SIZE * 2);
+        raf.close();
+        assertDecryptFails();
+    }
+
+    @Test
+    public void testTamperedChunk_fails() throws Exception {
+        encryptToFile(randomBytes(ChunkedAead.CHUNK_SIZE * 9));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(PREFIX_LENGTH + ENCRYPTED_CHUNK_SIZE * 5 + 100);
+        int b = raf.read();
+        raf.seek(PREFIX_LENGTH + ENCRYPTED_CHUNK_SIZE * 5 + 100);
+        raf.write(b ^ 0x01);
+        raf.close();
+        assertDecryptFails();
+    }
+
+    @Test
+    public void testSwappedChunks_fail() throws Exception {
+        encryptToFile(randomBytes(ChunkedAead.CHUNK_SIZE * 3));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        byte[] first = new byte[ENCRYPTED_CHUNK_SIZE];
+        byte[] second = new byte[ENCRYPTED_CHUNK_SIZE];
+        raf.seek(PREFIX_LENGTH);
+        raf.readFully(first);
+        raf.readFully(second);
+        raf.seek(PREFIX_LENGTH);
+        raf.write(second);
+        raf.write(first);
+        raf.close();
+        assertDecryptFails();
+    }
+
+    @Test
+    public void testAlteredHeader_fails() throws Exception {
+        encryptToFile(randomBytes(1000));
+        byte[] header = HEADER.clone();
+        header[10] = 3;
+        try {
+            decryptFile(header);
+            fail("Expected InvalidPasswordException");
+        } catch (InvalidPasswordException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testWrongKey_fails() throws Exception {
+        encryptToFile(randomBytes(ChunkedAead.CHUNK_SIZE + 1));
+        service = new ModernEncryptionService("WrongPassword".toCharArray());
+        assertDecryptFails();
+    }
+}
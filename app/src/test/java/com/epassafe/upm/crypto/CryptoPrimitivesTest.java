@@ -0,0 +1,92 @@
+/*
+ * Unit tests for CryptoPrimitives and the offset based AEAD calls.
+ * These run on the JVM and validate:
+ * - Ciphers and MACs are cached per thread, not shared between threads
+ * - A blob encrypted from part of an array decrypts in place at any offset
+ * - Reusing the cached cipher after a failed decryption still works
+ * - Key wrapping round trips through the cached cipher
+ */
+package com.epassafe.upm.crypto;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+
+public class CryptoPrimitivesTest {
+
+    private static final byte[] AAD = "associated".getBytes();
+
+    @Test
+    public void testCipher_cachedPerThread() throws Exception {
+        final Cipher mine = CryptoPrimitives.aesGcm();
+        assertSame(mine, CryptoPrimitives.cipher(ModernEncryptionService.AES_GCM));
+        assertSame(CryptoPrimitives.hmacSha256(), CryptoPrimitives.hmacSha256());
+
+        final Cipher[] theirs = new Cipher[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    theirs[0] = CryptoPrimitives.aesGcm();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+        assertNotNull(theirs[0]);
+        assertNotSame(mine, theirs[0]);
+    }
+
+    @Test
+    public void testDecrypt_atOffset() throws Exception {
+        ModernEncryptionService service = new ModernEncryptionService(KeySlots.generateDataKey());
+        byte[] source = new byte[100];
+        for (int i = 0; i < source.length; i++) {
+            source[i] = (byte) i;
+        }
+        byte[] blob = service.encrypt(source, 10, 50, AAD);
+        assertEquals(1 + ModernEncryptionService.GCM_IV_LENGTH + 50 + ModernEncryptionService.GCM_TAG_LENGTH, blob.length);
+
+        byte[] buffer = new byte[blob.length + 20];
+        System.arraycopy(blob, 0, buffer, 7, blob.length);
+        byte[] plaintext = service.decrypt(buffer, 7, blob.length, AAD);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(source, 10, 60), plaintext));
+        assertTrue(Arrays.equals(plaintext, service.decrypt(blob, AAD)));
+    }
+
+    @Test
+    public void testDecrypt_afterFailure() throws Exception {
+        ModernEncryptionService service = new ModernEncryptionService(KeySlots.generateDataKey());
+        byte[] blob = service.encrypt("secret".getBytes(), AAD);
+        byte[] tampered = blob.clone();
+        tampered[tampered.length - 1] ^= 1;
+        try {
+            service.decrypt(tampered, AAD);
+            fail("Expected InvalidPasswordException");
+        } catch (InvalidPasswordException e) {
+            // expected
+        }
+        try {
+            service.decrypt(Arrays.copyOf(blob, 5), AAD);
+            fail("Expected InvalidPasswordException");
+        } catch (InvalidPasswordException e) {
+            // expected
+        }
+        assertEquals("secret", new String(service.decrypt(blob, AAD)));
+    }
+
+    @Test
+    public void testWrap_roundTrip() throws Exception {
+        byte[] dataKey = KeySlots.generateDataKey();
+        byte[] response = CryptoPrimitives.randomBytes(20);
+        byte[] blob = YubiKeyManager.wrapDbKeyWithYubiKey(dataKey, response);
+        assertTrue(Arrays.equals(dataKey, YubiKeyManager.unwrapDbKeyWithYubiKey(blob, response)));
+        assertNull(YubiKeyManager.unwrapDbKeyWithYubiKey(blob, CryptoPrimitives.randomBytes(20)));
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Unit tests for opening pre 1.3 databases with DESDecryptionService.
+ * These run on the JVM and validate:
+ * - The cipher is told apart from the padding of the last two blocks
+ * - Both AES and DES ciphertexts decrypt in full with the detected cipher
+ * - A wrong password or ragged ciphertext fails without a full decryption
+ */
+package com.epassafe.upm.crypto;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.PBEParameterSpec;
+
+public class DESDecryptionServiceTest {
+
+    private static final byte[] SALT = { 1, 2, 3, 4, 5, 6, 7, 8 };
+
+    private static byte[] encrypt(String algorithm, SecretKey secretKey, byte[] plaintext) throws Exception {
+        Cipher cipher = Cipher.getInstance(algorithm);
+        cipher.init(Cipher.ENCRYPT_MODE, secretKey, new PBEParameterSpec(SALT, 20));
+        return cipher.doFinal(plaintext);
+    }
+
+    private static byte[] plaintext(int length) {
+        byte[] plaintext = new byte[length];
+        for (int i = 0; i < length; i++) {
+            plaintext[i] = (byte) (i * 31);
+        }
+        return plaintext;
+    }
+
+    @Test
+    public void testDetect_aesAndDes() throws Exception {
+        SecretKey secretKey = EncryptionService.createSecretKey("password".toCharArray());
+        for (int length : new int[] { 0, 5, 16, 1000 }) {
+            byte[] plaintext = plaintext(length);
+
+            byte[] aes = encrypt(DESDecryptionService.PBEWithSHA256And256BitAES, secretKey, plaintext);
+            assertEquals(DESDecryptionService.PBEWithSHA256And256BitAES,
+                    DESDecryptionService.detectAlgorithm(secretKey, SALT, aes));
+            assertTrue(Arrays.equals(plaintext, DESDecryptionService.decryptDetectingAlgorithm(secretKey, SALT, aes)));
+
+            byte[] des = encrypt(DESDecryptionService.PBEWithMD5AndDES, secretKey, plaintext);
+            if (des.length % 16 != 0) {
+                assertEquals(DESDecryptionService.PBEWithMD5AndDES,
+                        DESDecryptionService.detectAlgorithm(secretKey, SALT, des));
+            }
+            assertTrue(Arrays.equals(plaintext, DESDecryptionService.decryptDetectingAlgorithm(secretKey, SALT, des)));
+        }
+    }
+
+    @Test
+    public void testWrongPassword() throws Exception {
+        SecretKey secretKey = EncryptionService.createSecretKey("password".toCharArray());
+        SecretKey wrongKey = EncryptionService.createSecretKey("wrong".toCharArray());
+        byte[] ciphertext = encrypt(DESDecryptionService.PBEWithSHA256And256BitAES, secretKey, plaintext(1000));
+        try {
+            byte[] decrypted = DESDecryptionService.decryptDetectingAlgorithm(wrongKey, SALT, ciphertext);
+            // Random padding can pass now and then but never decrypts correctly
+            assertFalse(Arrays.equals(plaintext(1000), decrypted));
+        } catch (InvalidPasswordException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IllegalBlockSizeException.class)
+    public void testRaggedCiphertext() throws Exception {
+        SecretKey secretKey = EncryptionService.createSecretKey("password".toCharArray());
+        DESDecryptionService.decryptDetectingAlgorithm(secretKey, SALT, new byte[13]);
+    }
+}
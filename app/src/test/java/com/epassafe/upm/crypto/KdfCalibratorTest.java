@@ -0,0 +1,55 @@
+/*
+ * Unit tests for KdfCalibrator.
+ * These run on the JVM and validate:
+ * - A quick device spends the latency budget on extra passes
+ * - A slow device gives up memory before going below the floor's passes
+ * - Nothing is ever chosen below the security floor
+ * - Calibrating on this machine gives usable parameters
+ */
+package com.epassafe.upm.crypto;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KdfCalibratorTest {
+
+    private static final int FLOOR_MEMORY_KIB = Argon2KeyDerivation.DEFAULT_MEMORY_KIB;
+    private static final int FLOOR_ITERATIONS = Argon2KeyDerivation.DEFAULT_ITERATIONS;
+
+    @Test
+    public void testQuickDevice_morePasses() {
+        Argon2KeyDerivation kdf = KdfCalibrator.choose(65536, 50, 1000);
+        assertEquals(65536, kdf.getMemoryKib());
+        assertEquals(20, kdf.getIterations());
+    }
+
+    @Test
+    public void testSlowDevice_lessMemory() {
+        // 2 passes over 32 MiB would take 1.6s, so the memory is cut to fit the floor's passes
+        Argon2KeyDerivation kdf = KdfCalibrator.choose(32768, 800, 1000);
+        assertEquals(FLOOR_ITERATIONS, kdf.getIterations());
+        assertTrue(kdf.getMemoryKib() < 32768);
+        assertTrue(kdf.getMemoryKib() >= FLOOR_MEMORY_KIB);
+    }
+
+    @Test
+    public void testVerySlowDevice_keepsFloor() {
+        Argon2KeyDerivation kdf = KdfCalibrator.choose(32768, 5000, 1000);
+        assertEquals(FLOOR_MEMORY_KIB, kdf.getMemoryKib());
+        assertEquals(FLOOR_ITERATIONS, kdf.getIterations());
+
+        kdf = KdfCalibrator.choose(FLOOR_MEMORY_KIB, 0, 0);
+        assertEquals(FLOOR_MEMORY_KIB, kdf.getMemoryKib());
+        assertEquals(FLOOR_ITERATIONS, kdf.getIterations());
+    }
+
+    @Test
+    public void testCalibrate_thisMachine() throws Exception {
+        Argon2KeyDerivation kdf = KdfCalibrator.calibrate(200);
+        assertTrue(kdf.getMemoryKib() >= FLOOR_MEMORY_KIB);
+        assertTrue(kdf.getMemoryKib() <= KdfCalibrator.MAX_MEMORY_KIB);
+        assertTrue(kdf.getIterations() >= FLOOR_ITERATIONS);
+        assertEquals(32, kdf.deriveKey("password".toCharArray(), new byte[16], 32).length);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Unit tests for the password based key derivation functions.
+ * These run on the JVM and validate:
+ * - Argon2id matches the reference implementation's test vector
+ * - PBKDF2 matches the platform implementation
+ * - Encoded parameters read back, and out of range ones are rejected
+ * - Key slots record the KDF they were wrapped with and unwrap with it,
+ *   recovery code slots included
+ */
+package com.epassafe.upm.crypto;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+public class KeyDerivationTest {
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testArgon2id_referenceVector() throws Exception {
+        // From the Argon2 reference implementation's tests: t=2, m=2^16 KiB, p=1
+        Argon2KeyDerivation kdf = new Argon2KeyDerivation(65536, 2, 1);
+        byte[] key = kdf.deriveKey("password".toCharArray(), "somesalt".getBytes(StandardCharsets.US_ASCII), 32);
+        assertEquals("09316115d5cf24ed5a15a31a3ba326e5cf32edc24702987c02b6566f61913cf7", hex(key));
+    }
+
+    @Test
+    public void testPbkdf2_matchesPlatform() throws Exception {
+        byte[] salt = new byte[16];
+        char[] password = "MyTestPassword123!".toCharArray();
+        byte[] expected = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512")
+                .generateSecret(new PBEKeySpec(password, salt, 1000, 256)).getEncoded();
+        assertArrayEquals(expected, new Pbkdf2KeyDerivation(1000).deriveKey(password, salt, 32));
+        assertEquals("MyTestPassword123!", new String(password));
+    }
+
+    @Test
+    public void testEncode_readsBack() {
+        Argon2KeyDerivation argon2 = (Argon2KeyDerivation) KeyDerivation.read(
+                ByteBuffer.wrap(new Argon2KeyDerivation(32768, 3, 4).encode()));
+        assertEquals(32768, argon2.getMemoryKib());
+        assertEquals(3, argon2.getIterations());
+        assertEquals(4, argon2.getParallelism());
+
+        Pbkdf2KeyDerivation pbkdf2 = (Pbkdf2KeyDerivation) KeyDerivation.read(
+                ByteBuffer.wrap(Pbkdf2KeyDerivation.DEFAULT.encode()));
+        assertEquals(Pbkdf2KeyDerivation.DEFAULT_ITERATIONS, pbkdf2.getIterations());
+    }
+
+    @Test
+    public void testRead_rejectsBadParameters() {
+        byte[][] encodings = {
+                ByteBuffer.allocate(10).put(KeyDerivation.TYPE_ARGON2ID).putInt(Integer.MAX_VALUE).putInt(2).put((byte) 1).array(),
+                ByteBuffer.allocate(10).put(KeyDerivation.TYPE_ARGON2ID).putInt(65536).putInt(0).put((byte) 1).array(),
+                // 1 GiB passed the old range check and ran the app out of memory
+                ByteBuffer.allocate(10).put(KeyDerivation.TYPE_ARGON2ID).putInt(1024 * 1024).putInt(2).put((byte) 1).array(),
+                ByteBuffer.allocate(10).put(KeyDerivation.TYPE_ARGON2ID).putInt(Argon2KeyDerivation.MAX_MEMORY_KIB + 1).putInt(2).put((byte) 1).array(),
+                ByteBuffer.allocate(5).put(KeyDerivation.TYPE_PBKDF2).putInt(-1).array(),
+                new byte[] { 9, 0, 0, 0, 0 },
+        };
+        for (byte[] encoding : encodings) {
+            try {
+                KeyDerivation.read(ByteBuffer.wrap(encoding));
+                fail("Expected IllegalArgumentException");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testKeySlots_recordKeyDerivation() throws Exception {
+        byte[] dataKey = KeySlots.generateDataKey();
+        char[] password = "MyTestPassword123!".toCharArray();
+
+        KeySlots keySlots = new KeySlots();
+        keySlots.setPassword(dataKey, password);
+        assertEquals(KeyDerivation.TYPE_ARGON2ID, keySlots.getPasswordKeyDerivation().getType());
+
+        keySlots.setPassword(dataKey, password, new Pbkdf2KeyDerivation(1000));
+        KeySlots read = KeySlots.read(keySlots.toArea());
+        assertEquals(1000, ((Pbkdf2KeyDerivation) read.getPasswordKeyDerivation()).getIterations());
+        assertArrayEquals(dataKey, read.unwrapWithPassword(password));
+        assertNull(read.unwrapWithPassword("WrongPassword".toCharArray()));
+    }
+
+    @Test
+    public void testKeySlots_recoveryCodeUsesGivenKeyDerivation() throws Exception {
+        byte[] dataKey = KeySlots.generateDataKey();
+        String recoveryCode = "0123-4567-89AB-CDEF-0123-4567-89AB-CDEF";
+
+        KeySlots keySlots = new KeySlots();
+        keySlots.setRecoveryCode(dataKey, recoveryCode, new Pbkdf2KeyDerivation(1000));
+        // SLOT_COUNT, then the recovery code slot's TYPE BLOB_LENGTH BLOB with the KDF leading the blob
+        ByteBuffer area = ByteBuffer.wrap(keySlots.toArea());
+        area.get();
+        while (area.get() != KeySlots.TYPE_RECOVERY_CODE) {
+            area.position(area.position() + (area.getShort() & 0xFFFF));
+        }
+        area.getShort();
+        assertEquals(1000, ((Pbkdf2KeyDerivation) KeyDerivation.read(area)).getIterations());
+        assertArrayEquals(dataKey, KeySlots.read(keySlots.toArea()).unwrapWithRecoveryCode(recoveryCode));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Unit tests for the snapshot isolation of PasswordDatabase accounts.
+ * These run on the JVM and validate:
+ * - Snapshots don't change when the database is edited afterwards
+ * - Changes made while a save is running are kept for the next save
+ * - Saving in the background while accounts are edited leaves a consistent database
+ */
+package com.epassafe.upm.database;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class AccountsSnapshotTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static final String TEST_PASSWORD = "MyTestPassword123!";
+
+    private File dbFile;
+    private PasswordDatabase db;
+
+    @Before
+    public void setUp() throws Exception {
+        dbFile = new File(tempFolder.getRoot(), "snapshot.upm");
+        db = new PasswordDatabase(dbFile, TEST_PASSWORD.toCharArray());
+        for (int i = 0; i < 10; i++) {
+            db.addAccount(new AccountInformation("Account " + i, "user" + i, "pw" + i, "", ""));
+        }
+        db.save();
+    }
+
+    @Test
+    public void testSnapshot_unaffectedByLaterEdits() throws Exception {
+        AccountsSnapshot before = db.getSnapshot();
+        db.addAccount(new AccountInformation("New", "u", "p", "", ""));
+        db.deleteAccount("Account 3");
+
+        assertEquals(10, before.size());
+        assertNull(before.getAccount("New"));
+        assertNotNull(before.getAccount("Account 3"));
+        assertTrue(db.getSnapshot().getVersion() > before.getVersion());
+        assertEquals(10, db.getAccounts().size());
+    }
+
+    @Test
+    public void testReplaceAccount_renamesInOneStep() throws Exception {
+        AccountInformation renamed = new AccountInformation("Renamed", "user1", "pw1", "", "");
+        db.replaceAccount("Account 1", renamed);
+        assertNull(db.getAccount("Account 1"));
+        assertSame(renamed, db.getAccount("Renamed"));
+        db.save();
+
+        PasswordDatabase reloaded = new PasswordDatabase(dbFile, TEST_PASSWORD.toCharArray());
+        assertNull(reloaded.getAccount("Account 1"));
+        assertEquals("pw1", reloaded.getAccount("Renamed").getPassword());
+    }
+
+    @Test
+    public void testChangesDuringSave_keptForNextSave() throws Exception {
+        AccountsSnapshot saving = db.getSnapshot();
+        db.addAccount(new AccountInformation("During", "u", "p", "", ""));
+
+        // Saving the earlier snapshot must not mark the later change as saved
+        AccountsSnapshot afterSave = db.getSnapshot().withChangesSaved(saving);
+        assertTrue(afterSave.getChanges().containsKey("During"));
+        assertTrue(afterSave.hasChanges());
+    }
+
+    @Test
+    public void testBackgroundSavesWhileEditing_consistent() throws Exception {
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        Thread saver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 20; i++) {
+                        db.save();
+                    }
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            }
+        });
+        saver.start();
+        for (int i = 0; i < 200; i++) {
+            db.addAccount(new AccountInformation("Edit " + i, "u" + i, "p" + i, "", ""));
+            if (i % 3 == 0) {
+                db.deleteAccount("Edit " + (i / 2));
+            }
+        }
+        saver.join();
+        assertNull(failure.get());
+        db.save();
+
+        PasswordDatabase reloaded = new PasswordDatabase(dbFile, TEST_PASSWORD.toCharArray());
+        assertEquals(db.getAccountNames(), reloaded.getAccountNames());
+        assertEquals("p199", reloaded.getAccount("Edit 199").getPassword());
+    }
+}
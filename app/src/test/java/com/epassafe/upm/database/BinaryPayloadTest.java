@@ -0,0 +1,204 @@
+/*
+ * Unit tests for the binary database payload encoding.
+ * These run on the JVM and validate:
+ * - Varint encoding boundaries and malformed input handling
+ * - Full payload round-trips including fields too long for FlatPack
+ * - Truncated payloads are rejected instead of misread
+ * - Lazily decoded accounts and copying untouched records through on save
+ * - The trailing record index, parallel parsing and payloads without an index
+ */
+package com.epassafe.upm.database;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class BinaryPayloadTest {
+
+    private static byte[] varInt(int value) throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new BinaryPayloadWriter(os).writeVarInt(value);
+        return os.toByteArray();
+    }
+
+    private static BinaryPayloadReader reader(byte[] bytes) {
+        return new BinaryPayloadReader(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void testVarInt_roundTripBoundaries() throws Exception {
+        int[] values = { 0, 1, 127, 128, 16383, 16384, 2097151, 2097152, Integer.MAX_VALUE };
+        for (int value : values) {
+            byte[] encoded = varInt(value);
+            BinaryPayloadReader reader = reader(encoded);
+            assertEquals(value, reader.readVarInt());
+            assertEquals("Whole varint must be consumed", 0, reader.remaining());
+        }
+        assertEquals(1, varInt(127).length);
+        assertEquals(2, varInt(128).length);
+        assertEquals(5, varInt(Integer.MAX_VALUE).length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testVarInt_negativeRejected() throws Exception {
+        varInt(-1);
+    }
+
+    @Test(expected = ProblemReadingDatabaseFile.class)
+    public void testVarInt_overflowRejected() throws Exception {
+        reader(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F }).readVarInt();
+    }
+
+    @Test(expected = ProblemReadingDatabaseFile.class)
+    public void testVarInt_truncatedRejected() throws Exception {
+        reader(new byte[] { (byte) 0x80 }).readVarInt();
+    }
+
+    @Test
+    public void testPayload_roundTrip() throws Exception {
+        Revision revision = new Revision();
+        revision.setRevision(300);
+        DatabaseOptions options = new DatabaseOptions();
+        options.setRemoteLocation("https://example.com/db");
+        options.setAuthDBEntry("auth");
+
+        char[] longNotes = new char[20000];
+        Arrays.fill(longNotes, 'ü');
+        List<AccountInformation> accounts = new ArrayList<AccountInformation>();
+        accounts.add(new AccountInformation("Bank", "me", "pw", "", new String(longNotes)));
+        accounts.add(new AccountInformation("", "", "", "", ""));
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new BinaryPayloadWriter(os).write(revision, options, accounts);
+        BinaryPayloadReader reader = reader(os.toByteArray());
+
+        assertEquals(300, reader.readRevision().getRevision());
+        DatabaseOptions readOptions = reader.readDatabaseOptions();
+        assertEquals("https://example.com/db", readOptions.getRemoteLocation());
+        assertEquals("auth", readOptions.getAuthDBEntry());
+        assertEquals(2, reader.readVarInt());
+
+        AccountInformation first = reader.readAccount();
+        assertEquals("Bank", first.getAccountName());
+        assertEquals("me", first.getUserId());
+        assertEquals("pw", first.getPassword());
+        assertEquals("", first.getUrl());
+        assertEquals(new String(longNotes), first.getNotes());
+        assertEquals("", reader.readAccount().getAccountName());
+        // Only the index is left
+        assertEquals(2 * 4 + BinaryPayloadWriter.INDEX_FOOTER_LENGTH, reader.remaining());
+    }
+
+    private static byte[] payloadWithAccounts(int count) throws Exception {
+        List<AccountInformation> accounts = new ArrayList<AccountInformation>();
+        for (int i = 0; i < count; i++) {
+            accounts.add(new AccountInformation("Account " + i, "user" + i, "pw" + i, "", "notes " + i));
+        }
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new BinaryPayloadWriter(os).write(new Revision(), new DatabaseOptions(), accounts);
+        return os.toByteArray();
+    }
+
+    private static LazyAccountInformation[] readAllAccounts(byte[] payload, int length) throws Exception {
+        BinaryPayloadReader reader = new BinaryPayloadReader(payload, 0, length);
+        reader.readRevision();
+        reader.readDatabaseOptions();
+        return reader.readLazyAccounts(reader.readVarInt());
+    }
+
+    @Test
+    public void testIndex_jumpsToAccount() throws Exception {
+        byte[] payload = payloadWithAccounts(10);
+        BinaryPayloadReader reader = reader(payload);
+        int[] index = reader.readIndex(10);
+        assertNotNull(index);
+        reader.seek(index[7]);
+        assertEquals("Account 7", reader.readLazyAccount().getAccountName());
+        assertNull("Wrong account count must not match the index", reader.readIndex(9));
+    }
+
+    @Test
+    public void testIndex_largePayloadParsedInParallel() throws Exception {
+        int count = 5000;
+        byte[] payload = payloadWithAccounts(count);
+        LazyAccountInformation[] accounts = readAllAccounts(payload, payload.length);
+        assertEquals(count, accounts.length);
+        for (int i = 0; i < count; i++) {
+            assertEquals("Account " + i, accounts[i].getAccountName());
+        }
+        assertEquals("notes 4321", accounts[4321].getNotes());
+    }
+
+    @Test
+    public void testIndex_payloadWithoutIndexStillReads() throws Exception {
+        int count = 3000;
+        byte[] payload = payloadWithAccounts(count);
+        int withoutIndex = payload.length - count * 4 - BinaryPayloadWriter.INDEX_FOOTER_LENGTH;
+        LazyAccountInformation[] accounts = readAllAccounts(payload, withoutIndex);
+        assertEquals(count, accounts.length);
+        assertEquals("Account 2999", accounts[2999].getAccountName());
+    }
+
+    @Test
+    public void testIndex_corruptIndexIgnored() throws Exception {
+        int count = 3000;
+        byte[] payload = payloadWithAccounts(count);
+        // Break the ordering of two offsets, the accounts are read sequentially instead
+        int indexStart = payload.length - count * 4 - BinaryPayloadWriter.INDEX_FOOTER_LENGTH;
+        payload[indexStart + 4 * 1000 + 1] = (byte) 0xFF;
+        LazyAccountInformation[] accounts = readAllAccounts(payload, payload.length);
+        assertEquals("Account 1000", accounts[1000].getAccountName());
+    }
+
+    @Test
+    public void testLazyAccount_decodesOnDemandAndCopiesThrough() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        AccountInformation original = new AccountInformation("Mail", "user", "secret", "https://mail", "notes");
+        new BinaryPayloadWriter(os).writeAccount(original);
+        byte[] record = os.toByteArray();
+
+        LazyAccountInformation lazy = reader(record).readLazyAccount();
+        assertEquals("Mail", lazy.getAccountName());
+        assertFalse(lazy.isModified());
+
+        // An untouched account is written back byte for byte
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        new BinaryPayloadWriter(copy).writeAccount(lazy);
+        assertArrayEquals(record, copy.toByteArray());
+
+        assertEquals("user", lazy.getUserId());
+        assertEquals("secret", lazy.getPassword());
+        assertEquals("https://mail", lazy.getUrl());
+        assertEquals("notes", lazy.getNotes());
+
+        // Once changed it is re-encoded from its fields
+        lazy.setPassword("changed");
+        assertTrue(lazy.isModified());
+        ByteArrayOutputStream changed = new ByteArrayOutputStream();
+        new BinaryPayloadWriter(changed).writeAccount(lazy);
+        AccountInformation reread = reader(changed.toByteArray()).readAccount();
+        assertEquals("changed", reread.getPassword());
+        assertEquals("notes", reread.getNotes());
+    }
+
+    @Test(expected = ProblemReadingDatabaseFile.class)
+    public void testLazyAccount_truncatedRecordRejected() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new BinaryPayloadWriter(os).writeAccount(new AccountInformation("Mail", "user", "secret", "", "notes"));
+        byte[] record = os.toByteArray();
+        new BinaryPayloadReader(record, 0, record.length - 1).readLazyAccount();
+    }
+
+    @Test(expected = ProblemReadingDatabaseFile.class)
+    public void testPayload_fieldPastEndRejected() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new BinaryPayloadWriter(os).writeString("account name");
+        byte[] bytes = os.toByteArray();
+        new BinaryPayloadReader(bytes, 0, bytes.length - 1).readString();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Unit tests for DatabaseFormat.
+ * These run on the JVM and validate:
+ * - Key slotted databases are recognised with their slots and body layout
+ * - Legacy and pre version 2 databases are told apart by their header
+ * - Unknown versions and truncated headers are rejected before any key is derived
+ */
+package com.epassafe.upm.database;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.file.Files;
+
+import com.epassafe.upm.crypto.KeySlots;
+import com.epassafe.upm.crypto.ModernEncryptionService;
+
+public class DatabaseFormatTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static final String TEST_PASSWORD = "MyTestPassword123!";
+
+    private static DatabaseFormat probe(File file) throws Exception {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            return DatabaseFormat.probe(fis.getChannel());
+        } finally {
+            fis.close();
+        }
+    }
+
+    private File writeFile(String name, byte[] contents) throws Exception {
+        File file = new File(tempFolder.getRoot(), name);
+        Files.write(file.toPath(), contents);
+        return file;
+    }
+
+    private static void assertRejected(File file) throws Exception {
+        try {
+            probe(file);
+            fail("Expected ProblemReadingDatabaseFile");
+        } catch (ProblemReadingDatabaseFile e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testProbe_keySlottedDatabase() throws Exception {
+        File dbFile = new File(tempFolder.getRoot(), "modern.upm");
+        PasswordDatabase db = new PasswordDatabase(dbFile, TEST_PASSWORD.toCharArray());
+        db.addAccount(new AccountInformation("Account", "user", "pw", "", "notes"));
+        db.save();
+
+        DatabaseFormat format = probe(dbFile);
+        assertEquals(DatabaseFormat.Kind.MODERN, format.kind);
+        assertEquals(ModernEncryptionService.FORMAT_VERSION_KEY_SLOTS, format.formatVersion);
+        assertTrue(format.isUsingKeySlots());
+        assertTrue(format.keySlots.has(KeySlots.TYPE_PASSWORD));
+        assertEquals(ModernEncryptionService.SALT_LENGTH, format.salt.length);
+        assertEquals(PasswordDatabase.KEY_SLOTS_POS + KeySlots.HEADER_LENGTH + 1, format.bodyPos);
+        assertEquals(PasswordDatabase.KEY_SLOTS_POS + 1, format.bodyHeader.length);
+        assertEquals(format.bodyVersion, format.bodyHeader[PasswordDatabase.KEY_SLOTS_POS]);
+    }
+
+    @Test
+    public void testProbe_legacyAndAncient() throws Exception {
+        byte[] legacy = new byte[64];
+        System.arraycopy("UPM".getBytes(), 0, legacy, 0, 3);
+        legacy[3] = 3;
+        DatabaseFormat format = probe(writeFile("legacy.upm", legacy));
+        assertEquals(DatabaseFormat.Kind.LEGACY, format.kind);
+        assertEquals(3, format.legacyVersion);
+        assertNull(format.keySlots);
+
+        byte[] ancient = new byte[64];
+        ancient[0] = 'X';
+        assertEquals(DatabaseFormat.Kind.ANCIENT, probe(writeFile("ancient.upm", ancient)).kind);
+    }
+
+    @Test
+    public void testProbe_rejectsBadHeaders() throws Exception {
+        byte[] legacy = new byte[64];
+        System.arraycopy("UPM".getBytes(), 0, legacy, 0, 3);
+        legacy[3] = 7;
+        assertRejected(writeFile("version.upm", legacy));
+
+        byte[] modern = new byte[64];
+        System.arraycopy("UPM_MODERN".getBytes(), 0, modern, 0, 10);
+        modern[10] = 99;
+        assertRejected(writeFile("modern.upm", modern));
+
+        byte[] truncated = new byte[20];
+        System.arraycopy("UPM_MODERN".getBytes(), 0, truncated, 0, 10);
+        truncated[10] = ModernEncryptionService.FORMAT_VERSION_KEY_SLOTS;
+        assertRejected(writeFile("truncated.upm", truncated));
+
+        assertRejected(writeFile("short.upm", new byte[4]));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Unit tests for the account change journal kept next to modern databases.
+ * These run on the JVM and validate:
+ * - Saving edits appends to the journal and leaves the database file alone
+ * - Reopening the database replays adds, edits and deletes
+ * - A partly written trailing record is ignored and later overwritten
+ * - A damaged record stops the database opening and the journal is kept
+ * - Compaction folds the journal into the database, password changes keep it
+ */
+package com.epassafe.upm.database;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+public class DatabaseJournalTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static final String TEST_PASSWORD = "MyTestPassword123!";
+
+    private File dbFile;
+
+    @Before
+    public void setUp() throws Exception {
+        dbFile = new File(tempFolder.getRoot(), "journal.upm");
+        PasswordDatabase db = new PasswordDatabase(dbFile, TEST_PASSWORD.toCharArray());
+        db.addAccount(new AccountInformation("Bank", "me", "pw1", "", ""));
+        db.addAccount(new AccountInformation("Mail", "me@mail", "pw2", "", ""));
+        db.save();
+    }
+
+    private PasswordDatabase open() throws Exception {
+        return new PasswordDatabase(dbFile, TEST_PASSWORD.toCharArray());
+    }
+
+    @Test
+    public void testSave_appendsToJournalAndReplays() throws Exception {
+        byte[] baseBefore = Files.readAllBytes(dbFile.toPath());
+
+        PasswordDatabase db = open();
+        db.deleteAccount("Bank");
+        db.addAccount(new AccountInformation("Bank 2", "me", "pw3", "", "moved"));
+        db.save();
+        db.addAccount(new AccountInformation("Shop", "me", "pw4", "", ""));
+        db.save();
+
+        File journalFile = DatabaseJournal.getJournalFile(dbFile);
+        assertTrue("Edits must go to the journal", journalFile.exists());
+        assertArrayEquals("Database file must not be rewritten", baseBefore, Files.readAllBytes(dbFile.toPath()));
+
+        PasswordDatabase reopened = open();
+        assertNull(reopened.getAccount("Bank"));
+        assertEquals("pw3", reopened.getAccount("Bank 2").getPassword());
+        assertEquals("moved", reopened.getAccount("Bank 2").getNotes());
+        assertEquals("pw4", reopened.getAccount("Shop").getPassword());
+        assertEquals("pw2", reopened.getAccount("Mail").getPassword());
+    }
+
+    @Test
+    public void testLoad_ignoresIncompleteTrailingRecord() throws Exception {
+        PasswordDatabase db = open();
+        db.addAccount(new AccountInformation("Shop", "me", "pw4", "", ""));
+        db.save();
+
+        // Simulate the app being killed part way through writing a record
+        FileOutputStream fos = new FileOutputStream(DatabaseJournal.getJournalFile(dbFile), true);
+        fos.write(new byte[] { 0, 0, 1, 0, 42, 42 });
+        fos.close();
+
+        PasswordDatabase reopened = open();
+        assertEquals("pw4", reopened.getAccount("Shop").getPassword());
+
+        // The next record overwrites the torn one
+        reopened.addAccount(new AccountInformation("Car", "me", "pw5", "", ""));
+        reopened.save();
+        PasswordDatabase again = open();
+        assertEquals("pw4", again.getAccount("Shop").getPassword());
+        assertEquals("pw5", again.getAccount("Car").getPassword());
+    }
+
+    @Test
+    public void testLoad_damagedRecordRefusesToOpen() throws Exception {
+        PasswordDatabase db = open();
+        db.addAccount(new AccountInformation("Shop", "me", "pw4", "", ""));
+        db.save();
+        db.addAccount(new AccountInformation("Car", "me", "pw5", "", ""));
+        db.save();
+
+        // Flip a byte inside the first record, the second one is still intact
+        File journalFile = DatabaseJournal.getJournalFile(dbFile);
+        RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+        long position = "UPM_JOURNAL".length() + 1 + DatabaseJournal.BASE_TAG_LENGTH + 4 + 20;
+        raf.seek(position);
+        int b = raf.read();
+        raf.seek(position);
+        raf.write(b ^ 1);
+        raf.close();
+        byte[] damaged = Files.readAllBytes(journalFile.toPath());
+
+        try {
+            open();
+            fail("Expected ProblemReadingDatabaseFile");
+        } catch (ProblemReadingDatabaseFile e) {
+            // expected
+        }
+        assertArrayEquals("The journal must be kept for recovery", damaged, Files.readAllBytes(journalFile.toPath()));
+    }
+
+    @Test
+    public void testCompactFoldsJournal_changePasswordKeepsIt() throws Exception {
+        PasswordDatabase db = open();
+        db.addAccount(new AccountInformation("Shop", "me", "pw4", "", ""));
+        db.save();
+        int revision = db.getRevision();
+
+        db.compactJournal();
+        assertEquals(revision + 1, db.getRevision());
+        assertFalse(DatabaseJournal.getJournalFile(dbFile).exists());
+
+        db.addAccount(new AccountInformation("Car", "me", "pw5", "", ""));
+        db.save();
+        db.changePassword("NewPassword456!".toCharArray());
+        db.save();
+        assertTrue("Password change must only rewrite the key slots",
+                DatabaseJournal.getJournalFile(dbFile).exists());
+
+        PasswordDatabase reopened = new PasswordDatabase(dbFile, "NewPassword456!".toCharArray());
+        assertEquals("pw4", reopened.getAccount("Shop").getPassword());
+        assertEquals("pw5", reopened.getAccount("Car").getPassword());
+        assertEquals(4, reopened.getAccounts().size());
+    }
+}
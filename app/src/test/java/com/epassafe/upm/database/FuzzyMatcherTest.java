@@ -0,0 +1,142 @@
+/*
+ * Unit tests for FuzzyMatcher.
+ * These run on the JVM and validate:
+ * - Abbreviations and typos find the account they're meant to
+ * - Matches in the name rank above matches in the URL and notes
+ * - Every account containing the query is returned, close matches only
+ *   make up the requested number of results
+ * - A query stops looking for close matches once its time budget has run out
+ * - In a large vault the account meant is found wherever it was added
+ */
+package com.epassafe.upm.database;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class FuzzyMatcherTest {
+
+    private static FuzzyMatcher matcher(AccountInformation... accounts) {
+        return new FuzzyMatcher(new SearchIndex(Arrays.asList(accounts)));
+    }
+
+    @Test
+    public void testMatch_abbreviationsAndTypos() {
+        FuzzyMatcher matcher = matcher(
+                new AccountInformation("GitHub Enterprise", "me", "", "https://github.corp", ""),
+                new AccountInformation("Gmail", "me@gmail.com", "", "", ""),
+                new AccountInformation("Bank", "jsmith", "", "", "Branch in Kyiv"));
+
+        assertEquals("GitHub Enterprise", matcher.match("gh ent").getNames().get(0));
+        assertEquals(Arrays.asList("GitHub Enterprise"), matcher.match("entrprise").getNames());
+        assertEquals(Arrays.asList("GitHub Enterprise"), matcher.match("githbu").getNames());
+        assertEquals(Arrays.asList("Bank"), matcher.match("jsmtih").getNames());
+        assertEquals(Arrays.asList("Bank"), matcher.match("KYIV").getNames());
+        assertTrue(matcher.match("zzz").getNames().isEmpty());
+        assertTrue(matcher.match("   ").getNames().isEmpty());
+    }
+
+    @Test
+    public void testMatch_nameRanksFirst() {
+        FuzzyMatcher matcher = matcher(
+                new AccountInformation("Work notes", "", "", "", "mentions paypal"),
+                new AccountInformation("Shop", "", "", "https://paypal.com", ""),
+                new AccountInformation("PayPal", "", "", "", ""));
+
+        assertEquals(Arrays.asList("PayPal", "Shop", "Work notes"), matcher.match("paypal").getNames());
+    }
+
+    @Test
+    public void testMatchScore() {
+        assertTrue(FuzzyMatcher.matchScore("git", "github") > FuzzyMatcher.matchScore("hub", "github"));
+        assertTrue(FuzzyMatcher.matchScore("ent", "github enterprise") > FuzzyMatcher.matchScore("erp", "github enterprise"));
+        assertTrue(FuzzyMatcher.matchScore("erp", "github enterprise") > FuzzyMatcher.matchScore("ge", "github enterprise"));
+        assertTrue(FuzzyMatcher.matchScore("ge", "github enterprise") > 0);
+        assertTrue(FuzzyMatcher.matchScore("abc", "xyz") == 0);
+        assertEquals(1, FuzzyMatcher.prefixEditDistance("entr", "enterprise", 0, 10, 1));
+        assertEquals(1, FuzzyMatcher.prefixEditDistance("enterprsie", "enterprise", 0, 10, 2));
+        assertEquals(2, FuzzyMatcher.prefixEditDistance("entreprsie", "enterprise", 0, 10, 2));
+        assertEquals(2, FuzzyMatcher.prefixEditDistance("abcd", "wxyz", 0, 4, 1));
+    }
+
+    @Test
+    public void testMatch_topResults() {
+        List<AccountInformation> accounts = new ArrayList<AccountInformation>();
+        for (int i = 0; i < 500; i++) {
+            accounts.add(new AccountInformation("Account " + i, "", "", "", ""));
+        }
+        FuzzyMatcher matcher = new FuzzyMatcher(new SearchIndex(accounts), 10, 1000);
+        FuzzyMatcher.Result result = matcher.match("account");
+        assertTrue(result.isComplete());
+        assertEquals(500, result.getNames().size());
+        // Equal scores come in name order
+        assertEquals(Arrays.asList("Account 0", "Account 1", "Account 10", "Account 100", "Account 101",
+                "Account 102", "Account 103", "Account 104", "Account 105", "Account 106"),
+                result.getNames().subList(0, 10));
+        assertEquals("Account 250", matcher.match("account 250").getNames().get(0));
+
+        // Close matches only fill the places left
+        result = matcher.match("acount");
+        assertTrue(result.isComplete());
+        assertEquals(10, result.getNames().size());
+        assertEquals(Arrays.asList("Account 250"), matcher.match("acount 250").getNames());
+    }
+
+    @Test
+    public void testMatch_timeBudget() {
+        List<AccountInformation> accounts = new ArrayList<AccountInformation>();
+        for (int i = 0; i < 5000; i++) {
+            accounts.add(new AccountInformation("Account " + i, "user" + i, "", "", "some notes"));
+        }
+        FuzzyMatcher matcher = new FuzzyMatcher(new SearchIndex(accounts), 10, 0);
+        FuzzyMatcher.Result result = matcher.match("acount");
+        assertFalse(result.isComplete());
+        assertTrue(result.getNames().size() <= 10);
+
+        // Running out of time doesn't lose any account containing the query
+        int containing = 0;
+        for (AccountInformation account : accounts) {
+            if (account.getAccountName().contains("12")) {
+                containing++;
+            }
+        }
+        result = matcher.match("user 12");
+        assertEquals(containing, result.getNames().size());
+        assertEquals("Account 12", result.getNames().get(0));
+    }
+
+    @Test
+    public void testMatch_largeVault() {
+        List<AccountInformation> accounts = new ArrayList<AccountInformation>();
+        for (int i = 0; i < 20000; i++) {
+            accounts.add(new AccountInformation("Account " + i, "user" + i + "@mail.example", "",
+                    "https://www.site" + i + ".com", "some notes"));
+            if (i == 12345) {
+                accounts.add(new AccountInformation("GitHub Enterprise", "me", "", "https://github.corp", ""));
+            }
+        }
+        SearchIndex index = new SearchIndex(accounts);
+        FuzzyMatcher matcher = new FuzzyMatcher(index);
+
+        FuzzyMatcher.Result result = matcher.match("entrprise");
+        assertEquals("GitHub Enterprise", result.getNames().get(0));
+        assertEquals("GitHub Enterprise", matcher.match("gh ent").getNames().get(0));
+        assertEquals("GitHub Enterprise", matcher.match("githbu entreprise").getNames().get(0));
+
+        // Every account with the query in it, not just the first few
+        result = matcher.match("mail");
+        assertTrue(result.isComplete());
+        assertEquals(20000, result.getNames().size());
+        assertEquals(11111, matcher.match("site1").getNames().size());
+
+        // After edits too
+        index.remove("Account 5");
+        index.add(new AccountInformation("Bitbucket Enterprise", "me", "", "", ""));
+        assertEquals("Bitbucket Enterprise", matcher.match("bitbukt").getNames().get(0));
+        assertEquals(19999, matcher.match("mail").getNames().size());
+    }
+}
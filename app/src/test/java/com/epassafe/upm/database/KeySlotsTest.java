@@ -0,0 +1,259 @@
+/*
+ * Unit tests for key slotted modern databases.
+ * These run on the JVM and validate:
+ * - New databases are saved with key slots and reload
+ * - Changing the password rewrites only the key slot area of the file
+ * - A half written slot update leaves the current slots usable
+ * - The body is bound to the file header
+ * - Replaced and removed slots are wiped from the file, not just switched away from
+ * - YubiKey and recovery code slots unwrap the same data key
+ * - Opening with the data key skips the password and rejects other formats
+ * - verifyPassword checks the key check without reading the accounts
+ */
+package com.epassafe.upm.database;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import com.epassafe.upm.crypto.InvalidPasswordException;
+import com.epassafe.upm.crypto.KeySlots;
+import com.epassafe.upm.crypto.ModernEncryptionService;
+
+public class KeySlotsTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static final String TEST_PASSWORD = "MyTestPassword123!";
+    private static final String NEW_PASSWORD = "NewPassword456!";
+    private static final int KEY_SLOTS_POS = 27;
+
+    private File dbFile;
+
+    @Before
+    public void setUp() throws Exception {
+        dbFile = new File(tempFolder.getRoot(), "slots.upm");
+        PasswordDatabase db = new PasswordDatabase(dbFile, TEST_PASSWORD.toCharArray());
+        for (int i = 0; i < 50; i++) {
+            db.addAccount(new AccountInformation("Account " + i, "user" + i, "pw" + i, "", "notes " + i));
+        }
+        db.save();
+    }
+
+    private static void assertWrongPassword(File file, String password) throws Exception {
+        try {
+            new PasswordDatabase(file, password.toCharArray());
+            fail("Expected InvalidPasswordException");
+        } catch (InvalidPasswordException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testNewDatabase_usesKeySlots() throws Exception {
+        byte[] file = Files.readAllBytes(dbFile.toPath());
+        assertEquals(ModernEncryptionService.FORMAT_VERSION_KEY_SLOTS, file[10]);
+        assertEquals(ModernEncryptionService.FORMAT_VERSION_CHUNKED, file[KEY_SLOTS_POS + KeySlots.HEADER_LENGTH]);
+
+        PasswordDatabase db = new PasswordDatabase(dbFile, TEST_PASSWORD.toCharArray());
+        assertTrue(db.isUsingKeySlots());
+        assertEquals(50, db.getAccounts().size());
+        assertEquals("pw7", db.getAccount("Account 7").getPassword());
+        assertWrongPassword(dbFile, "WrongPassword");
+    }
+
+    @Test
+    public void testChangePassword_rewritesOnlyKeySlots() throws Exception {
+        byte[] before = Files.readAllBytes(dbFile.toPath());
+
+        PasswordDatabase db = new PasswordDatabase(dbFile, TEST_PASSWORD.toCharArray());
+        db.changePassword(NEW_PASSWORD.toCharArray());
+        db.save();
+        byte[] after = Files.readAllBytes(dbFile.toPath());
+
+        int slotsEnd = KEY_SLOTS_POS + KeySlots.HEADER_LENGTH;
+        assertEquals(before.length, after.length);
+        assertArrayEquals(Arrays.copyOf(before, KEY_SLOTS_POS), Arrays.copyOf(after, KEY_SLOTS_POS));
+        assertArrayEquals(Arrays.copyOfRange(before, slotsEnd, before.length),
+                Arrays.copyOfRange(after, slotsEnd, after.length));
+
+        PasswordDatabase reopened = new PasswordDatabase(dbFile, NEW_PASSWORD.toCharArray());
+        assertEquals("pw42", reopened.getAccount("Account 42").getPassword());
+        assertWrongPassword(dbFile, TEST_PASSWORD);
+
+        // And back again, using the other slot area
+        reopened.changePassword(TEST_PASSWORD.toCharArray());
+        reopened.addAccount(new AccountInformation("Added", "u", "p", "", ""));
+        reopened.save();
+        PasswordDatabase again = new PasswordDatabase(dbFile, TEST_PASSWORD.toCharArray());
+        assertEquals(51, again.getAccounts().size());
+        assertWrongPassword(dbFile, NEW_PASSWORD);
+    }
+
+    @Test
+    public void testChangePassword_wipesOldSlots() throws Exception {
+        PasswordDatabase db = new PasswordDatabase(dbFile, TEST_PASSWORD.toCharArray());
+        db.changePassword("newpassword".toCharArray());
+        db.save();
+        assertWrongPassword(dbFile, TEST_PASSWORD);
+
+        // Switching back to the old slot area mustn't bring the old password back
+        byte[] file = Files.readAllBytes(dbFile.toPath());
+        int oldArea = 1 - file[KEY_SLOTS_POS];
+        int oldAreaPos = KEY_SLOTS_POS + 1 + oldArea * KeySlots.AREA_LENGTH;
+        assertArrayEquals(new byte[KeySlots.AREA_LENGTH], Arrays.copyOfRange(file, oldAreaPos, oldAreaPos + KeySlots.AREA_LENGTH));
+        RandomAccessFile raf = new RandomAccessFile(dbFile, "rw");
+        raf.seek(KEY_SLOTS_POS);
+        raf.write(oldArea);
+        raf.close();
+        assertWrongPassword(dbFile, TEST_PASSWORD);
+    }
+
+    @Test
+    public void testRemoveSlot_wipesOldSlots() throws Exception {
+        byte[] response = new byte[20];
+        Arrays.fill(response, (byte) 5);
+        PasswordDatabase db = new PasswordDatabase(dbFile, TEST_PASSWORD.toCharArray());
+        db.setYubiKeySlot(response);
+        db.save();
+        db.removeKeySlot(KeySlots.TYPE_YUBIKEY);
+        db.save();
+
+        byte[] file = Files.readAllBytes(dbFile.toPath());
+        for (int area = 0; area < 2; area++) {
+            int areaPos = KEY_SLOTS_POS + 1 + area * KeySlots.AREA_LENGTH;
+            KeySlots slots = KeySlots.read(Arrays.copyOfRange(file, areaPos, areaPos + KeySlots.AREA_LENGTH));
+            assertNull(slots.unwrapWithYubiKey(response));
+        }
+    }
+
+    @Test
+    public void testAlteredHeader_refusesToOpen() throws Exception {
+        // The salt isn't used to derive the data key, but the body is bound to it
+        RandomAccessFile raf = new RandomAccessFile(dbFile, "rw");
+        raf.seek(KEY_SLOTS_POS - 1);
+        int b = raf.read();
+        raf.seek(KEY_SLOTS_POS - 1);
+        raf.write(b ^ 1);
+        raf.close();
+        assertWrongPassword(dbFile, TEST_PASSWORD);
+    }
+
+    @Test
+    public void testTornSlotWrite_keepsCurrentSlots() throws Exception {
+        // Scribble over the spare slot area as if an update had been cut short
+        RandomAccessFile raf = new RandomAccessFile(dbFile, "rw");
+        byte[] garbage = new byte[KeySlots.AREA_LENGTH / 2];
+        Arrays.fill(garbage, (byte) 0x5A);
+        raf.seek(KEY_SLOTS_POS + 1 + KeySlots.AREA_LENGTH);
+        raf.write(garbage);
+        raf.close();
+
+        PasswordDatabase db = new PasswordDatabase(dbFile, TEST_PASSWORD.toCharArray());
+        assertEquals(50, db.getAccounts().size());
+    }
+
+    @Test
+    public void testYubiKeyAndRecoverySlots_unwrapDataKey() throws Exception {
+        byte[] response = new byte[20];
+        Arrays.fill(response, (byte) 7);
+        String recoveryCode = "0123-4567-89AB-CDEF-0123-4567-89AB-CDEF";
+
+        PasswordDatabase db = new PasswordDatabase(dbFile, TEST_PASSWORD.toCharArray());
+        db.setYubiKeySlot(response);
+        db.setRecoveryCodeSlot(recoveryCode);
+        db.save();
+        byte[] dataKey = db.getModernEncryptionService().getSecretKey().getEncoded();
+
+        byte[] file = Files.readAllBytes(dbFile.toPath());
+        int active = file[KEY_SLOTS_POS];
+        int areaPos = KEY_SLOTS_POS + 1 + active * KeySlots.AREA_LENGTH;
+        KeySlots slots = KeySlots.read(Arrays.copyOfRange(file, areaPos, areaPos + KeySlots.AREA_LENGTH));
+        assertArrayEquals(dataKey, slots.unwrapWithYubiKey(response));
+        assertArrayEquals(dataKey, slots.unwrapWithRecoveryCode(recoveryCode.toLowerCase()));
+        assertArrayEquals(dataKey, slots.unwrapWithPassword(TEST_PASSWORD.toCharArray()));
+        assertNull(slots.unwrapWithYubiKey(new byte[20]));
+
+        db.removeKeySlot(KeySlots.TYPE_YUBIKEY);
+        db.save();
+        file = Files.readAllBytes(dbFile.toPath());
+        active = file[KEY_SLOTS_POS];
+        areaPos = KEY_SLOTS_POS + 1 + active * KeySlots.AREA_LENGTH;
+        slots = KeySlots.read(Arrays.copyOfRange(file, areaPos, areaPos + KeySlots.AREA_LENGTH));
+        assertFalse(slots.has(KeySlots.TYPE_YUBIKEY));
+        assertTrue(slots.has(KeySlots.TYPE_RECOVERY_CODE));
+    }
+
+    @Test
+    public void testOpenWithDataKey() throws Exception {
+        byte[] response = new byte[20];
+        Arrays.fill(response, (byte) 3);
+        PasswordDatabase db = new PasswordDatabase(dbFile, TEST_PASSWORD.toCharArray());
+        db.setYubiKeySlot(response);
+        db.save();
+
+        byte[] dataKey = PasswordDatabase.readKeySlots(dbFile).unwrapWithYubiKey(response);
+        PasswordDatabase opened = new PasswordDatabase(dbFile, dataKey);
+        assertEquals("pw9", opened.getAccount("Account 9").getPassword());
+        assertEquals(KeySlots.DATA_KEY_LENGTH, dataKey.length);
+
+        try {
+            new PasswordDatabase(dbFile, new byte[KeySlots.DATA_KEY_LENGTH]);
+            fail("Expected InvalidPasswordException");
+        } catch (InvalidPasswordException e) {
+            // expected
+        }
+
+        File older = new File(tempFolder.getRoot(), "older.upm");
+        PasswordDatabase olderDb = new PasswordDatabase(older, TEST_PASSWORD.toCharArray());
+        olderDb.downgradeToLegacyEncryption(TEST_PASSWORD.toCharArray());
+        olderDb.save();
+        assertNull(PasswordDatabase.readKeySlots(older));
+        try {
+            new PasswordDatabase(older, dataKey);
+            fail("Expected ProblemReadingDatabaseFile");
+        } catch (ProblemReadingDatabaseFile e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testVerifyPassword_usesKeyCheck() throws Exception {
+        PasswordDatabase db = new PasswordDatabase(dbFile, TEST_PASSWORD.toCharArray());
+        char[] password = TEST_PASSWORD.toCharArray();
+        assertTrue(db.verifyPassword(password));
+        assertEquals(TEST_PASSWORD, new String(password));
+        assertFalse(db.verifyPassword("WrongPassword".toCharArray()));
+
+        // The payload isn't read, so a damaged body makes no difference
+        RandomAccessFile raf = new RandomAccessFile(dbFile, "rw");
+        raf.setLength(KEY_SLOTS_POS + KeySlots.HEADER_LENGTH + 1);
+        raf.close();
+        assertTrue(db.verifyPassword(TEST_PASSWORD.toCharArray()));
+
+        KeySlots slots = PasswordDatabase.readKeySlots(dbFile);
+        assertTrue(slots.has(KeySlots.TYPE_KEY_CHECK));
+        byte[] dataKey = slots.unwrapWithPassword(TEST_PASSWORD.toCharArray());
+        assertTrue(slots.checkKey(dataKey));
+        dataKey[0] ^= 1;
+        assertFalse(slots.checkKey(dataKey));
+    }
+
+    @Test
+    public void testVerifyPassword_legacyDatabase() throws Exception {
+        File older = new File(tempFolder.getRoot(), "older.upm");
+        PasswordDatabase db = new PasswordDatabase(older, TEST_PASSWORD.toCharArray());
+        db.downgradeToLegacyEncryption(TEST_PASSWORD.toCharArray());
+        assertTrue(db.verifyPassword(TEST_PASSWORD.toCharArray()));
+        assertFalse(db.verifyPassword("WrongPassword".toCharArray()));
+    }
+}
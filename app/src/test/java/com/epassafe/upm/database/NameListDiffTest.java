@@ -0,0 +1,69 @@
+/*
+ * Unit tests for NameListDiff.
+ * These run on the JVM and validate:
+ * - Inserted, removed and renamed names are found at the right positions
+ * - Positions in the old list are carried over to the new one
+ * - A single edit to a large list is a single change
+ */
+package com.epassafe.upm.database;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+public class NameListDiffTest {
+
+    @Test
+    public void testCompute_insertAndRemove() {
+        String[] before = { "Alpha", "Bravo", "Charlie", "Delta" };
+        String[] after = { "Alpha", "Beta", "Bravo", "Delta", "Echo" };
+        NameListDiff diff = NameListDiff.compute(before, after);
+
+        assertTrue(Arrays.equals(new int[] { 2 }, diff.getRemoved()));
+        assertTrue(Arrays.equals(new int[] { 1, 4 }, diff.getInserted()));
+        assertFalse(diff.isEmpty());
+    }
+
+    @Test
+    public void testCompute_sameNames() {
+        String[] names = { "Alpha", "Bravo" };
+        assertTrue(NameListDiff.compute(names, new String[] { "Alpha", "Bravo" }).isEmpty());
+        assertTrue(NameListDiff.compute(new String[0], new String[0]).isEmpty());
+    }
+
+    @Test
+    public void testNewPosition() {
+        String[] before = { "Alpha", "Bravo", "Charlie", "Delta", "Foxtrot" };
+        // Charlie renamed to Echo
+        String[] after = { "Alpha", "Bravo", "Delta", "Echo", "Foxtrot" };
+        NameListDiff diff = NameListDiff.compute(before, after);
+
+        assertEquals(0, diff.newPosition(0));
+        assertEquals(1, diff.newPosition(1));
+        assertEquals(2, diff.newPosition(3));
+        assertEquals(4, diff.newPosition(4));
+        // The removed name's place is taken by the one after it
+        assertEquals(2, diff.newPosition(2));
+
+        diff = NameListDiff.compute(new String[] { "Bravo", "Delta" }, new String[] { "Alpha", "Bravo", "Charlie", "Delta" });
+        assertEquals(1, diff.newPosition(0));
+        assertEquals(3, diff.newPosition(1));
+    }
+
+    @Test
+    public void testCompute_largeList() {
+        String[] before = new String[50000];
+        for (int i = 0; i < before.length; i++) {
+            before[i] = String.format("Account %05d", i);
+        }
+        String[] after = before.clone();
+        after[25000] = "Account 25000 renamed";
+        NameListDiff diff = NameListDiff.compute(before, after);
+
+        assertTrue(Arrays.equals(new int[] { 25000 }, diff.getRemoved()));
+        assertTrue(Arrays.equals(new int[] { 25000 }, diff.getInserted()));
+        assertEquals(40000, diff.newPosition(40000));
+    }
+}
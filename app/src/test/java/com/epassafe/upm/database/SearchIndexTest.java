@@ -0,0 +1,189 @@
+/*
+ * Unit tests for SearchIndex.
+ * These run on the JVM and validate:
+ * - Queries match the name, user ID, URL and notes, ignoring case
+ * - Short queries and queries spanning several trigrams both match substrings only
+ * - Adding, replacing and deleting accounts keeps the index up to date
+ * - The results stay in name order across many edits
+ * - A query on a large index matches what a linear scan finds
+ * - Narrowing earlier matches gives the same results as a full search
+ * - An interrupted search is abandoned
+ */
+package com.epassafe.upm.database;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+public class SearchIndexTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static SearchIndex index(AccountInformation... accounts) {
+        return new SearchIndex(Arrays.asList(accounts));
+    }
+
+    @Test
+    public void testSearch_allFields() {
+        SearchIndex index = index(
+                new AccountInformation("GitHub", "octocat", "pw", "https://github.com", ""),
+                new AccountInformation("Bank", "jsmith", "pw", "https://bank.example", "Branch in Kyiv"),
+                new AccountInformation("Mail", "jsmith@example.com", "pw", "", ""));
+
+        assertEquals(Arrays.asList("GitHub"), index.search("github"));
+        assertEquals(Arrays.asList("GitHub"), index.search("OCTO"));
+        assertEquals(Arrays.asList("Bank"), index.search("kyiv"));
+        assertEquals(Arrays.asList("Bank", "Mail"), index.search("jsmith"));
+        assertEquals(Arrays.asList("Bank", "Mail"), index.search("example"));
+        assertEquals(Arrays.asList("Bank", "GitHub", "Mail"), index.search(""));
+        assertEquals(Collections.<String>emptyList(), index.search("password"));
+    }
+
+    @Test
+    public void testSearch_substringsOnly() {
+        SearchIndex index = index(
+                new AccountInformation("abcXabc", "", "", "", ""),
+                new AccountInformation("ab", "", "", "", ""));
+
+        // Every trigram of the query is in the first account but the query isn't
+        assertEquals(Collections.<String>emptyList(), index.search("abcabc"));
+        assertEquals(Arrays.asList("abcXabc"), index.search("cxa"));
+        assertEquals(Arrays.asList("ab", "abcXabc"), index.search("AB"));
+        // Fields aren't searched as one string
+        index = index(new AccountInformation("abc", "def", "", "", ""));
+        assertEquals(Collections.<String>emptyList(), index.search("abcdef"));
+        assertEquals(Collections.<String>emptyList(), index.search("cd"));
+        assertEquals(Arrays.asList("abc"), index.search("def"));
+    }
+
+    @Test
+    public void testEdits() throws Exception {
+        PasswordDatabase db = new PasswordDatabase(new File(tempFolder.getRoot(), "search.upm"), "password".toCharArray());
+        db.addAccount(new AccountInformation("Alpha", "one", "", "", ""));
+        SearchIndex index = db.getSearchIndex();
+        assertEquals(Arrays.asList("Alpha"), index.search("alp"));
+
+        db.addAccount(new AccountInformation("Alphabet", "two", "", "", ""));
+        assertEquals(Arrays.asList("Alpha", "Alphabet"), index.search("alp"));
+
+        db.replaceAccount("Alpha", new AccountInformation("Beta", "one", "", "", ""));
+        assertEquals(Arrays.asList("Alphabet"), index.search("alp"));
+        assertEquals(Arrays.asList("Beta"), index.search("one"));
+
+        db.addAccount(new AccountInformation("Alphabet", "three", "", "", ""));
+        assertEquals(Collections.<String>emptyList(), index.search("two"));
+        assertEquals(Arrays.asList("Alphabet"), index.search("three"));
+
+        db.deleteAccount("Beta");
+        assertEquals(Collections.<String>emptyList(), index.search("one"));
+        assertEquals(1, index.size());
+
+        // Freed IDs are reused
+        db.addAccount(new AccountInformation("Gamma", "one", "", "", ""));
+        assertEquals(Arrays.asList("Gamma"), index.search("one"));
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void testEdits_keepNameOrder() {
+        List<AccountInformation> accounts = new ArrayList<AccountInformation>();
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 500; i++) {
+            accounts.add(new AccountInformation("Account " + i, "", "", "", ""));
+            names.add("Account " + i);
+        }
+        SearchIndex index = new SearchIndex(accounts);
+
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            if (random.nextBoolean() && !names.isEmpty()) {
+                String name = names.remove(random.nextInt(names.size()));
+                index.remove(name);
+            } else {
+                String name = (random.nextBoolean() ? "account " : "Other ") + random.nextInt(1000);
+                if (!names.contains(name)) {
+                    names.add(name);
+                }
+                index.add(new AccountInformation(name, "", "", "", ""));
+            }
+            if (i % 100 == 0) {
+                Collections.sort(names, SortedNameIndex.ORDER);
+                assertEquals(names, index.search(""));
+            }
+        }
+        Collections.sort(names, SortedNameIndex.ORDER);
+        assertEquals(names, index.search(""));
+        for (int id = 0; id < index.idLimit(); id++) {
+            if (index.name(id) != null) {
+                assertEquals(names.indexOf(index.name(id)), index.rank(id));
+            }
+        }
+    }
+
+    @Test
+    public void testSearch_narrowing() throws Exception {
+        List<AccountInformation> accounts = new ArrayList<AccountInformation>();
+        for (int i = 0; i < 2000; i++) {
+            accounts.add(new AccountInformation("Account " + i, "user" + (i % 97), "", "", ""));
+        }
+        SearchIndex index = new SearchIndex(accounts);
+
+        SearchIndex.Matches matches = null;
+        for (String query : new String[] { "", "1", "12", "123", "user", "user1", "user12", "ser1", "x" }) {
+            matches = index.search(query, matches);
+            assertEquals(query, index.search(query), matches.getNames());
+        }
+
+        // Matches from before an edit aren't narrowed down
+        matches = index.search("user1", null);
+        index.add(new AccountInformation("New", "user123", "", "", ""));
+        assertTrue(index.search("user12", matches).getNames().contains("New"));
+    }
+
+    @Test
+    public void testSearch_interrupted() {
+        SearchIndex index = index(new AccountInformation("Account", "", "", "", ""));
+        Thread.currentThread().interrupt();
+        try {
+            index.search("acc", null);
+            fail("Expected InterruptedException");
+        } catch (InterruptedException e) {
+            // expected
+        }
+        assertFalse(Thread.currentThread().isInterrupted());
+        assertEquals(Arrays.asList("Account"), index.search("acc"));
+    }
+
+    @Test
+    public void testSearch_largeIndex() {
+        List<AccountInformation> accounts = new ArrayList<AccountInformation>();
+        for (int i = 0; i < 50000; i++) {
+            accounts.add(new AccountInformation("Account " + i, "user" + (i % 997), "pw",
+                    "https://site" + (i % 313) + ".example", i % 50 == 0 ? "notes " + i : ""));
+        }
+        SearchIndex index = new SearchIndex(accounts);
+        assertEquals(50000, index.size());
+
+        for (String query : new String[] { "user12", "site3.", "notes 4", "count 4999", "zzz", "t 1" }) {
+            List<String> expected = new ArrayList<String>();
+            for (AccountInformation account : accounts) {
+                if (SearchIndex.searchableText(account).contains(query.toLowerCase(Locale.ROOT))) {
+                    expected.add(account.getAccountName());
+                }
+            }
+            Collections.sort(expected, String.CASE_INSENSITIVE_ORDER);
+            assertEquals(query, expected, index.search(query));
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Unit tests for the segmented layout used by large modern databases.
+ * These run on the JVM and validate:
+ * - Databases past the account threshold are saved segmented and reload
+ * - Saving an edit re-encrypts only the segment holding the account
+ * - Password changes re-encrypt every segment
+ */
+package com.epassafe.upm.database;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import com.epassafe.upm.crypto.KeySlots;
+import com.epassafe.upm.crypto.ModernEncryptionService;
+
+public class SegmentedContainerTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static final String TEST_PASSWORD = "MyTestPassword123!";
+    private static final int ACCOUNT_COUNT = SegmentedContainer.MIN_ACCOUNTS + 100;
+
+    private File dbFile;
+
+    @Before
+    public void setUp() throws Exception {
+        dbFile = new File(tempFolder.getRoot(), "segmented.upm");
+        PasswordDatabase db = new PasswordDatabase(dbFile, TEST_PASSWORD.toCharArray());
+        for (int i = 0; i < ACCOUNT_COUNT; i++) {
+            db.addAccount(new AccountInformation("Account " + i, "user" + i, "pw" + i, "", "notes " + i));
+        }
+        db.save();
+    }
+
+    private static int countDifferingBytes(byte[] a, byte[] b) {
+        int differing = Math.abs(a.length - b.length);
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            if (a[i] != b[i]) {
+                differing++;
+            }
+        }
+        return differing;
+    }
+
+    @Test
+    public void testSave_writesSegmentedFormatAndReloads() throws Exception {
+        byte[] file = Files.readAllBytes(dbFile.toPath());
+        assertEquals(ModernEncryptionService.FORMAT_VERSION_KEY_SLOTS, file[10]);
+        assertEquals(ModernEncryptionService.FORMAT_VERSION_SEGMENTED, file[27 + KeySlots.HEADER_LENGTH]);
+
+        PasswordDatabase db = new PasswordDatabase(dbFile, TEST_PASSWORD.toCharArray());
+        assertEquals(ACCOUNT_COUNT, db.getAccounts().size());
+        assertEquals("pw7", db.getAccount("Account 7").getPassword());
+        assertEquals("notes " + (ACCOUNT_COUNT - 1), db.getAccount("Account " + (ACCOUNT_COUNT - 1)).getNotes());
+    }
+
+    @Test
+    public void testCompact_rewritesOnlyDirtySegment() throws Exception {
+        byte[] before = Files.readAllBytes(dbFile.toPath());
+
+        PasswordDatabase db = new PasswordDatabase(dbFile, TEST_PASSWORD.toCharArray());
+        // Same length as the old password so the segments stay where they were
+        db.addAccount(new AccountInformation("Account 3", "user3", "pwX", "", "notes 3"));
+        db.compactJournal();
+        byte[] after = Files.readAllBytes(dbFile.toPath());
+
+        // The table and one segment are re-encrypted, the rest is copied through
+        assertTrue("Most of the file must be unchanged",
+                countDifferingBytes(before, after) < before.length / 2);
+
+        PasswordDatabase reopened = new PasswordDatabase(dbFile, TEST_PASSWORD.toCharArray());
+        assertEquals("pwX", reopened.getAccount("Account 3").getPassword());
+        assertEquals("pw4", reopened.getAccount("Account 4").getPassword());
+        assertEquals(ACCOUNT_COUNT, reopened.getAccounts().size());
+    }
+
+    @Test
+    public void testChangePassword_reencryptsAllSegments() throws Exception {
+        PasswordDatabase db = new PasswordDatabase(dbFile, TEST_PASSWORD.toCharArray());
+        db.changePassword("NewPassword456!".toCharArray());
+        db.save();
+
+        PasswordDatabase reopened = new PasswordDatabase(dbFile, "NewPassword456!".toCharArray());
+        assertEquals(ACCOUNT_COUNT, reopened.getAccounts().size());
+        assertEquals("pw100", reopened.getAccount("Account 100").getPassword());
+    }
+}
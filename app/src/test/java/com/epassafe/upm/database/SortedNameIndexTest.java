@@ -0,0 +1,101 @@
+/*
+ * Unit tests for SortedNameIndex.
+ * These run on the JVM and validate:
+ * - Names stay sorted ignoring case through adds, renames and deletes
+ * - The view follows edits without being fetched again
+ * - Prefix ranges and section positions ignore case
+ * - PasswordDatabase keeps its sorted names in step with its accounts
+ */
+package com.epassafe.upm.database;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class SortedNameIndexTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testEdits_staySorted() {
+        SortedNameIndex index = new SortedNameIndex();
+        index.reset(Arrays.asList("delta", "Alpha", "charlie", "Bravo"));
+        List<String> view = index.getNames();
+        assertEquals(Arrays.asList("Alpha", "Bravo", "charlie", "delta"), view);
+
+        index.add("beta");
+        index.rename("delta", "Echo");
+        index.remove("Alpha");
+        index.add("alpha");
+        index.add("ALPHA");
+        assertEquals(Arrays.asList("ALPHA", "alpha", "beta", "Bravo", "charlie", "Echo"), view);
+        assertEquals(6, index.size());
+
+        try {
+            view.set(0, "x");
+            fail("Expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testEdits_matchFullSort() {
+        Random random = new Random(42);
+        SortedNameIndex index = new SortedNameIndex();
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 2000; i++) {
+            String name = Integer.toString(random.nextInt(500), 36) + (random.nextBoolean() ? "X" : "x");
+            if (random.nextInt(3) == 0) {
+                index.remove(name);
+                expected.remove(name);
+            } else if (!expected.contains(name)) {
+                index.add(name);
+                expected.add(name);
+            }
+        }
+        Collections.sort(expected, SortedNameIndex.ORDER);
+        assertEquals(expected, index.getNames());
+    }
+
+    @Test
+    public void testPrefixRange() {
+        SortedNameIndex index = new SortedNameIndex();
+        index.reset(Arrays.asList("Amazon", "apple", "Bank", "bitbucket", "BitWarden", "Cloud"));
+
+        assertTrue(Arrays.equals(new int[] { 3, 5 }, index.prefixRange("bit")));
+        assertTrue(Arrays.equals(new int[] { 2, 5 }, index.prefixRange("B")));
+        assertTrue(Arrays.equals(new int[] { 0, 6 }, index.prefixRange("")));
+        assertTrue(Arrays.equals(new int[] { 5, 5 }, index.prefixRange("bz")));
+        assertEquals(0, index.positionFor("a"));
+        assertEquals(2, index.positionFor("b"));
+        assertEquals(5, index.positionFor("c"));
+        assertEquals(6, index.positionFor("d"));
+    }
+
+    @Test
+    public void testDatabase_namesFollowEdits() throws Exception {
+        PasswordDatabase db = new PasswordDatabase(new File(tempFolder.getRoot(), "names.upm"), "password".toCharArray());
+        List<String> names = db.getAccountNames();
+        db.addAccount(new AccountInformation("zulu", "", "", "", ""));
+        db.addAccount(new AccountInformation("Alpha", "", "", "", ""));
+        db.addAccount(new AccountInformation("mike", "", "", "", ""));
+        assertEquals(Arrays.asList("Alpha", "mike", "zulu"), names);
+
+        db.replaceAccount("mike", new AccountInformation("Bravo", "", "", "", ""));
+        db.replaceAccount("zulu", new AccountInformation("zulu", "changed", "", "", ""));
+        db.deleteAccount("Alpha");
+        assertEquals(Arrays.asList("Bravo", "zulu"), names);
+        assertEquals(new ArrayList<String>(db.getSnapshot().getAccountMap().keySet()).size(), names.size());
+    }
+}